@@ -0,0 +1,79 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Reproducible datasets and connections for the benchmarks. Every dataset is generated
+ * from a fixed seed, so runs on different machines (or before and after a change) measure
+ * exactly the same documents. The database is a local mongod by default, and can be
+ * changed with -Dmongo.uri=...
+ */
+final class BenchmarkData {
+    static final long SEED = 0x5EEDBA6L;
+    static final String MONGO_URI = System.getProperty ("mongo.uri", "mongodb://localhost:27017");
+    static final String DATABASE_NAME = "bag-mongo-benchmarks";
+
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    private BenchmarkData () {}
+
+    static String makeString (Random random, int length) {
+        StringBuilder stringBuilder = new StringBuilder (length);
+        for (int i = 0; i < length; ++i) {
+            stringBuilder.append (ALPHABET.charAt (random.nextInt (ALPHABET.length ())));
+        }
+        return stringBuilder.toString ();
+    }
+
+    /**
+     *
+     * @param random
+     * @param id
+     * @param payloadSize the number of characters in the payload field, and roughly the
+     *                    number of bytes in the document
+     * @return a document with a few small fields, a nested object, an array, and a payload
+     */
+    static BagObject makeBagObject (Random random, int id, int payloadSize) {
+        BagArray tags = new BagArray ();
+        for (int i = 0, end = 1 + random.nextInt (5); i < end; ++i) {
+            tags.add (makeString (random, 6));
+        }
+        return new BagObject ()
+                .put ("id", id)
+                .put ("name", makeString (random, 12))
+                .put ("score", random.nextDouble ())
+                .put ("attributes", new BagObject ()
+                        .put ("color", makeString (random, 5))
+                        .put ("size", random.nextInt (100))
+                        .put ("active", random.nextBoolean ()))
+                .put ("tags", tags)
+                .put ("payload", makeString (random, payloadSize));
+    }
+
+    static BagArray makeBagArray (int count, int payloadSize) {
+        Random random = new Random (SEED);
+        BagArray bagArray = new BagArray ();
+        for (int i = 0; i < count; ++i) {
+            bagArray.add (makeBagObject (random, i, payloadSize));
+        }
+        return bagArray;
+    }
+
+    static BagMongo connect (String collectionName, BagObject configuration) {
+        configuration
+                .put (BagMongo.CONNECTION_STRING, MONGO_URI)
+                .put (BagMongo.DATABASE_NAME, DATABASE_NAME)
+                .put (BagMongo.COLLECTION_NAME, collectionName);
+        Map<String, BagMongo> collections = BagMongo.connect (configuration);
+        if (collections == null) {
+            throw new IllegalStateException ("Can't connect to '" + MONGO_URI + "'");
+        }
+        BagMongo bagMongo = collections.get (collectionName);
+        bagMongo.deleteAll ();
+        return bagMongo;
+    }
+}
@@ -0,0 +1,71 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.BagObjectFrom;
+import com.brettonw.bag.SelectKey;
+import com.brettonw.bag.SelectType;
+import com.brettonw.bag.formats.MimeType;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.Document;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.io.BasicOutputBuffer;
+import org.openjdk.jmh.annotations.*;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to convert small and large documents between bags and BSON, with no database
+ * involved: the bag codec in each direction, and the JSON string round trip the codec
+ * replaced.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 3)
+@Measurement (iterations = 5)
+@Fork (1)
+public class ConversionBenchmark {
+    @Param ({ "16", "65536" })
+    public int payloadSize;
+
+    private BagObjectCodec codec;
+    private BagObject bagObject;
+    private byte[] bytes;
+    private Document document;
+
+    @Setup (Level.Trial)
+    public void setUp () {
+        codec = new BagObjectCodec ();
+        bagObject = BenchmarkData.makeBagObject (new Random (BenchmarkData.SEED), 1, payloadSize);
+        bytes = encode ();
+        document = Document.parse (bagObject.toString (MimeType.JSON));
+    }
+
+    @Benchmark
+    public byte[] encode () {
+        BasicOutputBuffer outputBuffer = new BasicOutputBuffer ();
+        codec.encode (new BsonBinaryWriter (outputBuffer), bagObject, EncoderContext.builder ().build ());
+        return outputBuffer.toByteArray ();
+    }
+
+    @Benchmark
+    public BagObject decode () {
+        return codec.decode (new BsonBinaryReader (ByteBuffer.wrap (bytes)), DecoderContext.builder ().build ());
+    }
+
+    @Benchmark
+    public Document jsonEncode () {
+        return Document.parse (bagObject.toString (MimeType.JSON));
+    }
+
+    @Benchmark
+    public BagObject jsonDecode () {
+        return BagObjectFrom
+                .string (document.toJson (), MimeType.JSON)
+                .select (new SelectKey (SelectType.EXCLUDE, BagObjectCodec.UNDERSCORE_ID));
+    }
+}
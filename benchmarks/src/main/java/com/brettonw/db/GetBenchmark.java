@@ -0,0 +1,77 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.formats.MimeType;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to read results of several sizes from a fixed, indexed collection. Each document
+ * carries a "group" field for every result size, so a query on that field matches exactly
+ * that many documents.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MICROSECONDS)
+@Warmup (iterations = 3)
+@Measurement (iterations = 5)
+@Fork (1)
+public class GetBenchmark {
+    private static final int COLLECTION_SIZE = 10_000;
+
+    @Param ({ "1", "100", "10000" })
+    public int resultSize;
+
+    @Param ({ "256" })
+    public int payloadSize;
+
+    private BagMongo bagMongo;
+    private String queryJson;
+
+    private static String groupField (int size) {
+        return "group-" + size;
+    }
+
+    @Setup (Level.Trial)
+    public void setUp () {
+        int[] groupSizes = { 1, 100, COLLECTION_SIZE };
+        BagArray indexes = new BagArray ();
+        for (int groupSize : groupSizes) {
+            indexes.add (BagObject.open (BagMongo.INDEX_KEYS, BagArray.open (groupField (groupSize))));
+        }
+        bagMongo = BenchmarkData.connect ("get", BagObject.open (BagMongo.INDEXES, BagObject.open ("get", indexes)));
+
+        BagArray bagArray = BenchmarkData.makeBagArray (COLLECTION_SIZE, payloadSize);
+        for (int i = 0; i < COLLECTION_SIZE; ++i) {
+            BagObject bagObject = bagArray.getBagObject (i);
+            for (int groupSize : groupSizes) {
+                bagObject.put (groupField (groupSize), i / groupSize);
+            }
+        }
+        bagMongo.putMany (bagArray);
+        queryJson = BagObject.open (groupField (resultSize), 0).toString (MimeType.JSON);
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown () throws Exception {
+        bagMongo.drop ();
+    }
+
+    @Benchmark
+    public BagObject get () {
+        return bagMongo.get (queryJson);
+    }
+
+    @Benchmark
+    public BagArray getMany () {
+        return bagMongo.getMany (queryJson);
+    }
+
+    @Benchmark
+    @OutputTimeUnit (TimeUnit.MILLISECONDS)
+    public BagArray getAll () {
+        return bagMongo.getAll ();
+    }
+}
@@ -0,0 +1,61 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to write a fixed set of documents to an empty collection, one put at a time (batch
+ * size 1) or through putMany at several batch sizes.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.MILLISECONDS)
+@Warmup (iterations = 3)
+@Measurement (iterations = 5)
+@Fork (1)
+public class PutBenchmark {
+    @Param ({ "1000" })
+    public int documentCount;
+
+    @Param ({ "1", "10", "100", "1000" })
+    public int batchSize;
+
+    @Param ({ "256" })
+    public int payloadSize;
+
+    private BagMongo bagMongo;
+    private BagArray bagArray;
+
+    @Setup (Level.Trial)
+    public void setUp () {
+        bagMongo = BenchmarkData.connect ("put", BagObject.open (BagMongo.WRITE_BATCH_SIZE, batchSize));
+        bagArray = BenchmarkData.makeBagArray (documentCount, payloadSize);
+    }
+
+    // every invocation writes to an empty collection, so the time doesn't grow with the
+    // documents left by the invocations before it. the reset isn't timed, and at
+    // milliseconds per invocation the cost of an invocation level setup doesn't show.
+    @Setup (Level.Invocation)
+    public void empty () {
+        bagMongo.deleteAll ();
+    }
+
+    @TearDown (Level.Trial)
+    public void tearDown () throws Exception {
+        bagMongo.drop ();
+    }
+
+    @Benchmark
+    public BagDbInterface put () {
+        if (batchSize == 1) {
+            for (int i = 0; i < documentCount; ++i) {
+                bagMongo.put (bagArray.getBagObject (i));
+            }
+            return bagMongo;
+        }
+        return bagMongo.putMany (bagArray);
+    }
+}
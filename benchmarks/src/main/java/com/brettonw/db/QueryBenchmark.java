@@ -0,0 +1,62 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.BagObjectFrom;
+import com.brettonw.bag.formats.MimeType;
+import com.mongodb.client.model.Filters;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to turn query JSON into a filter, with no database involved: the original parse
+ * into a bag and build string filters, compiling with the driver's JSON reader, and a hit
+ * in the compiled query cache.
+ */
+@State (Scope.Benchmark)
+@BenchmarkMode (Mode.AverageTime)
+@OutputTimeUnit (TimeUnit.NANOSECONDS)
+@Warmup (iterations = 3)
+@Measurement (iterations = 5)
+@Fork (1)
+public class QueryBenchmark {
+    @Param ({ "{\"id\":\"2\"}", "{\"id\":3,\"payload\":\"medium\",\"key\":{\"$in\":[\"a\",\"b\"]}}" })
+    public String queryJson;
+
+    private QueryCache queryCache;
+
+    @Setup (Level.Trial)
+    public void setUp () {
+        queryCache = new QueryCache (100);
+        queryCache.get (queryJson);
+    }
+
+    @Benchmark
+    public Bson bagParse () {
+        BagObject queryBagObject = BagObjectFrom.string (queryJson, MimeType.JSON);
+        int count = queryBagObject.getCount ();
+        String[] keys = queryBagObject.keys ();
+        if (count > 1) {
+            Bson[] bsons = new Bson[count];
+            for (int i = 0; i < count; ++i) {
+                bsons[i] = Filters.eq (keys[i], queryBagObject.getString (keys[i]));
+            }
+            return Filters.and (bsons);
+        } else if (count == 1) {
+            return Filters.eq (keys[0], queryBagObject.getString (keys[0]));
+        }
+        return new Document ();
+    }
+
+    @Benchmark
+    public Bson compile () {
+        return QueryCache.compile (QueryCache.normalize (queryJson));
+    }
+
+    @Benchmark
+    public Bson cached () {
+        return queryCache.get (queryJson);
+    }
+}
@@ -0,0 +1,175 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+
+/**
+ * Runs the operations of any BagDbInterface on an executor, so callers don't block for
+ * the database round trip. The number of operations in flight at once is bounded, and a
+ * caller that would go over the bound waits for a slot, which pushes back on producers
+ * that are faster than the database. The executor can be supplied, e.g. a virtual thread
+ * per task executor on runtimes that have one, in which case the bound is the only limit
+ * on concurrency. Otherwise an internal pool with one daemon thread per slot is used.
+ */
+public class AsyncBagDb implements AsyncBagDbInterface {
+    private static final Logger log = LogManager.getLogger (AsyncBagDb.class);
+
+    private static final long CLOSE_TIMEOUT_SECONDS = 30;
+
+    private final BagDbInterface bagDb;
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final int maxInFlight;
+    private final Semaphore inFlight;
+
+    /**
+     *
+     * @param bagDb the database to run operations on
+     * @param maxInFlight the maximum number of operations running at once
+     */
+    public AsyncBagDb (BagDbInterface bagDb, int maxInFlight) {
+        this (bagDb, Executors.newFixedThreadPool (maxInFlight, daemonThreadFactory (bagDb.getName ())), true, maxInFlight);
+    }
+
+    /**
+     *
+     * @param bagDb the database to run operations on
+     * @param executor the executor to run operations on, which is not shut down on close
+     * @param maxInFlight the maximum number of operations running at once
+     */
+    public AsyncBagDb (BagDbInterface bagDb, ExecutorService executor, int maxInFlight) {
+        this (bagDb, executor, false, maxInFlight);
+    }
+
+    private AsyncBagDb (BagDbInterface bagDb, ExecutorService executor, boolean ownsExecutor, int maxInFlight) {
+        this.bagDb = bagDb;
+        this.executor = executor;
+        this.ownsExecutor = ownsExecutor;
+        this.maxInFlight = maxInFlight;
+        inFlight = new Semaphore (maxInFlight);
+    }
+
+    static ThreadFactory daemonThreadFactory (final String name) {
+        final AtomicInteger threadCount = new AtomicInteger ();
+        return runnable -> {
+            Thread thread = new Thread (runnable, name + "-" + threadCount.incrementAndGet ());
+            thread.setDaemon (true);
+            return thread;
+        };
+    }
+
+    private <T> CompletableFuture<T> submit (Supplier<T> operation) {
+        try {
+            inFlight.acquire ();
+        } catch (InterruptedException exception) {
+            Thread.currentThread ().interrupt ();
+            return failed (exception);
+        }
+
+        try {
+            CompletableFuture<T> future = CompletableFuture.supplyAsync (operation, executor);
+            future.whenComplete ((result, throwable) -> inFlight.release ());
+            return future;
+        } catch (RejectedExecutionException exception) {
+            inFlight.release ();
+            return failed (exception);
+        }
+    }
+
+    private static <T> CompletableFuture<T> failed (Throwable throwable) {
+        CompletableFuture<T> future = new CompletableFuture<> ();
+        future.completeExceptionally (throwable);
+        return future;
+    }
+
+    @Override
+    public CompletableFuture<Void> put (BagObject bagObject) {
+        return submit (() -> { bagDb.put (bagObject); return null; });
+    }
+
+    @Override
+    public CompletableFuture<Void> putMany (BagArray bagArray) {
+        return submit (() -> { bagDb.putMany (bagArray); return null; });
+    }
+
+    @Override
+    public CompletableFuture<BagObject> get (String queryJson) {
+        return submit (() -> bagDb.get (queryJson));
+    }
+
+    @Override
+    public CompletableFuture<BagArray> getMany (String queryJson) {
+        return submit (() -> bagDb.getMany (queryJson));
+    }
+
+    @Override
+    public CompletableFuture<BagArray> getAll () {
+        return submit (bagDb::getAll);
+    }
+
+    @Override
+    public CompletableFuture<Void> delete (String queryJson) {
+        return submit (() -> { bagDb.delete (queryJson); return null; });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteMany (String queryJson) {
+        return submit (() -> { bagDb.deleteMany (queryJson); return null; });
+    }
+
+    @Override
+    public CompletableFuture<Void> deleteAll () {
+        return submit (() -> { bagDb.deleteAll (); return null; });
+    }
+
+    @Override
+    public CompletableFuture<Long> getCount () {
+        return submit (bagDb::getCount);
+    }
+
+    @Override
+    public CompletableFuture<Long> getCount (String queryJson) {
+        return submit (() -> bagDb.getCount (queryJson));
+    }
+
+    @Override
+    public String getName () {
+        return bagDb.getName ();
+    }
+
+    /**
+     *
+     * @return the number of operations currently running or queued on the executor
+     */
+    public int getInFlightCount () {
+        return maxInFlight - inFlight.availablePermits ();
+    }
+
+    /**
+     *
+     * @return the synchronous database underneath
+     */
+    public BagDbInterface getBagDb () {
+        return bagDb;
+    }
+
+    @Override
+    public void close () throws Exception {
+        // wait for everything in flight to finish before closing the database underneath
+        if (inFlight.tryAcquire (maxInFlight, CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            inFlight.release (maxInFlight);
+        } else {
+            log.warn ("Closing '" + getName () + "' with " + getInFlightCount () + " operations in flight");
+        }
+        if (ownsExecutor) {
+            executor.shutdown ();
+        }
+        bagDb.close ();
+    }
+}
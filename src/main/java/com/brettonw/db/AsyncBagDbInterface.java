@@ -0,0 +1,85 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * The non-blocking counterpart of BagDbInterface, every operation returns immediately with
+ * a future that completes when the database has answered.
+ */
+public interface AsyncBagDbInterface extends AutoCloseable {
+    /**
+     *
+     * @param bagObject
+     * @return
+     */
+    CompletableFuture<Void> put (BagObject bagObject);
+
+    /**
+     *
+     * @param bagArray
+     * @return
+     */
+    CompletableFuture<Void> putMany (BagArray bagArray);
+
+    /**
+     *
+     * @param queryJson
+     * @return
+     */
+    CompletableFuture<BagObject> get (String queryJson);
+
+    /**
+     *
+     * @param queryJson
+     * @return
+     */
+    CompletableFuture<BagArray> getMany (String queryJson);
+
+    /**
+     *
+     * @return
+     */
+    CompletableFuture<BagArray> getAll ();
+
+    /**
+     *
+     * @param queryJson
+     * @return
+     */
+    CompletableFuture<Void> delete (String queryJson);
+
+    /**
+     *
+     * @param queryJson
+     * @return
+     */
+    CompletableFuture<Void> deleteMany (String queryJson);
+
+    /**
+     *
+     * @return
+     */
+    CompletableFuture<Void> deleteAll ();
+
+    /**
+     *
+     * @return
+     */
+    CompletableFuture<Long> getCount ();
+
+    /**
+     *
+     * @param queryJson
+     * @return
+     */
+    CompletableFuture<Long> getCount (String queryJson);
+
+    /**
+     *
+     * @return
+     */
+    String getName ();
+}
@@ -0,0 +1,25 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+
+public class BagArrayCodec implements Codec<BagArray> {
+    @Override
+    public void encode (BsonWriter writer, BagArray bagArray, EncoderContext encoderContext) {
+        BagObjectCodec.writeBagArray (writer, bagArray);
+    }
+
+    @Override
+    public BagArray decode (BsonReader reader, DecoderContext decoderContext) {
+        return BagObjectCodec.readBagArray (reader);
+    }
+
+    @Override
+    public Class<BagArray> getEncoderClass () {
+        return BagArray.class;
+    }
+}
@@ -0,0 +1,40 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistry;
+
+/**
+ * Provides codecs that move bags directly to and from BSON, without an intermediate JSON
+ * string.
+ */
+public class BagCodecProvider implements CodecProvider {
+    private static final BagArrayCodec BAG_ARRAY_CODEC = new BagArrayCodec ();
+
+    private final BagObjectCodec bagObjectCodec;
+
+    public BagCodecProvider () {
+        this (null, false, null);
+    }
+
+    BagCodecProvider (BagMongoMetrics metrics, boolean lazy, LargeValueStore largeValueStore) {
+        this (metrics, lazy, largeValueStore, true);
+    }
+
+    BagCodecProvider (BagMongoMetrics metrics, boolean lazy, LargeValueStore largeValueStore, boolean skipId) {
+        bagObjectCodec = new BagObjectCodec (metrics, lazy, largeValueStore, skipId);
+    }
+
+    @Override
+    @SuppressWarnings ("unchecked")
+    public <T> Codec<T> get (Class<T> type, CodecRegistry registry) {
+        if (type == BagObject.class) {
+            return (Codec<T>) bagObjectCodec;
+        } else if (type == BagArray.class) {
+            return (Codec<T>) BAG_ARRAY_CODEC;
+        }
+        return null;
+    }
+}
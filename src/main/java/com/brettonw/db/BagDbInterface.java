@@ -3,6 +3,8 @@ package com.brettonw.db;
 import com.brettonw.bag.BagArray;
 import com.brettonw.bag.BagObject;
 
+import java.util.stream.Stream;
+
 public interface BagDbInterface extends AutoCloseable {
     /**
      *
@@ -18,6 +20,40 @@ public interface BagDbInterface extends AutoCloseable {
      */
     BagDbInterface putMany (BagArray bagArray);
 
+    /**
+     * replace the object that has the same values in the key fields, or put it if there
+     * isn't one
+     * @param keyFields
+     * @param bagObject
+     * @return
+     */
+    BagDbInterface upsert (String[] keyFields, BagObject bagObject);
+
+    /**
+     * upsert every object in the array
+     * @param keyFields
+     * @param bagArray
+     * @return
+     */
+    BagDbInterface upsertMany (String[] keyFields, BagArray bagArray);
+
+    /**
+     * change fields in the first matching object, the changes are either the fields to
+     * set, or update operators ("$set", "$unset", "$inc", etc.) with their fields
+     * @param queryJson
+     * @param changes
+     * @return
+     */
+    BagDbInterface update (String queryJson, BagObject changes);
+
+    /**
+     * change fields in every matching object
+     * @param queryJson
+     * @param changes
+     * @return
+     */
+    BagDbInterface updateMany (String queryJson, BagObject changes);
+
     /**
      *
      * @param queryJson
@@ -25,6 +61,14 @@ public interface BagDbInterface extends AutoCloseable {
      */
     BagObject get (String queryJson);
 
+    /**
+     * get the first matching object, with only the fields in the projection
+     * @param queryJson
+     * @param projection
+     * @return
+     */
+    BagObject get (String queryJson, Projection projection);
+
     /**
      *
      * @param queryJson
@@ -32,12 +76,72 @@ public interface BagDbInterface extends AutoCloseable {
      */
     BagArray getMany (String queryJson);
 
+    /**
+     * get the matching objects, with only the fields in the projection
+     * @param queryJson
+     * @param projection
+     * @return
+     */
+    BagArray getMany (String queryJson, Projection projection);
+
     /**
      *
      * @return
      */
     BagArray getAll ();
 
+    /**
+     * get all of the objects, with only the fields in the projection
+     * @param projection
+     * @return
+     */
+    BagArray getAll (Projection projection);
+
+    /**
+     * get the objects whose field matches each of the values, in as few round trips as
+     * possible
+     * @param field
+     * @param values
+     * @return an array with one entry per value, in the same order, where a value with no
+     * matching object gets an empty object
+     */
+    BagArray getByKeys (String field, BagArray values);
+
+    /**
+     * get one page of the matching objects in order of the sort field, starting after the
+     * position in the resume token. each page is a range query from that position, so a
+     * page deep in the results costs the same as the first one.
+     * @param queryJson
+     * @param sortField
+     * @param pageSize
+     * @param resumeToken the token from the previous page, or null for the first page
+     * @return
+     */
+    Page getPage (String queryJson, String sortField, int pageSize, String resumeToken);
+
+    /**
+     * stream the matching objects without collecting them all in memory, the stream
+     * should be closed (try-with-resources) if it is not read to the end
+     * @param queryJson
+     * @return
+     */
+    Stream<BagObject> stream (String queryJson);
+
+    /**
+     * stream all of the objects without collecting them all in memory, the stream
+     * should be closed (try-with-resources) if it is not read to the end
+     * @return
+     */
+    Stream<BagObject> streamAll ();
+
+    /**
+     * run an aggregation pipeline, written as bag stages, in the database and stream the
+     * results, the stream should be closed (try-with-resources) if it is not read to the end
+     * @param pipeline
+     * @return
+     */
+    Stream<BagObject> aggregate (BagArray pipeline);
+
     /**
      *
      * @param queryJson
@@ -69,6 +173,13 @@ public interface BagDbInterface extends AutoCloseable {
      */
     long getCount ();
 
+    /**
+     *
+     * @param queryJson
+     * @return the number of objects matching the query
+     */
+    long getCount (String queryJson);
+
     /**
      *
      * @return
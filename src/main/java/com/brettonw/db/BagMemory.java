@@ -0,0 +1,1063 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.SelectType;
+import com.brettonw.bag.formats.MimeType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonArray;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.BsonDouble;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Objects;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static com.brettonw.db.BagMongo.*;
+
+/**
+ * An in-memory BagDbInterface, for tests, caches, and collections that don't need a
+ * server. Objects are kept as BSON documents in a concurrent map in the order they were
+ * put, and queries are compiled the same way as for BagMongo and evaluated with the same
+ * semantics (see QueryMatcher), so the two are interchangeable. Reads never lock, and
+ * writes are serialized so the indexes always agree with the objects.
+ * <p>
+ * Fields can be indexed with a hash index, which serves equality and "$in", or a sorted
+ * index, which serves ranges too. A query uses the narrowest index on any of its top level
+ * fields to find its candidates, and every candidate is still checked against the whole
+ * query. "_id" always has a unique index, just like a collection.
+ * <p>
+ * With a snapshot path, the objects are loaded from the file when the database is opened
+ * and written back to it when it is closed, so a restart doesn't start empty. A snapshot is
+ * a sequence of BSON documents, the same as a BSON export from BagMongo.
+ */
+public class BagMemory implements BagDbInterface {
+    private static final Logger log = LogManager.getLogger (BagMemory.class);
+
+    public static final String INDEX_SORTED = "sorted";
+    public static final String SNAPSHOT_DIRECTORY = "snapshot-directory";
+
+    private static final String SNAPSHOT_SUFFIX = ".bson";
+    private static final int QUERY_CACHE_SIZE_DEFAULT = 1000;
+
+    // the aggregation stages that run in memory
+    private static final String MATCH = "$match";
+    private static final String PROJECT = "$project";
+    private static final String SORT = "$sort";
+    private static final String SKIP = "$skip";
+    private static final String LIMIT = "$limit";
+
+    private static final Codec<BagObject> CODEC = new BagObjectCodec ();
+    private static final BsonDocumentCodec BSON_DOCUMENT_CODEC = new BsonDocumentCodec ();
+
+    private class Index {
+        private final String[] fields;
+        private final boolean sorted;
+        private final boolean unique;
+        private final ConcurrentMap<BsonValue, Set<Long>> entries;
+
+        Index (String[] fields, boolean sorted, boolean unique) {
+            this.fields = fields;
+            this.sorted = sorted;
+            this.unique = unique;
+            entries = sorted ? new ConcurrentSkipListMap<> (QueryMatcher::compare) : new ConcurrentHashMap<> ();
+        }
+
+        // a compound index is kept on its leading field, and only its uniqueness uses the
+        // rest of the fields
+        String getField () {
+            return fields[0];
+        }
+
+        Set<BsonValue> getKeys (BsonDocument document) {
+            // every scalar at the field, including the elements of an array, with a missing
+            // field indexed as null
+            List<BsonValue> values = QueryMatcher.resolve (document, fields[0]);
+            Set<BsonValue> keys = new LinkedHashSet<> ();
+            if (values.isEmpty ()) {
+                keys.add (BsonNull.VALUE);
+            }
+            for (BsonValue value : values) {
+                if (value.isArray ()) {
+                    for (BsonValue element : value.asArray ()) {
+                        if (isKey (element)) {
+                            keys.add (toKey (element));
+                        }
+                    }
+                } else if (isKey (value)) {
+                    keys.add (toKey (value));
+                }
+            }
+            return keys;
+        }
+
+        void add (long id, BsonDocument document) {
+            for (BsonValue key : getKeys (document)) {
+                entries.computeIfAbsent (key, k -> ConcurrentHashMap.newKeySet ()).add (id);
+            }
+        }
+
+        void remove (long id, BsonDocument document) {
+            for (BsonValue key : getKeys (document)) {
+                Set<Long> ids = entries.get (key);
+                if (ids != null) {
+                    ids.remove (id);
+                    if (ids.isEmpty ()) {
+                        entries.remove (key, ids);
+                    }
+                }
+            }
+        }
+
+        BsonValue getConflict (long id, BsonDocument document) {
+            if (unique) {
+                for (BsonValue key : getKeys (document)) {
+                    Set<Long> ids = entries.get (key);
+                    if (ids != null) {
+                        for (Long other : ids) {
+                            BsonDocument otherDocument = objects.get (other);
+                            if ((other != id) && (otherDocument != null) && hasSameValues (otherDocument, document)) {
+                                return key;
+                            }
+                        }
+                    }
+                }
+            }
+            return null;
+        }
+
+        private boolean hasSameValues (BsonDocument left, BsonDocument right) {
+            for (int i = 1; i < fields.length; ++i) {
+                if (QueryMatcher.compare (getFirstValue (left, fields[i]), getFirstValue (right, fields[i])) != 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         *
+         * @param condition the condition on the field in a compiled query
+         * @return the ids of the objects that might match the condition, or null if the
+         * index can't narrow it down
+         */
+        Set<Long> lookup (BsonValue condition) {
+            if (QueryMatcher.isOperatorDocument (condition)) {
+                BsonDocument operators = condition.asDocument ();
+                if (operators.containsKey ("$in")) {
+                    BsonValue values = operators.get ("$in");
+                    return values.isArray () ? lookup (values.asArray ().getValues ()) : null;
+                } else if (operators.containsKey ("$eq")) {
+                    return lookup (Collections.singletonList (operators.get ("$eq")));
+                }
+                return sorted ? lookupRange (operators) : null;
+            }
+            return lookup (Collections.singletonList (condition));
+        }
+
+        private Set<Long> lookup (List<BsonValue> values) {
+            Set<Long> ids = new HashSet<> ();
+            for (BsonValue value : values) {
+                if (! isKey (value)) {
+                    return null;
+                }
+                ids.addAll (entries.getOrDefault (toKey (value), Collections.emptySet ()));
+            }
+            return ids;
+        }
+
+        private Set<Long> lookupRange (BsonDocument operators) {
+            // only keys of the same type as the bounds can match, and the keys are sorted by
+            // type first, so the range stops at the first key of another type
+            BsonValue lower = getBound (operators, "$gt", "$gte");
+            BsonValue upper = getBound (operators, "$lt", "$lte");
+            if (((lower != null) && (! isKey (lower))) || ((upper != null) && (! isKey (upper))) || ((lower == null) && (upper == null))) {
+                return null;
+            }
+            Set<Long> ids = new HashSet<> ();
+            if ((lower != null) && (upper != null) && (QueryMatcher.compare (lower, upper) > 0)) {
+                return ids;
+            }
+            NavigableMap<BsonValue, Set<Long>> range = (ConcurrentNavigableMap<BsonValue, Set<Long>>) entries;
+            if (lower != null) {
+                range = range.tailMap (toKey (lower), operators.containsKey ("$gte"));
+            }
+            if (upper != null) {
+                range = range.headMap (toKey (upper), operators.containsKey ("$lte"));
+            }
+            int typeOrder = QueryMatcher.getTypeOrder ((lower != null) ? lower : upper);
+            for (Map.Entry<BsonValue, Set<Long>> entry : range.entrySet ()) {
+                int keyTypeOrder = QueryMatcher.getTypeOrder (entry.getKey ());
+                if (keyTypeOrder > typeOrder) {
+                    break;
+                } else if (keyTypeOrder == typeOrder) {
+                    ids.addAll (entry.getValue ());
+                }
+            }
+            return ids;
+        }
+
+        BagObject describe () {
+            BagArray keys = new BagArray (fields.length);
+            for (String field : fields) {
+                keys.add (field);
+            }
+            return new BagObject ()
+                    .put (INDEX_KEYS, keys)
+                    .put (INDEX_UNIQUE, unique)
+                    .put (INDEX_SORTED, sorted);
+        }
+    }
+
+    private final String name;
+    private final ConcurrentSkipListMap<Long, BsonDocument> objects;
+    private final List<Index> indexes;
+    private final AtomicLong count;
+    private final AtomicBoolean closed;
+    private long nextId;
+    private QueryCache queryCache;
+    private Path snapshotPath;
+
+    /**
+     *
+     * @param name the name of the database, by convention "database.collection"
+     */
+    public BagMemory (String name) {
+        this.name = name;
+        objects = new ConcurrentSkipListMap<> ();
+        indexes = new CopyOnWriteArrayList<> ();
+        indexes.add (new Index (new String[] { BagObjectCodec.UNDERSCORE_ID }, false, true));
+        count = new AtomicLong ();
+        closed = new AtomicBoolean (false);
+        queryCache = new QueryCache (QUERY_CACHE_SIZE_DEFAULT);
+    }
+
+    /**
+     * open a database that is loaded from the snapshot, if there is one, and saved to it
+     * when it is closed
+     * @param name
+     * @param snapshotPath
+     */
+    public BagMemory (String name, Path snapshotPath) {
+        this (name);
+        this.snapshotPath = snapshotPath;
+        if (Files.exists (snapshotPath)) {
+            try {
+                loadSnapshot (snapshotPath);
+            } catch (IOException exception) {
+                log.error ("Failed to load '" + getName () + "' from '" + snapshotPath + "'", exception);
+            }
+        }
+    }
+
+    /**
+     * open the collections in the configuration, with the same configuration as BagMongo
+     * where it applies ("database-name", "collection-name" or "collection-names",
+     * "query-cache-size", and "indexes", where an index can also be "sorted"), and an
+     * optional "snapshot-directory" to keep each collection in as "database.collection.bson"
+     * @param configuration
+     * @return
+     */
+    public static Map<String, BagMemory> connect (BagObject configuration) {
+        String databaseName = configuration.getString (DATABASE_NAME);
+        String[] collectionNames = null;
+        if (configuration.has (COLLECTION_NAMES)) {
+            BagArray collectionNamesBagArray = configuration.getBagArray (COLLECTION_NAMES);
+            if (collectionNamesBagArray != null) {
+                collectionNames = collectionNamesBagArray.toArray (String.class);
+            }
+        } else if (configuration.has (COLLECTION_NAME)) {
+            collectionNames = new String[] { configuration.getString (COLLECTION_NAME) };
+            if (databaseName == null) {
+                databaseName = collectionNames[0];
+            }
+        }
+        if (databaseName == null) {
+            log.error ("Invalid configuration (missing '" + DATABASE_NAME + "')");
+            return null;
+        }
+        if ((collectionNames == null) || (collectionNames.length == 0)) {
+            collectionNames = new String[] { databaseName };
+        }
+
+        Map<String, BagMemory> collections = new HashMap<> ();
+        String snapshotDirectory = configuration.getString (SNAPSHOT_DIRECTORY);
+        for (String collectionName : collectionNames) {
+            String name = databaseName + "." + collectionName;
+            BagMemory bagMemory = (snapshotDirectory != null) ?
+                    new BagMemory (name, Paths.get (snapshotDirectory, name + SNAPSHOT_SUFFIX)) :
+                    new BagMemory (name);
+            bagMemory.configure (configuration, collectionName);
+            collections.put (collectionName, bagMemory);
+        }
+        return collections;
+    }
+
+    private void configure (BagObject configuration, String collectionName) {
+        if (configuration.has (QUERY_CACHE_SIZE)) {
+            Integer value = configuration.getInteger (QUERY_CACHE_SIZE);
+            if ((value != null) && (value >= 0)) {
+                queryCache = new QueryCache (value);
+            } else {
+                log.warn ("Ignoring invalid '" + QUERY_CACHE_SIZE + "' (" + configuration.getString (QUERY_CACHE_SIZE) + ")");
+            }
+        }
+
+        // indexes are declared the same way as for BagMongo, the direction of a field
+        // doesn't matter in memory
+        BagObject indexes = configuration.getBagObject (INDEXES);
+        BagArray collectionIndexes = (indexes != null) ? indexes.getBagArray (collectionName) : null;
+        if (collectionIndexes != null) {
+            for (int i = 0, end = collectionIndexes.getCount (); i < end; ++i) {
+                BagObject index = collectionIndexes.getBagObject (i);
+                BagArray keys = (index != null) ? index.getBagArray (INDEX_KEYS) : null;
+                if ((keys != null) && (keys.getCount () > 0)) {
+                    String[] fields = new String[keys.getCount ()];
+                    for (int j = 0; j < fields.length; ++j) {
+                        String key = keys.getString (j);
+                        fields[j] = key.startsWith ("-") ? key.substring (1) : key;
+                    }
+                    createIndex (fields, Boolean.TRUE.equals (index.getBoolean (INDEX_SORTED)), Boolean.TRUE.equals (index.getBoolean (INDEX_UNIQUE)));
+                } else {
+                    log.error ("Invalid index (missing '" + INDEX_KEYS + "') on '" + getName () + "'");
+                }
+            }
+        }
+    }
+
+    /**
+     * index the objects on some fields. a compound index serves queries on its leading
+     * field, and a unique one rejects objects with the same values in all of its fields.
+     * creating an index that already exists does nothing.
+     * @param fields the (possibly dotted) names of the fields
+     * @param sorted whether the index serves ranges ("$gt", "$lt", etc.), or only equality
+     * @param unique
+     * @return
+     */
+    public synchronized BagMemory createIndex (String[] fields, boolean sorted, boolean unique) {
+        for (Index index : indexes) {
+            if (Arrays.equals (index.fields, fields) && (index.sorted == sorted) && (index.unique == unique)) {
+                return this;
+            }
+        }
+        Index index = new Index (fields, sorted, unique);
+        for (Map.Entry<Long, BsonDocument> entry : objects.entrySet ()) {
+            BsonValue conflict = index.getConflict (entry.getKey (), entry.getValue ());
+            if (conflict != null) {
+                log.error ("Failed to create index " + Arrays.toString (fields) + " on '" + getName () + "' (duplicate key " + conflict + ")");
+                return this;
+            }
+            index.add (entry.getKey (), entry.getValue ());
+        }
+        indexes.add (index);
+        log.info ("Index " + Arrays.toString (fields) + " on '" + getName () + "'");
+        return this;
+    }
+
+    /**
+     *
+     * @return the descriptions of the indexes, starting with "_id"
+     */
+    public BagArray getIndexes () {
+        BagArray bagArray = new BagArray ();
+        for (Index index : indexes) {
+            bagArray.add (index.describe ());
+        }
+        return bagArray;
+    }
+
+    private static boolean isKey (BsonValue value) {
+        return ! (value.isDocument () || value.isArray () || value.isRegularExpression ());
+    }
+
+    private static BsonValue toKey (BsonValue value) {
+        // numbers of different types that are equal have to find each other
+        return (value.isNumber () || value.isDecimal128 ()) ? new BsonDouble (QueryMatcher.toDouble (value)) : value;
+    }
+
+    private static BsonValue getBound (BsonDocument operators, String exclusive, String inclusive) {
+        return operators.containsKey (inclusive) ? operators.get (inclusive) : operators.get (exclusive);
+    }
+
+    private static BsonValue getFirstValue (BsonDocument document, String field) {
+        List<BsonValue> values = QueryMatcher.resolve (document, field);
+        return values.isEmpty () ? BsonNull.VALUE : values.get (0);
+    }
+
+    private static BsonDocument toDocument (BagObject bagObject) {
+        BsonDocument document = new BsonDocument ();
+        BagObjectCodec.writeBagObject (new BsonDocumentWriter (document), bagObject);
+        return document;
+    }
+
+    private static BagObject toBagObject (BsonDocument document, Projection projection) {
+        if (projection != null) {
+            List<String> keys = Arrays.asList (projection.getKeys ());
+            document = (projection.getSelectType () == SelectType.INCLUDE) ? include (document, keys) : exclude (document, keys);
+        }
+        return BagObjectCodec.readBagObject (new BsonDocumentReader (document), true);
+    }
+
+    private static BsonDocument include (BsonDocument document, List<String> keys) {
+        // fields stay in the order of the document, like they do on the server
+        BsonDocument projected = new BsonDocument ();
+        for (Map.Entry<String, BsonValue> entry : document.entrySet ()) {
+            List<String> nestedKeys = new ArrayList<> ();
+            if (getNestedKeys (entry.getKey (), keys, nestedKeys)) {
+                projected.put (entry.getKey (), entry.getValue ());
+            } else if ((! nestedKeys.isEmpty ()) && entry.getValue ().isDocument ()) {
+                projected.put (entry.getKey (), include (entry.getValue ().asDocument (), nestedKeys));
+            }
+        }
+        return projected;
+    }
+
+    private static BsonDocument exclude (BsonDocument document, List<String> keys) {
+        BsonDocument projected = new BsonDocument ();
+        for (Map.Entry<String, BsonValue> entry : document.entrySet ()) {
+            List<String> nestedKeys = new ArrayList<> ();
+            if (! getNestedKeys (entry.getKey (), keys, nestedKeys)) {
+                projected.put (entry.getKey (), ((! nestedKeys.isEmpty ()) && entry.getValue ().isDocument ()) ?
+                        exclude (entry.getValue ().asDocument (), nestedKeys) :
+                        entry.getValue ());
+            }
+        }
+        return projected;
+    }
+
+    private static boolean getNestedKeys (String name, List<String> keys, List<String> nestedKeys) {
+        // returns whether the name is one of the keys, and collects the keys below it
+        boolean found = false;
+        String prefix = name + ".";
+        for (String key : keys) {
+            if (key.equals (name)) {
+                found = true;
+            } else if (key.startsWith (prefix)) {
+                nestedKeys.add (key.substring (prefix.length ()));
+            }
+        }
+        return found;
+    }
+
+    private BsonDocument buildQuery (String queryJson) {
+        return queryCache.get (queryJson).toBsonDocument (BsonDocument.class, null);
+    }
+
+    /**
+     * the fraction of queries that were answered from the compiled query cache
+     * @return
+     */
+    public double getQueryCacheHitRate () {
+        return queryCache.getHitRate ();
+    }
+
+    private Stream<Map.Entry<Long, BsonDocument>> find (BsonDocument filter) {
+        // the candidates are checked in the order they were put, whether they come from an
+        // index or from every object
+        Set<Long> ids = getIndexedIds (filter);
+        Stream<Map.Entry<Long, BsonDocument>> candidates = (ids != null) ?
+                new TreeSet<> (ids).stream ()
+                        .<Map.Entry<Long, BsonDocument>> map (id -> {
+                            BsonDocument document = objects.get (id);
+                            return (document != null) ? new AbstractMap.SimpleImmutableEntry<> (id, document) : null;
+                        })
+                        .filter (Objects::nonNull) :
+                objects.entrySet ().stream ();
+        return filter.isEmpty () ? candidates : candidates.filter (entry -> QueryMatcher.matches (entry.getValue (), filter));
+    }
+
+    private Set<Long> getIndexedIds (BsonDocument filter) {
+        // the narrowest index on any field of the query, or of a clause that has to match
+        Set<Long> narrowest = null;
+        for (Map.Entry<String, BsonValue> entry : filter.entrySet ()) {
+            String key = entry.getKey ();
+            if (key.equals ("$and") && entry.getValue ().isArray ()) {
+                for (BsonValue clause : entry.getValue ().asArray ()) {
+                    if (clause.isDocument ()) {
+                        narrowest = getNarrower (narrowest, getIndexedIds (clause.asDocument ()));
+                    }
+                }
+            } else if (! key.startsWith ("$")) {
+                for (Index index : indexes) {
+                    if (index.getField ().equals (key)) {
+                        narrowest = getNarrower (narrowest, index.lookup (entry.getValue ()));
+                    }
+                }
+            }
+        }
+        return narrowest;
+    }
+
+    private static Set<Long> getNarrower (Set<Long> left, Set<Long> right) {
+        return ((left == null) || ((right != null) && (right.size () < left.size ()))) ? right : left;
+    }
+
+    private void checkUnique (long id, BsonDocument document) {
+        for (Index index : indexes) {
+            BsonValue conflict = index.getConflict (id, document);
+            if (conflict != null) {
+                throw new IllegalStateException ("Duplicate key " + conflict + " for index " + Arrays.toString (index.fields) + " in '" + getName () + "'");
+            }
+        }
+    }
+
+    private synchronized void insert (BsonDocument document) {
+        // the generated "_id" never repeats one that was loaded from a snapshot
+        BsonValue existingId = document.get (BagObjectCodec.UNDERSCORE_ID);
+        if ((existingId != null) && existingId.isInt64 ()) {
+            nextId = Math.max (nextId, existingId.asInt64 ().getValue () + 1);
+        }
+        long id = nextId;
+        if (existingId == null) {
+            document.put (BagObjectCodec.UNDERSCORE_ID, new BsonInt64 (id));
+        }
+        checkUnique (id, document);
+        ++nextId;
+        objects.put (id, document);
+        for (Index index : indexes) {
+            index.add (id, document);
+        }
+        count.incrementAndGet ();
+    }
+
+    private void replace (long id, BsonDocument oldDocument, BsonDocument document) {
+        // called while holding the lock, and "_id" can't change
+        document.put (BagObjectCodec.UNDERSCORE_ID, oldDocument.get (BagObjectCodec.UNDERSCORE_ID));
+        checkUnique (id, document);
+        for (Index index : indexes) {
+            index.remove (id, oldDocument);
+        }
+        objects.put (id, document);
+        for (Index index : indexes) {
+            index.add (id, document);
+        }
+    }
+
+    private void remove (long id, BsonDocument document) {
+        // called while holding the lock
+        if (objects.remove (id, document)) {
+            for (Index index : indexes) {
+                index.remove (id, document);
+            }
+            count.decrementAndGet ();
+        }
+    }
+
+    public BagDbInterface put (BagObject bagObject) {
+        insert (toDocument (bagObject));
+        return this;
+    }
+
+    public BagDbInterface putMany (BagArray bagArray) {
+        PutManyResult putManyResult = putManyWithResult (bagArray);
+        if (putManyResult.hasFailures ()) {
+            log.error ("Failed to put " + putManyResult.getFailedCount () + " of " + bagArray.getCount () + " in '" + getName () + "': " + putManyResult.getErrors ().toString (MimeType.JSON));
+        }
+        return this;
+    }
+
+    /**
+     * put each object in the array, an object that fails doesn't stop the rest
+     * @param bagArray
+     * @return the number of objects inserted and failed, with the errors
+     */
+    public PutManyResult putManyWithResult (BagArray bagArray) {
+        PutManyResult putManyResult = new PutManyResult ();
+        for (int i = 0, end = bagArray.getCount (); i < end; ++i) {
+            try {
+                insert (toDocument (bagArray.getBagObject (i)));
+                putManyResult.addInserted (1);
+            } catch (RuntimeException exception) {
+                putManyResult.addFailed (1);
+                putManyResult.addError (i, exception.getMessage ());
+            }
+        }
+        return putManyResult;
+    }
+
+    public synchronized BagDbInterface upsert (String[] keyFields, BagObject bagObject) {
+        BsonDocument document = toDocument (bagObject);
+        Map.Entry<Long, BsonDocument> found = find (buildKeyFilter (keyFields, bagObject)).findFirst ().orElse (null);
+        if (found != null) {
+            replace (found.getKey (), found.getValue (), document);
+        } else {
+            insert (document);
+        }
+        return this;
+    }
+
+    public synchronized BagDbInterface upsertMany (String[] keyFields, BagArray bagArray) {
+        for (int i = 0, end = bagArray.getCount (); i < end; ++i) {
+            upsert (keyFields, bagArray.getBagObject (i));
+        }
+        return this;
+    }
+
+    /**
+     * change fields in the first matching object, with the same changes as BagMongo, the
+     * operators are "$set", "$unset", "$inc", and "$mul"
+     * @param queryJson
+     * @param changes
+     * @return
+     */
+    public synchronized BagDbInterface update (String queryJson, BagObject changes) {
+        BsonDocument update = buildUpdate (changes, CODEC);
+        find (buildQuery (queryJson)).findFirst ().ifPresent (entry -> replace (entry.getKey (), entry.getValue (), applyUpdate (entry.getValue (), update)));
+        return this;
+    }
+
+    public synchronized BagDbInterface updateMany (String queryJson, BagObject changes) {
+        BsonDocument update = buildUpdate (changes, CODEC);
+        List<Map.Entry<Long, BsonDocument>> found = find (buildQuery (queryJson)).collect (Collectors.toList ());
+        for (Map.Entry<Long, BsonDocument> match : found) {
+            replace (match.getKey (), match.getValue (), applyUpdate (match.getValue (), update));
+        }
+        return this;
+    }
+
+    private static BsonDocument applyUpdate (BsonDocument document, BsonDocument update) {
+        // stored documents are never changed in place, readers might be looking at them
+        BsonDocument updated = document.clone ();
+        for (Map.Entry<String, BsonValue> entry : update.entrySet ()) {
+            String operator = entry.getKey ();
+            for (Map.Entry<String, BsonValue> field : entry.getValue ().asDocument ().entrySet ()) {
+                String[] names = field.getKey ().split ("\\.");
+                switch (operator) {
+                    case SET:
+                        getParent (updated, names, true).put (names[names.length - 1], field.getValue ());
+                        break;
+                    case UNSET:
+                        BsonDocument parent = getParent (updated, names, false);
+                        if (parent != null) {
+                            parent.remove (names[names.length - 1]);
+                        }
+                        break;
+                    case INC:
+                    case MUL:
+                        parent = getParent (updated, names, true);
+                        String name = names[names.length - 1];
+                        parent.put (name, applyArithmetic (operator, field.getKey (), parent.get (name), field.getValue ()));
+                        break;
+                    default:
+                        throw new IllegalArgumentException ("Unsupported update operator (" + operator + ")");
+                }
+            }
+        }
+        return updated;
+    }
+
+    private static BsonDocument getParent (BsonDocument document, String[] names, boolean create) {
+        for (int i = 0; (document != null) && (i < names.length - 1); ++i) {
+            BsonValue child = document.get (names[i]);
+            if ((child == null) && create) {
+                child = new BsonDocument ();
+                document.put (names[i], child);
+            }
+            if ((child != null) && (! child.isDocument ())) {
+                throw new IllegalArgumentException ("Invalid update (" + String.join (".", names) + " is not in a document)");
+            }
+            document = (child != null) ? child.asDocument () : null;
+        }
+        return document;
+    }
+
+    private static BsonValue applyArithmetic (String operator, String field, BsonValue value, BsonValue operand) {
+        // like the server, a missing field starts at zero, and anything but a number fails
+        boolean multiply = operator.equals (MUL);
+        if (value == null) {
+            return multiply ? (operand.isInt64 () ? new BsonInt64 (0) : new BsonDouble (0)) : operand;
+        }
+        if (! value.isNumber ()) {
+            throw new IllegalArgumentException ("Invalid " + operator + " on '" + field + "' (not a number)");
+        }
+        if ((value.isInt32 () || value.isInt64 ()) && operand.isInt64 ()) {
+            long left = value.asNumber ().longValue (), right = operand.asInt64 ().getValue ();
+            return new BsonInt64 (multiply ? (left * right) : (left + right));
+        }
+        double left = value.asNumber ().doubleValue (), right = operand.asNumber ().doubleValue ();
+        return new BsonDouble (multiply ? (left * right) : (left + right));
+    }
+
+    public BagObject get (String queryJson) {
+        return get (queryJson, null);
+    }
+
+    public BagObject get (String queryJson, Projection projection) {
+        return find (buildQuery (queryJson))
+                .findFirst ()
+                .map (entry -> toBagObject (entry.getValue (), projection))
+                .orElse (null);
+    }
+
+    public BagArray getMany (String queryJson) {
+        return getMany (queryJson, null);
+    }
+
+    public BagArray getMany (String queryJson, Projection projection) {
+        BagArray bagArray = new BagArray ();
+        find (buildQuery (queryJson)).forEachOrdered (entry -> bagArray.add (toBagObject (entry.getValue (), projection)));
+        return bagArray;
+    }
+
+    public BagArray getAll () {
+        return getMany (null, null);
+    }
+
+    public BagArray getAll (Projection projection) {
+        return getMany (null, projection);
+    }
+
+    public BagArray getByKeys (String field, BagArray values) {
+        // keys are matched in their string form, which is how bags store them
+        int count = values.getCount ();
+        BsonArray keys = new BsonArray ();
+        for (int i = 0; i < count; ++i) {
+            Object value = values.getObject (i);
+            if (value != null) {
+                keys.add (new BsonString (value.toString ()));
+            }
+        }
+        Map<String, BagObject> found = new HashMap<> (keys.size ());
+        if (! keys.isEmpty ()) {
+            find (new BsonDocument (field, new BsonDocument ("$in", keys))).forEachOrdered (entry -> {
+                BagObject bagObject = toBagObject (entry.getValue (), null);
+                String key = getFieldValue (bagObject, field);
+                if (key != null) {
+                    found.putIfAbsent (key, bagObject);
+                }
+            });
+        }
+
+        // put the results back in the order of the values
+        BagArray bagArray = new BagArray (count);
+        for (int i = 0; i < count; ++i) {
+            Object value = values.getObject (i);
+            BagObject bagObject = (value != null) ? found.get (value.toString ()) : null;
+            bagArray.add ((bagObject != null) ? bagObject : new BagObject ());
+        }
+        return bagArray;
+    }
+
+    /**
+     * get one page of the matching objects, sorted by the sort field and then "_id", with
+     * the same order and resume tokens as BagMongo. the matches are only partially sorted,
+     * keeping just the objects that make the page.
+     * @param queryJson
+     * @param sortField
+     * @param pageSize
+     * @param resumeToken
+     * @return
+     */
+    public Page getPage (String queryJson, String sortField, int pageSize, String resumeToken) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException ("Invalid page size (" + pageSize + ")");
+        }
+        BsonDocument filter = buildQuery (queryJson);
+        if (resumeToken != null) {
+            BsonDocument clause = after (sortField, decodeResumeToken (resumeToken));
+            filter = filter.isEmpty () ? clause : new BsonDocument ("$and", new BsonArray (Arrays.asList (filter, clause)));
+        }
+
+        // keep the first page size objects, and one more to tell if there is another page,
+        // in a heap with the last of them on top
+        Comparator<BsonDocument> order = (left, right) -> {
+            int comparison = QueryMatcher.compare (getSortValue (left, sortField), getSortValue (right, sortField));
+            return (comparison != 0) ? comparison : QueryMatcher.compare (left.get (BagObjectCodec.UNDERSCORE_ID), right.get (BagObjectCodec.UNDERSCORE_ID));
+        };
+        PriorityQueue<BsonDocument> heap = new PriorityQueue<> (pageSize + 2, order.reversed ());
+        find (filter).forEachOrdered (entry -> {
+            heap.add (entry.getValue ());
+            if (heap.size () > pageSize + 1) {
+                heap.poll ();
+            }
+        });
+        boolean more = heap.size () > pageSize;
+        if (more) {
+            heap.poll ();
+        }
+
+        List<BsonDocument> page = new ArrayList<> (heap);
+        page.sort (order);
+        BagArray results = new BagArray (page.size ());
+        for (BsonDocument document : page) {
+            results.add (toBagObject (document, null));
+        }
+        BsonDocument last = page.isEmpty () ? null : page.get (page.size () - 1);
+        return new Page (results, more ? encodeResumeToken (getSortValue (last, sortField), last.get (BagObjectCodec.UNDERSCORE_ID)) : null);
+    }
+
+    public Stream<BagObject> stream (String queryJson) {
+        return find (buildQuery (queryJson)).map (entry -> toBagObject (entry.getValue (), null));
+    }
+
+    public Stream<BagObject> streamAll () {
+        return stream (null);
+    }
+
+    /**
+     * run an aggregation pipeline, compiled the same way as BagMongo compiles it. only the
+     * "$match", "$project", "$sort", "$skip", and "$limit" stages are supported, and
+     * "$project" only includes or excludes fields. the results keep their "_id", like they
+     * do on the server.
+     * @param pipeline
+     * @return
+     */
+    public Stream<BagObject> aggregate (BagArray pipeline) {
+        List<BsonDocument> stages = Pipeline.compile (pipeline);
+
+        // a leading match uses the indexes the same as a query does
+        int first = 0;
+        BsonDocument filter = new BsonDocument ();
+        if ((! stages.isEmpty ()) && stages.get (0).containsKey (MATCH)) {
+            filter = getStageArgument (stages.get (0), MATCH);
+            first = 1;
+        }
+        Stream<BsonDocument> documents = find (filter).map (Map.Entry::getValue);
+        for (BsonDocument stage : stages.subList (first, stages.size ())) {
+            documents = applyStage (documents, stage);
+        }
+        return documents.map (document -> BagObjectCodec.readBagObject (new BsonDocumentReader (document), false));
+    }
+
+    private static Stream<BsonDocument> applyStage (Stream<BsonDocument> documents, BsonDocument stage) {
+        String name = stage.isEmpty () ? "" : stage.getFirstKey ();
+        switch (name) {
+            case MATCH: {
+                BsonDocument filter = getStageArgument (stage, name);
+                return documents.filter (document -> QueryMatcher.matches (document, filter));
+            }
+            case PROJECT: {
+                UnaryOperator<BsonDocument> projection = getProjection (getStageArgument (stage, name));
+                return documents.map (projection);
+            }
+            case SORT:
+                return documents.sorted (getSortOrder (getStageArgument (stage, name)));
+            case SKIP:
+                return documents.skip (getStageCount (stage, name));
+            case LIMIT:
+                return documents.limit (getStageCount (stage, name));
+        }
+        throw new IllegalArgumentException ("Unsupported pipeline stage (" + stage.toJson () + ")");
+    }
+
+    private static BsonDocument getStageArgument (BsonDocument stage, String name) {
+        BsonValue argument = stage.get (name);
+        if ((stage.size () != 1) || (! argument.isDocument ())) {
+            throw new IllegalArgumentException ("Invalid " + name + " stage (" + stage.toJson () + ")");
+        }
+        return argument.asDocument ();
+    }
+
+    private static long getStageCount (BsonDocument stage, String name) {
+        BsonValue argument = stage.get (name);
+        if ((stage.size () != 1) || (! argument.isNumber ()) || (argument.asNumber ().longValue () < 0)) {
+            throw new IllegalArgumentException ("Invalid " + name + " stage (" + stage.toJson () + ")");
+        }
+        return argument.asNumber ().longValue ();
+    }
+
+    private static UnaryOperator<BsonDocument> getProjection (BsonDocument fields) {
+        // fields are included with 1 or true, or excluded with 0 or false, and "_id" is kept
+        // unless it is excluded itself, the way the server does it
+        List<String> included = new ArrayList<> ();
+        List<String> excluded = new ArrayList<> ();
+        for (Map.Entry<String, BsonValue> entry : fields.entrySet ()) {
+            BsonValue value = entry.getValue ();
+            if (value.isBoolean () || value.isNumber ()) {
+                boolean include = value.isBoolean () ? value.asBoolean ().getValue () : (value.asNumber ().doubleValue () != 0);
+                (include ? included : excluded).add (entry.getKey ());
+            } else {
+                throw new IllegalArgumentException ("Unsupported projection of '" + entry.getKey () + "' (" + fields.toJson () + ")");
+            }
+        }
+        boolean keepId = ! excluded.remove (BagObjectCodec.UNDERSCORE_ID);
+        included.remove (BagObjectCodec.UNDERSCORE_ID);
+        if (! included.isEmpty ()) {
+            if (! excluded.isEmpty ()) {
+                throw new IllegalArgumentException ("Invalid projection, fields can't be both included and excluded (" + fields.toJson () + ")");
+            }
+            if (keepId) {
+                included.add (BagObjectCodec.UNDERSCORE_ID);
+            }
+            return document -> include (document, included);
+        }
+        if (! keepId) {
+            excluded.add (BagObjectCodec.UNDERSCORE_ID);
+        }
+        return document -> exclude (document, excluded);
+    }
+
+    private static Comparator<BsonDocument> getSortOrder (BsonDocument fields) {
+        Comparator<BsonDocument> order = null;
+        for (Map.Entry<String, BsonValue> entry : fields.entrySet ()) {
+            String field = entry.getKey ();
+            BsonValue direction = entry.getValue ();
+            if ((! direction.isNumber ()) || (Math.abs (direction.asNumber ().intValue ()) != 1)) {
+                throw new IllegalArgumentException ("Invalid sort direction for '" + field + "' (" + fields.toJson () + ")");
+            }
+            Comparator<BsonDocument> fieldOrder = (left, right) -> QueryMatcher.compare (getFirstValue (left, field), getFirstValue (right, field));
+            fieldOrder = (direction.asNumber ().intValue () < 0) ? fieldOrder.reversed () : fieldOrder;
+            order = (order != null) ? order.thenComparing (fieldOrder) : fieldOrder;
+        }
+        if (order == null) {
+            throw new IllegalArgumentException ("Invalid sort (" + fields.toJson () + ")");
+        }
+        return order;
+    }
+
+    public synchronized BagDbInterface delete (String queryJson) {
+        find (buildQuery (queryJson)).findFirst ().ifPresent (entry -> remove (entry.getKey (), entry.getValue ()));
+        return this;
+    }
+
+    public synchronized BagDbInterface deleteMany (String queryJson) {
+        List<Map.Entry<Long, BsonDocument>> found = find (buildQuery (queryJson)).collect (Collectors.toList ());
+        for (Map.Entry<Long, BsonDocument> match : found) {
+            remove (match.getKey (), match.getValue ());
+        }
+        return this;
+    }
+
+    public synchronized BagDbInterface deleteAll () {
+        objects.clear ();
+        for (Index index : indexes) {
+            index.entries.clear ();
+        }
+        count.set (0);
+        return this;
+    }
+
+    /**
+     * write every object to the snapshot file, through a temporary file that replaces it,
+     * so a failure leaves the last snapshot as it was
+     * @param path
+     * @return the number of objects written
+     * @throws IOException
+     */
+    public long saveSnapshot (Path path) throws IOException {
+        Path temporaryPath = path.resolveSibling (path.getFileName () + ".tmp");
+        long written = 0;
+        try (FileChannel channel = FileChannel.open (temporaryPath, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (BsonDocument document : objects.values ()) {
+                ByteBuffer bytes = new RawBsonDocument (document, BSON_DOCUMENT_CODEC).getByteBuffer ().asNIO ();
+                while (bytes.hasRemaining ()) {
+                    channel.write (bytes);
+                }
+                ++written;
+            }
+            channel.force (true);
+        }
+        Files.move (temporaryPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info ("Saved " + written + " objects from '" + getName () + "' to '" + path + "'");
+        return written;
+    }
+
+    /**
+     * put every object in a snapshot file, keeping the "_id" each one was saved with
+     * @param path
+     * @return the number of objects read
+     * @throws IOException
+     */
+    public long loadSnapshot (Path path) throws IOException {
+        long read = 0;
+        DecoderContext decoderContext = DecoderContext.builder ().build ();
+        try (InputStream inputStream = new BufferedInputStream (Files.newInputStream (path));
+             DataInputStream input = new DataInputStream (inputStream)) {
+            byte[] sizeBytes = new byte[4];
+            while (input.read (sizeBytes, 0, 1) == 1) {
+                input.readFully (sizeBytes, 1, 3);
+                int size = ByteBuffer.wrap (sizeBytes).order (ByteOrder.LITTLE_ENDIAN).getInt ();
+                if (size < 5) {
+                    throw new IOException ("Invalid BSON document size (" + size + ") at document " + read);
+                }
+                byte[] bytes = Arrays.copyOf (sizeBytes, size);
+                try {
+                    input.readFully (bytes, 4, size - 4);
+                } catch (EOFException exception) {
+                    throw new IOException ("Truncated BSON document at document " + read, exception);
+                }
+                insert (BSON_DOCUMENT_CODEC.decode (new BsonBinaryReader (ByteBuffer.wrap (bytes)), decoderContext));
+                ++read;
+            }
+        }
+        log.info ("Loaded " + read + " objects into '" + getName () + "' from '" + path + "'");
+        return read;
+    }
+
+    public void drop () throws Exception {
+        // nothing is left to save, so the snapshot goes too
+        deleteAll ();
+        if (snapshotPath != null) {
+            Files.deleteIfExists (snapshotPath);
+            snapshotPath = null;
+        }
+        log.info ("Dropped '" + getName () + "'" );
+        close ();
+    }
+
+    @Override
+    public void close () throws Exception {
+        if (closed.compareAndSet (false, true) && (snapshotPath != null)) {
+            saveSnapshot (snapshotPath);
+        }
+    }
+
+    public long getCount () {
+        return count.get ();
+    }
+
+    public long getCount (String queryJson) {
+        return (queryJson != null) ? find (buildQuery (queryJson)).count () : getCount ();
+    }
+
+    public String getName () {
+        return name;
+    }
+}
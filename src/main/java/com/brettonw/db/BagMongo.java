@@ -2,46 +2,252 @@ package com.brettonw.db;
 
 import com.brettonw.bag.*;
 import com.brettonw.bag.formats.MimeType;
-import com.mongodb.Block;
+import com.mongodb.MongoBulkWriteException;
 import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
 import com.mongodb.MongoClientURI;
+import com.mongodb.MongoException;
+import com.mongodb.MongoExecutionTimeoutException;
+import com.mongodb.MongoNodeIsRecoveringException;
+import com.mongodb.MongoNotPrimaryException;
+import com.mongodb.MongoServerException;
+import com.mongodb.MongoSocketException;
+import com.mongodb.MongoSocketReadTimeoutException;
+import com.mongodb.MongoTimeoutException;
+import com.mongodb.WriteConcern;
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
 import com.mongodb.client.FindIterable;
 import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
 import com.mongodb.client.MongoDatabase;
-import com.mongodb.client.model.Filters;
+import com.mongodb.client.MongoIterable;
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.CountOptions;
+import com.mongodb.client.model.EstimatedDocumentCountOptions;
+import com.mongodb.client.model.FindOneAndDeleteOptions;
+import com.mongodb.client.model.IndexOptions;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOneModel;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.WriteModel;
+import com.mongodb.client.result.DeleteResult;
+import com.mongodb.client.result.UpdateResult;
 import lombok.Getter;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWrapper;
+import org.bson.BsonDouble;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonNull;
+import org.bson.BsonString;
+import org.bson.BsonType;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
 import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
 
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BagMongo implements BagDbInterface, AutoCloseable {
     private static final Logger log = LogManager.getLogger (BagMongo.class);
 
-    private static final String UNDERSCORE_ID = "_id";
     private static final String LOCALHOST_DEFAULT = "mongodb://localhost:27017";
 
     public static final String CONNECTION_STRING = "connection-string";
     public static final String DATABASE_NAME = "database-name";
     public static final String COLLECTION_NAME = "collection-name";
     public static final String COLLECTION_NAMES = "collection-names";
+    public static final String WRITE_BATCH_SIZE = "write-batch-size";
+    public static final String ORDERED_WRITES = "ordered-writes";
+    public static final String WRITE_CONCERN = "write-concern";
+    public static final String READ_BATCH_SIZE = "read-batch-size";
+    public static final String QUERY_CACHE_SIZE = "query-cache-size";
+    public static final String INDEXES = "indexes";
+    public static final String INDEX_KEYS = "keys";
+    public static final String INDEX_UNIQUE = "unique";
+    public static final String INDEX_NAME = "name";
+    public static final String EXPLAIN_SAMPLE_RATE = "explain-sample-rate";
+    public static final String MIN_POOL_SIZE = "min-pool-size";
+    public static final String MAX_POOL_SIZE = "max-pool-size";
+    public static final String WAIT_QUEUE_MULTIPLE = "wait-queue-multiple";
+    public static final String MAX_WAIT_TIME = "max-wait-time-ms";
+    public static final String MAX_IDLE_TIME = "max-idle-time-ms";
+    public static final String CONNECT_TIMEOUT = "connect-timeout-ms";
+    public static final String SOCKET_TIMEOUT = "socket-timeout-ms";
+    public static final String SERVER_SELECTION_TIMEOUT = "server-selection-timeout-ms";
+    public static final String ALLOW_DISK_USE = "allow-disk-use";
+    public static final String IMPORT_PARALLELISM = "import-parallelism";
+    public static final String LAZY_DECODING = "lazy-decoding";
+    public static final String SCAN_PARALLELISM = "scan-parallelism";
+    public static final String KEY_BATCH_SIZE = "key-batch-size";
+    public static final String WRITE_BEHIND_QUEUE_SIZE = "write-behind-queue-size";
+    public static final String WRITE_BEHIND_DELAY = "write-behind-delay-ms";
+    public static final String WRITE_BEHIND_OFFER_TIMEOUT = "write-behind-offer-timeout-ms";
+    public static final String COUNT_MODE = "count-mode";
+    public static final String COUNT_REFRESH_INTERVAL = "count-refresh-interval-ms";
+    public static final String OPERATION_TIMEOUT = "operation-timeout-ms";
+    public static final String RETRY_COUNT = "retry-count";
+    public static final String RETRY_DELAY = "retry-delay-ms";
+    public static final String RETRY_WRITES = "retry-writes";
+    public static final String CIRCUIT_BREAKER_THRESHOLD = "circuit-breaker-threshold";
+    public static final String CIRCUIT_BREAKER_OPEN_TIME = "circuit-breaker-open-ms";
+    public static final String LARGE_VALUE_SIZE = "large-value-size";
 
-    private static final Map<MongoClientURI, MongoClient> MONGO_CLIENTS = new HashMap<> ();
+    private static final Bson EXCLUDE_ID = Projections.excludeId ();
 
+    // the names of the last sort value and "_id" in a resume token
+    private static final String PAGE_SORT_VALUE = "v";
+    private static final String PAGE_ID = "i";
+
+    static final String SET = "$set";
+    static final String UNSET = "$unset";
+    static final String INC = "$inc";
+    static final String MUL = "$mul";
+    private static final ReplaceOptions UPSERT_OPTIONS = new ReplaceOptions ().upsert (true);
+
+    private static final int WRITE_BATCH_SIZE_DEFAULT = 1000;
+    private static final int QUERY_CACHE_SIZE_DEFAULT = 1000;
+    private static final int KEY_BATCH_SIZE_DEFAULT = 100;
+    private static final int SCAN_SAMPLES_PER_PARTITION = 16;
+    private static final int IMPORT_PARALLELISM_DEFAULT = 4;
+    private static final int WRITE_BEHIND_DELAY_DEFAULT = 100;
+    private static final int WRITE_BEHIND_OFFER_TIMEOUT_DEFAULT = 1000;
+    private static final int COUNT_REFRESH_INTERVAL_DEFAULT = 10000;
+    private static final int RETRY_DELAY_DEFAULT = 50;
+    private static final int RETRY_DELAY_MAX = 1000;
+    private static final int CIRCUIT_BREAKER_OPEN_TIME_DEFAULT = 5000;
+    private static final int SOCKET_TIMEOUT_MARGIN = 1000;
+
+    // clients are shared by every BagMongo connected with the same URI, and the last one to
+    // close shuts the client (and its connection pool) down. the client is a future, so the
+    // connect that creates it can wait for the server without holding up the map
+    private static class ClientReference {
+        final CompletableFuture<MongoClient> mongoClient;
+        int referenceCount;
+
+        ClientReference (CompletableFuture<MongoClient> mongoClient, int referenceCount) {
+            this.mongoClient = mongoClient;
+            this.referenceCount = referenceCount;
+        }
+    }
+
+    private static final Map<MongoClientURI, ClientReference> MONGO_CLIENTS = new ConcurrentHashMap<> ();
+
+    // key lookups and parallel scans are split into parts that run concurrently on a shared
+    // pool, the connection pool is what really limits how many are in flight
+    private static final ExecutorService READ_EXECUTOR = Executors.newCachedThreadPool (AsyncBagDb.daemonThreadFactory ("bag-mongo-read"));
+
+    private MongoClientURI clientUri;
+    private AtomicBoolean closed;
     @Getter private String databaseName;
     @Getter private String collectionName;
-    private MongoCollection<Document> collection;
+    private MongoDatabase database;
+    private MongoCollection<BagObject> collection;
+    @Getter private int writeBatchSize;
+    @Getter private boolean orderedWrites;
+    @Getter private int readBatchSize;
+    @Getter private int keyBatchSize;
+    @Getter private boolean allowDiskUse;
+    @Getter private int scanParallelism;
+    @Getter private boolean lazyDecoding;
+    @Getter private int importParallelism;
+    @Getter private CountMode countMode;
+    @Getter private long countRefreshIntervalMillis;
+    private AtomicLong cachedCount;
+    private AtomicLong cachedCountRefreshTime;
+    private AtomicBoolean cachedCountRefreshing;
+    @Getter private long operationTimeoutMillis;
+    @Getter private int retryCount;
+    @Getter private long retryDelayMillis;
+    @Getter private CircuitBreaker circuitBreaker;
+    private LargeValueStore largeValueStore;
+    private QueryCache queryCache;
+    private ExplainSampler explainSampler;
+    private BagMongoMetrics metrics;
+    private WriteBehindBuffer writeBehindBuffer;
+    private List<ChangeSubscription> changeSubscriptions;
 
-    private BagMongo (String databaseName, String collectionName, MongoCollection<Document> collection) {
+    private BagMongo (MongoClientURI clientUri, String databaseName, String collectionName, MongoDatabase database) {
+        this.clientUri = clientUri;
+        closed = new AtomicBoolean (false);
+        changeSubscriptions = new CopyOnWriteArrayList<> ();
         this.databaseName = databaseName;
         this.collectionName = collectionName;
-        this.collection = collection;
+        this.database = database;
+        metrics = new BagMongoMetrics (getName ());
+
+        // the collection is bound to bags directly, with the bag codecs ahead of the driver
+        // defaults, so reads and writes never go through a JSON string. the codecs are per
+        // collection so they can report their time and sizes in its metrics.
+        collection = database
+                .getCollection (collectionName, BagObject.class)
+                .withCodecRegistry (getCodecRegistry (false));
+        writeBatchSize = WRITE_BATCH_SIZE_DEFAULT;
+        orderedWrites = true;
+        readBatchSize = 0;
+        keyBatchSize = KEY_BATCH_SIZE_DEFAULT;
+        scanParallelism = 1;
+        importParallelism = Math.min (Runtime.getRuntime ().availableProcessors (), IMPORT_PARALLELISM_DEFAULT);
+        queryCache = new QueryCache (QUERY_CACHE_SIZE_DEFAULT);
+        countMode = CountMode.ESTIMATED;
+        countRefreshIntervalMillis = COUNT_REFRESH_INTERVAL_DEFAULT;
+        cachedCount = new AtomicLong ();
+        cachedCountRefreshTime = new AtomicLong ();
+        cachedCountRefreshing = new AtomicBoolean (false);
+        retryDelayMillis = RETRY_DELAY_DEFAULT;
+        circuitBreaker = new CircuitBreaker (getName (), 0, CIRCUIT_BREAKER_OPEN_TIME_DEFAULT, metrics);
+        explainSampler = new ExplainSampler (database, 0);
         log.info ("Connected to '" + getName () + "'");
     }
 
+    private CodecRegistry getCodecRegistry (boolean lazy) {
+        return getCodecRegistry (lazy, true);
+    }
+
+    private CodecRegistry getCodecRegistry (boolean lazy, boolean skipId) {
+        return CodecRegistries.fromRegistries (
+                CodecRegistries.fromProviders (new BagCodecProvider (metrics, lazy, largeValueStore, skipId)),
+                database.getCodecRegistry ()
+        );
+    }
+
     /**
      *
      * @param clientUri
@@ -55,23 +261,10 @@ public class BagMongo implements BagDbInterface, AutoCloseable {
             if ((collectionNames != null) && (collectionNames.length > 0)) {
                 // the first step is to get the clients, BUT... clients are retained in a hash for
                 // pooling purposes, so the actual first step is to see if we've already connected
-                // to this client.
-                MongoClient mongoClient = MONGO_CLIENTS.get (clientUri);
+                // to this client. every collection holds a reference to the client.
+                MongoClient mongoClient = acquireClient (clientUri, collectionNames.length);
                 if (mongoClient == null) {
-                    try {
-                        // this is our first connection to the given client, so create the connection,
-                        // and then check that we can actually reach it by trying to get its address.
-                        // if that fails, we punt and return null...
-                        mongoClient = new MongoClient (clientUri);
-                        mongoClient.getAddress ();
-                    } catch (Exception exception) {
-                        log.error ("Failed to connect to '" + clientUri + "'", exception);
-                        return null;
-                    }
-
-                    // we successfully connected to a valid mongo client, so retain this client
-                    // for future use...
-                    MONGO_CLIENTS.put (clientUri, mongoClient);
+                    return null;
                 }
 
                 // the next step is to get the database, and then the individual collections.
@@ -84,8 +277,7 @@ public class BagMongo implements BagDbInterface, AutoCloseable {
                 MongoDatabase database = mongoClient.getDatabase (databaseName);
                 Map<String, BagMongo> collections = new HashMap<> (collectionNames.length);
                 for (String collectionName : collectionNames) {
-                    MongoCollection<Document> collection = database.getCollection (collectionName);
-                    BagMongo bagMongo = new BagMongo (databaseName, collectionName, collection);
+                    BagMongo bagMongo = new BagMongo (clientUri, databaseName, collectionName, database);
                     collections.put (collectionName, bagMongo);
                 }
                 return collections;
@@ -99,6 +291,59 @@ public class BagMongo implements BagDbInterface, AutoCloseable {
         return null;
     }
 
+    private static MongoClient acquireClient (MongoClientURI clientUri, int referenceCount) {
+        // compute is atomic for each URI, so concurrent connects share a single client. it
+        // only installs the reference, the client is created after the map is released
+        CompletableFuture<MongoClient> created = new CompletableFuture<> ();
+        ClientReference clientReference = MONGO_CLIENTS.compute (clientUri, (uri, existing) -> {
+            if (existing != null) {
+                existing.referenceCount += referenceCount;
+                return existing;
+            }
+            return new ClientReference (created, referenceCount);
+        });
+
+        if (clientReference.mongoClient == created) {
+            // this is our first connection to the given client, so create the connection,
+            // and then check that we can actually reach it by trying to get its address.
+            // if that fails, we punt and return null, as does everyone waiting on it...
+            MongoClient mongoClient = null;
+            try {
+                mongoClient = new MongoClient (clientUri);
+                mongoClient.getAddress ();
+                created.complete (mongoClient);
+            } catch (Exception exception) {
+                log.error ("Failed to connect to '" + clientUri + "'", exception);
+                if (mongoClient != null) {
+                    mongoClient.close ();
+                }
+                MONGO_CLIENTS.remove (clientUri, clientReference);
+                created.complete (null);
+            }
+        }
+        return clientReference.mongoClient.join ();
+    }
+
+    private static void releaseClient (MongoClientURI clientUri) {
+        // the client is closed after it is out of the map, rather than while holding it
+        MongoClient[] released = new MongoClient[1];
+        MONGO_CLIENTS.computeIfPresent (clientUri, (uri, clientReference) -> {
+            if (--clientReference.referenceCount > 0) {
+                return clientReference;
+            }
+            released[0] = clientReference.mongoClient.getNow (null);
+            return null;
+        });
+        if (released[0] != null) {
+            released[0].close ();
+            log.info ("Closed client for '" + clientUri + "'");
+        }
+    }
+
+    static boolean isClientOpen (MongoClientURI clientUri) {
+        return MONGO_CLIENTS.containsKey (clientUri);
+    }
+
     /**
      *
      * @param connectionString
@@ -107,9 +352,13 @@ public class BagMongo implements BagDbInterface, AutoCloseable {
      * @return
      */
     public static Map<String, BagMongo> connect (String connectionString, String databaseName, String... collectionNames) {
+        return connect (connectionString, MongoClientOptions.builder (), databaseName, collectionNames);
+    }
+
+    private static Map<String, BagMongo> connect (String connectionString, MongoClientOptions.Builder clientOptions, String databaseName, String... collectionNames) {
         MongoClientURI mongoClientUri = null;
         try {
-            mongoClientUri = new MongoClientURI (connectionString);
+            mongoClientUri = new MongoClientURI (connectionString, clientOptions);
         } catch (Exception exception) {
             log.error ("Failed to connect to '" + connectionString + "'", exception);
             return null;
@@ -174,122 +423,1469 @@ public class BagMongo implements BagDbInterface, AutoCloseable {
                 log.warn ("Using '" + DATABASE_NAME + "' (" + databaseName + ") as '" + COLLECTION_NAME + "'");
             }
 
-            // and finally, get the connection string, or use localhost as the default
+            // and finally, get the connection string, or use localhost as the default, along
+            // with any connection pool settings (settings in the string take precedence)
             String connectionString = configuration.has (CONNECTION_STRING) ? configuration.getString (CONNECTION_STRING) : LOCALHOST_DEFAULT;
-            return connect (connectionString, databaseName, collectionNames);
+            Map<String, BagMongo> collections = connect (connectionString, getClientOptions (configuration), databaseName, collectionNames);
+            if (collections != null) {
+                for (BagMongo bagMongo : collections.values ()) {
+                    bagMongo.configure (configuration);
+                }
+            }
+            return collections;
         } else {
             log.error ("Invalid configuration (missing '" + DATABASE_NAME + "')");
         }
         return null;
     }
 
+    private static Integer getInteger (BagObject configuration, String key, int minimum) {
+        // returns null if the key isn't present or the value isn't valid
+        if (configuration.has (key)) {
+            Integer value = configuration.getInteger (key);
+            if ((value != null) && (value >= minimum)) {
+                return value;
+            }
+            log.warn ("Ignoring invalid '" + key + "' (" + configuration.getString (key) + ")");
+        }
+        return null;
+    }
+
+    private static MongoClientOptions.Builder getClientOptions (BagObject configuration) {
+        MongoClientOptions.Builder clientOptions = MongoClientOptions.builder ();
+        Integer value;
+        if ((value = getInteger (configuration, MIN_POOL_SIZE, 0)) != null) {
+            clientOptions.minConnectionsPerHost (value);
+        }
+        if ((value = getInteger (configuration, MAX_POOL_SIZE, 1)) != null) {
+            clientOptions.connectionsPerHost (value);
+        }
+        if ((value = getInteger (configuration, WAIT_QUEUE_MULTIPLE, 1)) != null) {
+            clientOptions.threadsAllowedToBlockForConnectionMultiplier (value);
+        }
+        if ((value = getInteger (configuration, MAX_WAIT_TIME, 0)) != null) {
+            clientOptions.maxWaitTime (value);
+        }
+        if ((value = getInteger (configuration, MAX_IDLE_TIME, 0)) != null) {
+            clientOptions.maxConnectionIdleTime (value);
+        }
+        if ((value = getInteger (configuration, CONNECT_TIMEOUT, 0)) != null) {
+            clientOptions.connectTimeout (value);
+        }
+        if ((value = getInteger (configuration, SOCKET_TIMEOUT, 0)) != null) {
+            clientOptions.socketTimeout (value);
+        }
+        if ((value = getInteger (configuration, SERVER_SELECTION_TIMEOUT, 0)) != null) {
+            clientOptions.serverSelectionTimeout (value);
+        }
+        if (configuration.has (RETRY_WRITES)) {
+            // the driver retries single writes once after a stepdown or a network error,
+            // which is safe even for inserts (it needs a replica set)
+            clientOptions.retryWrites (Boolean.TRUE.equals (configuration.getBoolean (RETRY_WRITES)));
+        }
+
+        // with an operation timeout, the socket and server selection timeouts default to
+        // about the same, so a read hits its limit on the server first, and a write or a
+        // missing primary can't hold a caller much longer than that
+        if (configuration.has (OPERATION_TIMEOUT)) {
+            Integer operationTimeout = configuration.getInteger (OPERATION_TIMEOUT);
+            if ((operationTimeout != null) && (operationTimeout > 0)) {
+                if (! configuration.has (SOCKET_TIMEOUT)) {
+                    clientOptions.socketTimeout (operationTimeout + SOCKET_TIMEOUT_MARGIN);
+                }
+                if (! configuration.has (SERVER_SELECTION_TIMEOUT)) {
+                    clientOptions.serverSelectionTimeout (operationTimeout);
+                }
+            }
+        }
+        return clientOptions;
+    }
+
+    private void configure (BagObject configuration) {
+        // the write settings are optional, and apply to every collection in the configuration
+        Integer value;
+        if ((value = getInteger (configuration, WRITE_BATCH_SIZE, 1)) != null) {
+            writeBatchSize = value;
+        }
+        if (configuration.has (ORDERED_WRITES)) {
+            orderedWrites = Boolean.TRUE.equals (configuration.getBoolean (ORDERED_WRITES));
+        }
+        if ((value = getInteger (configuration, READ_BATCH_SIZE, 1)) != null) {
+            readBatchSize = value;
+        }
+        if (configuration.has (ALLOW_DISK_USE)) {
+            allowDiskUse = Boolean.TRUE.equals (configuration.getBoolean (ALLOW_DISK_USE));
+        }
+        if ((value = getInteger (configuration, IMPORT_PARALLELISM, 1)) != null) {
+            importParallelism = value;
+        }
+        if ((value = getInteger (configuration, LARGE_VALUE_SIZE, 1)) != null) {
+            // string values longer than this are kept in GridFS, see LargeValueStore
+            largeValueStore = new LargeValueStore (database, collectionName, value);
+            collection = collection.withCodecRegistry (getCodecRegistry (lazyDecoding));
+        }
+        if (configuration.has (LAZY_DECODING)) {
+            // objects that are read keep their raw BSON, and decode each field on first use
+            lazyDecoding = Boolean.TRUE.equals (configuration.getBoolean (LAZY_DECODING));
+            collection = collection.withCodecRegistry (getCodecRegistry (lazyDecoding));
+        }
+        if ((value = getInteger (configuration, SCAN_PARALLELISM, 1)) != null) {
+            scanParallelism = value;
+        }
+        if ((value = getInteger (configuration, KEY_BATCH_SIZE, 1)) != null) {
+            keyBatchSize = value;
+        }
+        if ((value = getInteger (configuration, QUERY_CACHE_SIZE, 0)) != null) {
+            queryCache = new QueryCache (value);
+        }
+        if (configuration.has (COUNT_MODE)) {
+            CountMode mode = CountMode.fromName (configuration.getString (COUNT_MODE));
+            if (mode != null) {
+                countMode = mode;
+            } else {
+                log.warn ("Ignoring invalid '" + COUNT_MODE + "' (" + configuration.getString (COUNT_MODE) + ")");
+            }
+        }
+        if ((value = getInteger (configuration, COUNT_REFRESH_INTERVAL, 0)) != null) {
+            countRefreshIntervalMillis = value;
+        }
+        if ((value = getInteger (configuration, OPERATION_TIMEOUT, 0)) != null) {
+            operationTimeoutMillis = value;
+        }
+        if ((value = getInteger (configuration, RETRY_COUNT, 0)) != null) {
+            retryCount = value;
+        }
+        if ((value = getInteger (configuration, RETRY_DELAY, 0)) != null) {
+            retryDelayMillis = value;
+        }
+        if ((value = getInteger (configuration, CIRCUIT_BREAKER_THRESHOLD, 0)) != null) {
+            Integer openTime = getInteger (configuration, CIRCUIT_BREAKER_OPEN_TIME, 0);
+            circuitBreaker = new CircuitBreaker (getName (), value, (openTime != null) ? openTime : CIRCUIT_BREAKER_OPEN_TIME_DEFAULT, metrics);
+        }
+        if (configuration.has (WRITE_CONCERN)) {
+            WriteConcern writeConcern = getWriteConcern (configuration.getString (WRITE_CONCERN));
+            collection = collection.withWriteConcern (writeConcern);
+            log.info ("Using write concern " + writeConcern + " for '" + getName () + "'");
+        }
+        if (configuration.has (EXPLAIN_SAMPLE_RATE)) {
+            Double sampleRate = configuration.getDouble (EXPLAIN_SAMPLE_RATE);
+            if ((sampleRate != null) && (sampleRate >= 0) && (sampleRate <= 1)) {
+                explainSampler = new ExplainSampler (database, sampleRate);
+            } else {
+                log.warn ("Ignoring invalid '" + EXPLAIN_SAMPLE_RATE + "' (" + configuration.getString (EXPLAIN_SAMPLE_RATE) + ")");
+            }
+        }
+
+        if ((value = getInteger (configuration, WRITE_BEHIND_QUEUE_SIZE, 1)) != null) {
+            Integer delay = getInteger (configuration, WRITE_BEHIND_DELAY, 0);
+            Integer offerTimeout = getInteger (configuration, WRITE_BEHIND_OFFER_TIMEOUT, 0);
+            enableWriteBehind (value,
+                    (delay != null) ? delay : WRITE_BEHIND_DELAY_DEFAULT,
+                    (offerTimeout != null) ? offerTimeout : WRITE_BEHIND_OFFER_TIMEOUT_DEFAULT);
+        }
+
+        // indexes are declared per collection, as an array of index descriptions under the
+        // collection name, e.g. "indexes": { "users": [ { "keys": ["name", "-age"], "unique": true } ] }
+        BagObject indexes = configuration.getBagObject (INDEXES);
+        if (indexes != null) {
+            BagArray collectionIndexes = indexes.getBagArray (collectionName);
+            if (collectionIndexes != null) {
+                for (int i = 0, end = collectionIndexes.getCount (); i < end; ++i) {
+                    createIndex (collectionIndexes.getBagObject (i));
+                }
+            }
+        }
+    }
+
+    private void createIndex (BagObject index) {
+        // index keys are an array of field names so the order of a compound index is kept,
+        // a leading "-" on a field name makes that field descending
+        BagArray keys = (index != null) ? index.getBagArray (INDEX_KEYS) : null;
+        if ((keys != null) && (keys.getCount () > 0)) {
+            BsonDocument keysDocument = new BsonDocument ();
+            for (int i = 0, end = keys.getCount (); i < end; ++i) {
+                String key = keys.getString (i);
+                if (key.startsWith ("-")) {
+                    keysDocument.append (key.substring (1), new BsonInt32 (-1));
+                } else {
+                    keysDocument.append (key, new BsonInt32 (1));
+                }
+            }
+            IndexOptions indexOptions = new IndexOptions ()
+                    .unique (Boolean.TRUE.equals (index.getBoolean (INDEX_UNIQUE)));
+            if (index.has (INDEX_NAME)) {
+                indexOptions.name (index.getString (INDEX_NAME));
+            }
+
+            // creating an index that already exists with the same options does nothing
+            try {
+                String indexName = collection.createIndex (keysDocument, indexOptions);
+                log.info ("Index '" + indexName + "' on '" + getName () + "'");
+            } catch (MongoException exception) {
+                log.error ("Failed to create index " + keysDocument.toJson () + " on '" + getName () + "'", exception);
+            }
+        } else {
+            log.error ("Invalid index (missing '" + INDEX_KEYS + "') on '" + getName () + "'");
+        }
+    }
+
+    /**
+     *
+     * @return the descriptions of the indexes on the collection
+     */
+    public BagArray getIndexes () {
+        BagArray bagArray = new BagArray ();
+        for (BagObject index : collection.listIndexes (BagObject.class)) {
+            bagArray.add (index);
+        }
+        return bagArray;
+    }
+
+    private static WriteConcern getWriteConcern (String name) {
+        // named concerns ("majority", "journaled", "unacknowledged", etc.) come first, then
+        // a count of servers, and anything else is taken to be a tag set name
+        WriteConcern writeConcern = WriteConcern.valueOf (name);
+        if (writeConcern == null) {
+            try {
+                writeConcern = new WriteConcern (Integer.parseInt (name));
+            } catch (NumberFormatException exception) {
+                writeConcern = new WriteConcern (name);
+            }
+        }
+        return writeConcern;
+    }
+
+    /**
+     *
+     * @return the per-operation latencies and counts for this collection
+     */
+    public BagMongoMetrics getMetrics () {
+        return metrics;
+    }
+
+    private <T> T guard (boolean retryable, LongFunction<T> operation) {
+        // fail fast while the circuit breaker is open. otherwise each attempt gets what is
+        // left of the operation timeout as its limit on the server (0 is no limit), and an
+        // operation that is safe to repeat is retried after a failure that is likely to pass
+        // (a stepdown, a dropped connection), as long as the retry starts inside the timeout
+        long startTime = System.nanoTime ();
+        for (int attempt = 0; ; ++attempt) {
+            if (! circuitBreaker.allow ()) {
+                metrics.recordRejected ();
+                throw new CircuitOpenException ("Circuit breaker for '" + getName () + "' is open");
+            }
+            long maxTimeMillis = (operationTimeoutMillis > 0) ? Math.max (operationTimeoutMillis - TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - startTime), 1) : 0;
+            try {
+                T result = operation.apply (maxTimeMillis);
+                circuitBreaker.recordSuccess ();
+                return result;
+            } catch (MongoException exception) {
+                // only a reply from the server counts as the server working, while timeouts
+                // and failures to connect count against it
+                if (isTimeout (exception)) {
+                    metrics.recordTimeout ();
+                    circuitBreaker.recordFailure ();
+                } else if (exception instanceof MongoSocketException) {
+                    circuitBreaker.recordFailure ();
+                } else if (exception instanceof MongoServerException) {
+                    circuitBreaker.recordSuccess ();
+                } else {
+                    circuitBreaker.recordInconclusive ();
+                }
+                long delay = (retryable && (attempt < retryCount) && isRetryable (exception)) ? getRetryDelay (attempt, startTime) : -1;
+                if (delay < 0) {
+                    throw exception;
+                }
+                metrics.recordRetry ();
+                log.warn ("Retrying on '" + getName () + "' in " + delay + " ms (" + exception.getMessage () + ")");
+                try {
+                    Thread.sleep (delay);
+                } catch (InterruptedException interruptedException) {
+                    Thread.currentThread ().interrupt ();
+                    throw exception;
+                }
+            } catch (RuntimeException exception) {
+                // the server wasn't asked, or its answer couldn't be used
+                circuitBreaker.recordInconclusive ();
+                throw exception;
+            }
+        }
+    }
+
+    private static boolean isTimeout (MongoException exception) {
+        return (exception instanceof MongoExecutionTimeoutException) ||
+                (exception instanceof MongoSocketReadTimeoutException) ||
+                (exception instanceof MongoTimeoutException);
+    }
+
+    private static boolean isRetryable (MongoException exception) {
+        // running out of time on the server would just happen again
+        return (exception instanceof MongoSocketException) ||
+                (exception instanceof MongoNotPrimaryException) ||
+                (exception instanceof MongoNodeIsRecoveringException) ||
+                (exception instanceof MongoTimeoutException);
+    }
+
+    private long getRetryDelay (int attempt, long startTime) {
+        // the delay is random up to the backoff, so callers that failed together don't all
+        // retry together, and -1 if the retry wouldn't start before the timeout
+        long backoff = Math.min (retryDelayMillis << Math.min (attempt, 16), RETRY_DELAY_MAX);
+        long delay = ThreadLocalRandom.current ().nextLong (backoff + 1);
+        if ((operationTimeoutMillis > 0) && ((TimeUnit.NANOSECONDS.toMillis (System.nanoTime () - startTime) + delay) >= operationTimeoutMillis)) {
+            return -1;
+        }
+        return delay;
+    }
+
+    /**
+     * send puts through a bounded queue that is written in batches of the write batch size,
+     * either when a batch fills up or when its oldest put has waited for the maximum delay.
+     * puts that are still queued are not visible to reads until they are flushed.
+     * @param queueSize the most puts that can be waiting to be written
+     * @param maxDelayMillis how long a put can wait before its batch is written
+     * @param offerTimeoutMillis how long a put waits for room in a full queue before it
+     *                           fails, 0 fails immediately
+     * @return
+     */
+    public synchronized BagMongo enableWriteBehind (int queueSize, long maxDelayMillis, long offerTimeoutMillis) {
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.close ();
+        }
+        writeBehindBuffer = new WriteBehindBuffer (this, queueSize, writeBatchSize, maxDelayMillis, offerTimeoutMillis);
+        return this;
+    }
+
+    public boolean isWriteBehind () {
+        return writeBehindBuffer != null;
+    }
+
+    /**
+     * put through the write behind queue, or directly if write behind isn't enabled
+     * @param bagObject
+     * @return a future that completes when the object is written, or with the reason it
+     * couldn't be
+     */
+    public CompletableFuture<Void> putBehind (BagObject bagObject) {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null) {
+            return buffer.put (bagObject);
+        }
+        CompletableFuture<Void> future = new CompletableFuture<> ();
+        try {
+            putNow (bagObject);
+            future.complete (null);
+        } catch (RuntimeException exception) {
+            future.completeExceptionally (exception);
+        }
+        return future;
+    }
+
+    /**
+     * write everything in the write behind queue, and wait for it to finish
+     * @return
+     */
+    public BagMongo flush () {
+        WriteBehindBuffer buffer = writeBehindBuffer;
+        if (buffer != null) {
+            buffer.flush ();
+        }
+        return this;
+    }
+
     public BagDbInterface put (BagObject bagObject) {
-        Document document = Document.parse (bagObject.toString (MimeType.JSON));
-        collection.insertOne (document);
+        // with write behind, failures are only reported asynchronously, so they're logged
+        if (writeBehindBuffer != null) {
+            putBehind (bagObject).whenComplete ((result, exception) -> {
+                if (exception != null) {
+                    log.error ("Failed to put in '" + getName () + "'", exception);
+                }
+            });
+        } else {
+            putNow (bagObject);
+        }
         return this;
     }
 
+    private void putNow (BagObject bagObject) {
+        long startTime = metrics.start ();
+        try {
+            BagObject stored = externalize (bagObject);
+            guard (false, maxTime -> {
+                collection.insertOne (stored);
+                return null;
+            });
+            cachedCount.incrementAndGet ();
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.PUT, startTime, 1);
+        }
+    }
+
     public BagDbInterface putMany (BagArray bagArray) {
-        for (int i = 0, end = bagArray.getCount (); i < end; ++i) {
-            put (bagArray.getBagObject (i));
+        PutManyResult putManyResult = putManyWithResult (bagArray);
+        if (putManyResult.hasFailures ()) {
+            log.error ("Failed to put " + putManyResult.getFailedCount () + " of " + bagArray.getCount () + " in '" + getName () + "': " + putManyResult.getErrors ().toString (MimeType.JSON));
         }
         return this;
     }
 
-    private Bson buildQuery (String queryJson) {
-        if (queryJson != null) {
-            BagObject queryBagObject = BagObjectFrom.string (queryJson, MimeType.JSON);
-            if (queryBagObject != null) {
-                int count = queryBagObject.getCount ();
-                String[] keys = queryBagObject.keys ();
-                if (count > 1) {
-                    Bson[] bsons = new Bson[count];
-                    for (int i = 0; i < count; ++i) {
-                        bsons[i] = Filters.eq (keys[i], queryBagObject.getString (keys[i]));
-                    }
-                    return Filters.and (bsons);
-                } else if (count == 1) {
-                    return Filters.eq (keys[0], queryBagObject.getString (keys[0]));
+    /**
+     * put the array as a series of bulk inserts, each of at most the write batch size
+     * @param bagArray
+     * @return the number of documents inserted and failed, with the errors
+     */
+    public PutManyResult putManyWithResult (BagArray bagArray) {
+        long startTime = metrics.start ();
+        PutManyResult putManyResult = new PutManyResult ();
+        try {
+            putManyBatches (bagArray, putManyResult);
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.PUT_MANY, startTime, putManyResult.getInsertedCount ());
+        }
+        return putManyResult;
+    }
+
+    private void putManyBatches (BagArray bagArray, PutManyResult putManyResult) {
+        InsertManyOptions insertManyOptions = new InsertManyOptions ().ordered (orderedWrites);
+        int count = bagArray.getCount ();
+        for (int start = 0; start < count; start += writeBatchSize) {
+            int end = Math.min (start + writeBatchSize, count);
+            List<BagObject> batch = new ArrayList<> (end - start);
+            for (int i = start; i < end; ++i) {
+                batch.add (externalize (bagArray.getBagObject (i)));
+            }
+            if (! putBatch (batch, start, insertManyOptions, putManyResult) && orderedWrites) {
+                // an ordered write stops at the first failure, so nothing after it is inserted
+                putManyResult.addFailed (count - end);
+                break;
+            }
+        }
+    }
+
+    private boolean putBatch (List<BagObject> batch, int start, InsertManyOptions insertManyOptions, PutManyResult putManyResult) {
+        return putBatch (collection, batch, start, insertManyOptions, putManyResult);
+    }
+
+    <T> boolean putBatch (MongoCollection<T> target, List<T> batch, int start, InsertManyOptions insertManyOptions, PutManyResult putManyResult) {
+        try {
+            guard (false, maxTime -> {
+                target.insertMany (batch, insertManyOptions);
+                return null;
+            });
+            putManyResult.addInserted (batch.size ());
+            cachedCount.addAndGet (batch.size ());
+            return true;
+        } catch (MongoBulkWriteException exception) {
+            // the write result is only meaningful when the write was acknowledged
+            int insertedCount = exception.getWriteResult ().wasAcknowledged () ? exception.getWriteResult ().getInsertedCount () : 0;
+            putManyResult.addInserted (insertedCount);
+            cachedCount.addAndGet (insertedCount);
+            putManyResult.addFailed (batch.size () - insertedCount);
+            for (BulkWriteError bulkWriteError : exception.getWriteErrors ()) {
+                putManyResult.addError (start + bulkWriteError.getIndex (), bulkWriteError.getMessage ());
+            }
+        } catch (MongoException exception) {
+            log.error ("Failed to put batch at " + start + " in '" + getName () + "'", exception);
+            putManyResult.addFailed (batch.size ());
+            putManyResult.addError (start, exception.getMessage ());
+        }
+        return false;
+    }
+
+    /**
+     * replace the object that has the same values in the key fields, or put it if there
+     * isn't one
+     * @param keyFields the (possibly dotted) names of the fields that identify the object
+     * @param bagObject
+     * @return
+     */
+    public BagDbInterface upsert (String[] keyFields, BagObject bagObject) {
+        long startTime = metrics.start ();
+        long count = 0;
+        try {
+            Bson filter = buildKeyFilter (keyFields, bagObject);
+            BagObject stored = externalize (bagObject);
+            UpdateResult updateResult = guard (true, maxTime -> collection.replaceOne (filter, stored, UPSERT_OPTIONS));
+            cachedCount.addAndGet ((updateResult.getUpsertedId () != null) ? 1 : 0);
+            count = getUpdatedCount (updateResult);
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.UPSERT, startTime, count);
+        }
+        return this;
+    }
+
+    /**
+     * upsert every object in the array, as a series of bulk writes, each of at most the
+     * write batch size
+     * @param keyFields the (possibly dotted) names of the fields that identify each object
+     * @param bagArray
+     * @return
+     */
+    public BagDbInterface upsertMany (String[] keyFields, BagArray bagArray) {
+        long startTime = metrics.start ();
+        long count = 0;
+        try {
+            BulkWriteOptions bulkWriteOptions = new BulkWriteOptions ().ordered (orderedWrites);
+            for (int start = 0, end = bagArray.getCount (); start < end; start += writeBatchSize) {
+                int batchEnd = Math.min (start + writeBatchSize, end);
+                List<WriteModel<BagObject>> batch = new ArrayList<> (batchEnd - start);
+                for (int i = start; i < batchEnd; ++i) {
+                    BagObject bagObject = bagArray.getBagObject (i);
+                    batch.add (new ReplaceOneModel<> (buildKeyFilter (keyFields, bagObject), externalize (bagObject), UPSERT_OPTIONS));
+                }
+                BulkWriteResult bulkWriteResult = guard (true, maxTime -> collection.bulkWrite (batch, bulkWriteOptions));
+                if (bulkWriteResult.wasAcknowledged ()) {
+                    count += bulkWriteResult.getMatchedCount () + bulkWriteResult.getUpserts ().size ();
+                    cachedCount.addAndGet (bulkWriteResult.getUpserts ().size ());
                 }
             }
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.UPSERT_MANY, startTime, count);
         }
-        return new Document ();
+        return this;
     }
 
-    private static BagObject extract (Document document) {
-        if (document != null) {
-            String json = document.toJson ();
-            BagObject bagObject = BagObjectFrom.string (json, MimeType.JSON);
+    /**
+     * change fields in the first matching object without rewriting the rest of it. the
+     * changes are either the fields to set, or update operators ("$set", "$unset", "$inc",
+     * etc.) each holding the fields they apply to. bags store values as strings, so "$inc"
+     * and "$mul" only work on fields that are already numbers in the database, or missing.
+     * @param queryJson
+     * @param changes
+     * @return
+     */
+    public BagDbInterface update (String queryJson, BagObject changes) {
+        long startTime = metrics.start ();
+        long count = 0;
+        try {
+            Bson filter = buildQuery (queryJson);
+            Bson update = buildUpdate (changes);
+            count = getUpdatedCount (guard (isRepeatable (changes), maxTime -> collection.updateOne (filter, update)));
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.UPDATE, startTime, count);
+        }
+        return this;
+    }
 
-            // Mongo adds "_id" if the posting object doesn't include it. we decide to allow
-            // this, but to otherwise mask it from the user as it would lock us into the
-            // Mongo API
-            bagObject = bagObject.select (new SelectKey (SelectType.EXCLUDE, UNDERSCORE_ID));
-            return bagObject;
+    /**
+     * change fields in every matching object, the changes are the same as for update
+     * @param queryJson
+     * @param changes
+     * @return
+     */
+    public BagDbInterface updateMany (String queryJson, BagObject changes) {
+        long startTime = metrics.start ();
+        long count = 0;
+        try {
+            Bson filter = buildQuery (queryJson);
+            Bson update = buildUpdate (changes);
+            count = getUpdatedCount (guard (isRepeatable (changes), maxTime -> collection.updateMany (filter, update)));
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.UPDATE_MANY, startTime, count);
         }
-        return null;
+        return this;
     }
 
-    public BagObject get (String queryJson) {
+    private static boolean isRepeatable (BagObject changes) {
+        // setting and unsetting fields gives the same result again, arithmetic doesn't
+        return ! (changes.has (INC) || changes.has (MUL));
+    }
+
+    private static long getUpdatedCount (UpdateResult updateResult) {
+        // the count is only known when the update was acknowledged
+        return updateResult.wasAcknowledged () ? updateResult.getMatchedCount () + ((updateResult.getUpsertedId () != null) ? 1 : 0) : 0;
+    }
+
+    BagObject externalize (BagObject bagObject) {
+        // only objects with long values pay for the walk and the copy, see LargeValueStore
+        return (largeValueStore != null) ? largeValueStore.externalize (bagObject) : bagObject;
+    }
+
+    static BsonDocument buildKeyFilter (String[] keyFields, BagObject bagObject) {
+        // keys are matched in their string form, which is how bags store them
+        if ((keyFields == null) || (keyFields.length == 0)) {
+            throw new IllegalArgumentException ("Invalid key fields (none)");
+        }
+        BsonDocument filter = new BsonDocument ();
+        for (String keyField : keyFields) {
+            String value = getFieldValue (bagObject, keyField);
+            filter.append (keyField, (value != null) ? new BsonString (value) : BsonNull.VALUE);
+        }
+        return filter;
+    }
+
+    private Bson buildUpdate (BagObject changes) {
+        Codec<BagObject> codec = collection.getCodecRegistry ().get (BagObject.class);
+        return buildUpdate (externalizeChanges (changes), codec);
+    }
+
+    private BagObject externalizeChanges (BagObject changes) {
+        // long values that are set are stored the same as a put stores them, the fields under
+        // the other operators are names or numbers
+        if (largeValueStore == null) {
+            return changes;
+        }
+        for (String key : changes.keys ()) {
+            if (key.startsWith ("$")) {
+                BagObject set = changes.getBagObject (SET);
+                BagObject externalizedSet = (set != null) ? externalize (set) : null;
+                if (externalizedSet == set) {
+                    return changes;
+                }
+                BagObject externalized = new BagObject ();
+                for (String operator : changes.keys ()) {
+                    externalized.put (operator, changes.getObject (operator));
+                }
+                return externalized.put (SET, externalizedSet);
+            }
+        }
+        return externalize (changes);
+    }
+
+    static BsonDocument buildUpdate (BagObject changes, Codec<BagObject> codec) {
+        // plain fields are all set, otherwise every key is an update operator. the fields
+        // under an operator are encoded the way bags store them, except for the arithmetic
+        // operators, which need numbers.
+        String[] keys = changes.keys ();
+        int operatorCount = 0;
+        for (String key : keys) {
+            operatorCount += key.startsWith ("$") ? 1 : 0;
+        }
+        if (operatorCount == 0) {
+            return new BsonDocument (SET, new BsonDocumentWrapper<> (changes, codec));
+        } else if (operatorCount < keys.length) {
+            throw new IllegalArgumentException ("Invalid update (mixes fields and operators)");
+        }
+
+        BsonDocument update = new BsonDocument ();
+        for (String operator : keys) {
+            BagObject fields = changes.getBagObject (operator);
+            if (fields == null) {
+                throw new IllegalArgumentException ("Invalid update operator (" + operator + ")");
+            }
+            switch (operator) {
+                case INC:
+                case MUL:
+                    update.put (operator, toNumbers (operator, fields));
+                    break;
+                case UNSET:
+                    BsonDocument unset = new BsonDocument ();
+                    for (String field : fields.keys ()) {
+                        unset.put (field, new BsonString (""));
+                    }
+                    update.put (operator, unset);
+                    break;
+                default:
+                    update.put (operator, new BsonDocumentWrapper<> (fields, codec));
+                    break;
+            }
+        }
+        return update;
+    }
+
+    private static BsonDocument toNumbers (String operator, BagObject fields) {
+        BsonDocument numbers = new BsonDocument ();
+        for (String field : fields.keys ()) {
+            String value = fields.getString (field);
+            try {
+                numbers.put (field, new BsonInt64 (Long.parseLong (value)));
+            } catch (NumberFormatException longException) {
+                try {
+                    numbers.put (field, new BsonDouble (Double.parseDouble (value)));
+                } catch (NullPointerException | NumberFormatException doubleException) {
+                    throw new IllegalArgumentException ("Invalid " + operator + " value for '" + field + "' (" + value + ")");
+                }
+            }
+        }
+        return numbers;
+    }
+
+    private Bson buildQuery (String queryJson) {
+        return queryCache.get (queryJson);
+    }
+
+    /**
+     * the fraction of queries that were answered from the compiled query cache
+     * @return
+     */
+    public double getQueryCacheHitRate () {
+        return queryCache.getHitRate ();
+    }
+
+    /**
+     *
+     * @return the number of sampled queries that were explained
+     */
+    public long getExplainCount () {
+        return explainSampler.getExplainCount ();
+    }
+
+    /**
+     *
+     * @return the number of explained queries that scanned the whole collection
+     */
+    public long getCollectionScanCount () {
+        return explainSampler.getCollectionScanCount ();
+    }
+
+    private FindIterable<BagObject> find (String queryJson, Projection projection, long maxTimeMillis) {
         Bson filter = buildQuery (queryJson);
-        FindIterable<Document> queryResult = collection.find (filter);
-        Document got = queryResult.first ();
-        BagObject bagObject = extract (got);
+        explainSampler.sample (collection, filter);
+
+        // "_id" is masked from the user, so it's never sent back from the server either
+        return collection
+                .find (filter)
+                .projection ((projection != null) ? projection.toBson () : EXCLUDE_ID)
+                .maxTime (maxTimeMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public BagObject get (String queryJson) {
+        return get (queryJson, null);
+    }
+
+    public BagObject get (String queryJson, Projection projection) {
+        long startTime = metrics.start ();
+        BagObject bagObject = null;
+        try {
+            bagObject = guard (true, maxTime -> find (queryJson, projection, maxTime).first ());
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.GET, startTime, (bagObject != null) ? 1 : 0);
+        }
         return bagObject;
     }
 
     public BagArray getMany (String queryJson) {
-        final BagArray bagArray = new BagArray ();
-        Bson filter = buildQuery (queryJson);
-        collection.find (filter).forEach (
-                (Block<Document>) document -> bagArray.add (extract (document))
-        );
+        return getMany (queryJson, null);
+    }
+
+    public BagArray getMany (String queryJson, Projection projection) {
+        long startTime = metrics.start ();
+        BagArray bagArray = null;
+        try {
+            bagArray = guard (true, maxTime -> collect (stream (find (queryJson, projection, maxTime), readBatchSize)));
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.GET_MANY, startTime, (bagArray != null) ? bagArray.getCount () : 0);
+        }
         return bagArray;
     }
 
     public BagArray getAll () {
+        return getAll (null);
+    }
+
+    public BagArray getAll (Projection projection) {
+        long startTime = metrics.start ();
+        BagArray bagArray = null;
+        try {
+            bagArray = guard (true, maxTime -> {
+                if (scanParallelism > 1) {
+                    // the partitions are merged in order of their "_id" ranges
+                    BagArray merged = new BagArray ();
+                    for (BagArray partition : scanPartitions (null, projection, scanParallelism, maxTime, BagMongo::collect)) {
+                        for (int i = 0, end = partition.getCount (); i < end; ++i) {
+                            merged.add (partition.getObject (i));
+                        }
+                    }
+                    return merged;
+                }
+                return collect (stream (find (null, projection, maxTime), readBatchSize));
+            });
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.GET_ALL, startTime, (bagArray != null) ? bagArray.getCount () : 0);
+        }
+        return bagArray;
+    }
+
+    /**
+     * get the objects whose field matches each of the values, using a few $in queries of at
+     * most the key batch size instead of a query per value
+     * @param field the (possibly dotted) name of the key field
+     * @param values the keys to look up
+     * @return an array with one entry per value, in the same order, where the entry is the
+     * first object found with that key, or an empty object if there wasn't one
+     */
+    public BagArray getByKeys (String field, BagArray values) {
+        long startTime = metrics.start ();
+        int foundCount = 0;
+        try {
+            // every chunk after the first goes to the lookup pool, and the first runs here
+            // while the others are in flight. the time the other chunks spend decoding is
+            // added back here, so it isn't counted as time in the driver
+            int count = values.getCount ();
+            List<CompletableFuture<BagMongoMetrics.Measured<Map<String, BagObject>>>> chunks = new ArrayList<> ();
+            for (int start = keyBatchSize; start < count; start += keyBatchSize) {
+                final int chunkStart = start, chunkEnd = Math.min (start + keyBatchSize, count);
+                chunks.add (CompletableFuture.supplyAsync (() -> BagMongoMetrics.measure (() -> getByKeys (field, values, chunkStart, chunkEnd)), READ_EXECUTOR));
+            }
+            Map<String, BagObject> found = getByKeys (field, values, 0, Math.min (keyBatchSize, count));
+            for (CompletableFuture<BagMongoMetrics.Measured<Map<String, BagObject>>> chunk : chunks) {
+                found.putAll (BagMongoMetrics.merge (join (chunk)));
+            }
+
+            // put the results back in the order of the values
+            BagArray bagArray = new BagArray (count);
+            for (int i = 0; i < count; ++i) {
+                Object value = values.getObject (i);
+                BagObject bagObject = (value != null) ? found.get (value.toString ()) : null;
+                if (bagObject != null) {
+                    bagArray.add (bagObject);
+                    ++foundCount;
+                } else {
+                    bagArray.add (new BagObject ());
+                }
+            }
+            return bagArray;
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.GET_BY_KEYS, startTime, foundCount);
+        }
+    }
+
+    private Map<String, BagObject> getByKeys (String field, BagArray values, int start, int end) {
+        // keys are matched in their string form, which is how bags store them
+        BsonArray keys = new BsonArray ();
+        for (int i = start; i < end; ++i) {
+            Object value = values.getObject (i);
+            if (value != null) {
+                keys.add (new BsonString (value.toString ()));
+            }
+        }
+        if (keys.isEmpty ()) {
+            return new HashMap<> ();
+        }
+        Bson filter = new BsonDocument (field, new BsonDocument ("$in", keys));
+        explainSampler.sample (collection, filter);
+        return guard (true, maxTime -> {
+            Map<String, BagObject> found = new HashMap<> (keys.size ());
+            try (MongoCursor<BagObject> cursor = collection.find (filter).projection (EXCLUDE_ID).maxTime (maxTime, TimeUnit.MILLISECONDS).iterator ()) {
+                while (cursor.hasNext ()) {
+                    BagObject bagObject = cursor.next ();
+                    String key = getFieldValue (bagObject, field);
+                    if (key != null) {
+                        found.putIfAbsent (key, bagObject);
+                    }
+                }
+            }
+            return found;
+        });
+    }
+
+    static String getFieldValue (BagObject bagObject, String field) {
+        // walk a dotted field name down through the nested objects
+        String[] names = field.split ("\\.");
+        for (int i = 0; (bagObject != null) && (i < names.length - 1); ++i) {
+            bagObject = bagObject.getBagObject (names[i]);
+        }
+        Object value = (bagObject != null) ? bagObject.getObject (names[names.length - 1]) : null;
+        return (value != null) ? value.toString () : null;
+    }
+
+    /**
+     * get one page of the matching objects, sorted by the sort field and then "_id". each
+     * page is a range query starting after the last object of the previous page, so with an
+     * index on the sort field and "_id" (e.g. "keys": ["name", "_id"]), every page costs the
+     * same. bags store values as strings, so the sort is in string order.
+     * @param queryJson
+     * @param sortField the (possibly dotted) name of the field to sort on
+     * @param pageSize the maximum number of objects in the page
+     * @param resumeToken the token from the previous page, or null for the first page
+     * @return the page, with a token for the next page if there are more matches
+     */
+    public Page getPage (String queryJson, String sortField, int pageSize, String resumeToken) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException ("Invalid page size (" + pageSize + ")");
+        }
+        long startTime = metrics.start ();
+        int resultCount = 0;
+        try {
+            Bson query = buildQuery (queryJson);
+            Bson filter = (resumeToken != null) ? and (query, after (sortField, decodeResumeToken (resumeToken))) : query;
+            explainSampler.sample (collection, filter);
+            Bson sort = new BsonDocument (sortField, new BsonInt32 (1)).append (BagObjectCodec.UNDERSCORE_ID, new BsonInt32 (1));
+
+            // the page is read as raw documents, so the last one can give up its sort value
+            // and "_id" for the token while every one is decoded to a bag without them. one
+            // more than the page is read, and the token is only issued if it is there.
+            Codec<BagObject> codec = collection.getCodecRegistry ().get (BagObject.class);
+            Page page = guard (true, maxTime -> {
+                BagArray results = new BagArray (pageSize);
+                RawBsonDocument last = null;
+                boolean more = false;
+                FindIterable<RawBsonDocument> findIterable = collection
+                        .withDocumentClass (RawBsonDocument.class)
+                        .find (filter)
+                        .sort (sort)
+                        .limit (pageSize + 1)
+                        .batchSize (pageSize + 1)
+                        .maxTime (maxTime, TimeUnit.MILLISECONDS);
+                try (MongoCursor<RawBsonDocument> cursor = findIterable.iterator ()) {
+                    while (cursor.hasNext ()) {
+                        RawBsonDocument document = cursor.next ();
+                        if (results.getCount () == pageSize) {
+                            more = true;
+                            break;
+                        }
+                        last = document;
+                        results.add (last.decode (codec));
+                    }
+                }
+                return new Page (results, more ? encodeResumeToken (getSortValue (last, sortField), last.get (BagObjectCodec.UNDERSCORE_ID)) : null);
+            });
+            resultCount = page.getResults ().getCount ();
+            return page;
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.GET_PAGE, startTime, resultCount);
+        }
+    }
+
+    private Bson and (Bson filter, BsonDocument clause) {
+        BsonDocument query = filter.toBsonDocument (BsonDocument.class, collection.getCodecRegistry ());
+        return query.isEmpty () ? clause : new BsonDocument ("$and", new BsonArray (Arrays.asList (query, clause)));
+    }
+
+    private static <T> T join (CompletableFuture<T> future) {
+        // rethrow what went wrong on the other thread as if it happened here
+        try {
+            return future.join ();
+        } catch (CompletionException exception) {
+            throw (exception.getCause () instanceof RuntimeException) ? (RuntimeException) exception.getCause () : exception;
+        }
+    }
+
+    static BsonDocument after (String sortField, BsonDocument position) {
+        // objects after the position have a greater sort value, or the same sort value and a
+        // greater "_id". missing and null values sort first, so anything after them is not null.
+        BsonValue sortValue = position.get (PAGE_SORT_VALUE, BsonNull.VALUE);
+        BsonDocument greater = new BsonDocument (sortField, sortValue.isNull ()
+                ? new BsonDocument ("$ne", BsonNull.VALUE)
+                : new BsonDocument ("$gt", sortValue));
+        BsonDocument tied = new BsonDocument (sortField, sortValue)
+                .append (BagObjectCodec.UNDERSCORE_ID, new BsonDocument ("$gt", position.get (PAGE_ID)));
+        return new BsonDocument ("$or", new BsonArray (Arrays.asList (greater, tied)));
+    }
+
+    static BsonValue getSortValue (BsonDocument document, String sortField) {
+        BsonValue value = document;
+        for (String name : sortField.split ("\\.")) {
+            value = ((value != null) && value.isDocument ()) ? value.asDocument ().get (name) : null;
+        }
+        return (value != null) ? value : BsonNull.VALUE;
+    }
+
+    static String encodeResumeToken (BsonValue sortValue, BsonValue id) {
+        String json = new BsonDocument (PAGE_SORT_VALUE, sortValue).append (PAGE_ID, id).toJson ();
+        return Base64.getUrlEncoder ().withoutPadding ().encodeToString (json.getBytes (StandardCharsets.UTF_8));
+    }
+
+    static BsonDocument decodeResumeToken (String resumeToken) {
+        try {
+            BsonDocument position = BsonDocument.parse (new String (Base64.getUrlDecoder ().decode (resumeToken), StandardCharsets.UTF_8));
+            if (position.containsKey (PAGE_ID)) {
+                return position;
+            }
+        } catch (RuntimeException exception) {
+            log.error ("Failed to decode resume token (" + resumeToken + ")", exception);
+        }
+        throw new IllegalArgumentException ("Invalid resume token (" + resumeToken + ")");
+    }
+
+    /**
+     * read every matching object through several cursors at once, each over its own range
+     * of "_id", and hand them to the consumer as they arrive. the consumer is called from
+     * several threads at once, so it must be thread safe.
+     * @param queryJson
+     * @param parallelism the number of ranges to read at once
+     * @param consumer
+     * @return the number of objects read
+     */
+    public long scan (String queryJson, int parallelism, Consumer<BagObject> consumer) {
+        // the consumer has already seen whatever was read before a failure, so a scan isn't
+        // retried
+        return guard (false, maxTime -> {
+            long count = 0;
+            for (long partitionCount : scanPartitions (queryJson, null, parallelism, maxTime, stream -> {
+                long[] partitionCount = { 0 };
+                try (Stream<BagObject> closingStream = stream) {
+                    closingStream.forEach (bagObject -> {
+                        consumer.accept (bagObject);
+                        ++partitionCount[0];
+                    });
+                }
+                return partitionCount[0];
+            })) {
+                count += partitionCount;
+            }
+            return count;
+        });
+    }
+
+    private <T> List<T> scanPartitions (String queryJson, Projection projection, int parallelism, long maxTimeMillis, Function<Stream<BagObject>, T> reader) {
+        // every partition after the first goes to the read pool, and the first is read here
+        // while the others are in flight, with the decoding done in the pool added back here
+        Bson filter = buildQuery (queryJson);
+        Bson projectionBson = (projection != null) ? projection.toBson () : EXCLUDE_ID;
+        List<BsonDocument> partitions = getPartitions (parallelism, maxTimeMillis);
+        List<CompletableFuture<BagMongoMetrics.Measured<T>>> futures = new ArrayList<> (partitions.size ());
+        for (int i = 1; i < partitions.size (); ++i) {
+            final Bson partitionFilter = and (filter, partitions.get (i));
+            futures.add (CompletableFuture.supplyAsync (() -> BagMongoMetrics.measure (() -> reader.apply (stream (collection.find (partitionFilter).projection (projectionBson).maxTime (maxTimeMillis, TimeUnit.MILLISECONDS), readBatchSize))), READ_EXECUTOR));
+        }
+        List<T> results = new ArrayList<> (partitions.size ());
+        results.add (reader.apply (stream (collection.find (and (filter, partitions.get (0))).projection (projectionBson).maxTime (maxTimeMillis, TimeUnit.MILLISECONDS), readBatchSize)));
+        for (CompletableFuture<BagMongoMetrics.Measured<T>> future : futures) {
+            results.add (BagMongoMetrics.merge (join (future)));
+        }
+        return results;
+    }
+
+    private List<BsonDocument> getPartitions (int parallelism, long maxTimeMillis) {
+        // the split points come from a random sample of "_id", sorted on the server. values
+        // of different types can't share a range, so the ranges are limited to the type in
+        // the sample, and one more partition picks up "_id" of any other type
+        List<BsonDocument> partitions = new ArrayList<> ();
+        if (parallelism > 1) {
+            List<BsonDocument> pipeline = Arrays.asList (
+                    new BsonDocument ("$sample", new BsonDocument ("size", new BsonInt32 (parallelism * SCAN_SAMPLES_PER_PARTITION))),
+                    new BsonDocument ("$project", new BsonDocument (BagObjectCodec.UNDERSCORE_ID, new BsonInt32 (1))),
+                    new BsonDocument ("$sort", new BsonDocument (BagObjectCodec.UNDERSCORE_ID, new BsonInt32 (1)))
+            );
+            List<BsonValue> ids = new ArrayList<> ();
+            BsonType type = null;
+            for (RawBsonDocument rawBsonDocument : collection.aggregate (pipeline, RawBsonDocument.class).maxTime (maxTimeMillis, TimeUnit.MILLISECONDS)) {
+                BsonValue id = rawBsonDocument.get (BagObjectCodec.UNDERSCORE_ID);
+                type = ((type == null) || (type == id.getBsonType ())) ? id.getBsonType () : BsonType.UNDEFINED;
+                ids.add (id);
+            }
+            if ((ids.size () >= parallelism) && (type != BsonType.UNDEFINED)) {
+                BsonValue lower = null;
+                for (int i = 1; i < parallelism; ++i) {
+                    BsonValue upper = ids.get ((i * ids.size ()) / parallelism);
+                    if (! upper.equals (lower)) {
+                        partitions.add (getRange (type, lower, upper));
+                        lower = upper;
+                    }
+                }
+                partitions.add (getRange (type, lower, null));
+                partitions.add (new BsonDocument (BagObjectCodec.UNDERSCORE_ID, new BsonDocument ("$not", new BsonDocument ("$type", new BsonInt32 (type.getValue ())))));
+            }
+        }
+
+        // too few objects to split, or nothing to split them by
+        if (partitions.isEmpty ()) {
+            partitions.add (new BsonDocument ());
+        }
+        return partitions;
+    }
+
+    private static BsonDocument getRange (BsonType type, BsonValue lower, BsonValue upper) {
+        BsonDocument range = new BsonDocument ("$type", new BsonInt32 (type.getValue ()));
+        if (lower != null) {
+            range.append ("$gte", lower);
+        }
+        if (upper != null) {
+            range.append ("$lt", upper);
+        }
+        return new BsonDocument (BagObjectCodec.UNDERSCORE_ID, range);
+    }
+
+    private static BagArray collect (Stream<BagObject> stream) {
         final BagArray bagArray = new BagArray ();
-        collection.find (new Document ()).forEach (
-                (Block<Document>) document -> bagArray.add (extract (document))
-        );
+        try (Stream<BagObject> closingStream = stream) {
+            closingStream.forEachOrdered (bagArray::add);
+        }
         return bagArray;
     }
 
+    public Stream<BagObject> stream (String queryJson) {
+        return stream (queryJson, readBatchSize);
+    }
+
+    /**
+     *
+     * @param queryJson
+     * @param batchSize the number of objects fetched from the server at a time, or 0 for
+     *                  the server default
+     * @return
+     */
+    public Stream<BagObject> stream (String queryJson, int batchSize) {
+        // the first batch is read when the stream is opened, so that's what is guarded
+        return guard (true, maxTime -> stream (find (queryJson, null, maxTime), batchSize));
+    }
+
+    public Stream<BagObject> streamAll () {
+        return stream ((String) null, readBatchSize);
+    }
+
+    private static <T> Stream<T> stream (MongoIterable<T> mongoIterable, int batchSize) {
+        if (batchSize > 0) {
+            mongoIterable.batchSize (batchSize);
+        }
+
+        // the cursor is closed when the stream is closed, or as soon as it runs out, so a
+        // stream that is read to the end doesn't hold the cursor open on the server
+        final MongoCursor<T> cursor = mongoIterable.iterator ();
+        Iterator<T> iterator = new Iterator<T> () {
+            @Override
+            public boolean hasNext () {
+                if (cursor.hasNext ()) {
+                    return true;
+                }
+                cursor.close ();
+                return false;
+            }
+
+            @Override
+            public T next () {
+                return cursor.next ();
+            }
+        };
+        return StreamSupport
+                .stream (Spliterators.spliteratorUnknownSize (iterator, Spliterator.ORDERED | Spliterator.NONNULL), false)
+                .onClose (cursor::close);
+    }
+
+    public Stream<BagObject> aggregate (BagArray pipeline) {
+        return aggregate (pipeline, allowDiskUse);
+    }
+
+    /**
+     * run an aggregation pipeline on the server, and stream the results back. unlike the
+     * other reads, the results keep their "_id", which is where "$group" puts its key.
+     * @param pipeline the stages, as bag objects
+     * @param allowDiskUse whether stages can use temporary files on the server when they
+     *                     run out of memory
+     * @return
+     */
+    public Stream<BagObject> aggregate (BagArray pipeline, boolean allowDiskUse) {
+        // the results go through the same codec as the other reads (lazy decoding, large
+        // values, metrics), except that it keeps "_id". the first batch is read when the
+        // stream is opened, so that's what is timed
+        List<BsonDocument> stages = Pipeline.compile (pipeline);
+        long startTime = metrics.start ();
+        try {
+            return guard (true, maxTime -> stream (collection
+                    .withCodecRegistry (getCodecRegistry (lazyDecoding, false))
+                    .aggregate (stages, BagObject.class)
+                    .allowDiskUse (allowDiskUse)
+                    .maxTime (maxTime, TimeUnit.MILLISECONDS), readBatchSize));
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.AGGREGATE, startTime, 0);
+        }
+    }
+
+    /**
+     * deliver the changes to the matching objects as they happen, see ChangeSubscription.
+     * change streams need a replica set (a single node replica set is enough), and this
+     * fails right away without one.
+     * @param queryJson the objects to watch, or null for every object. deletes don't have an
+     *                  object to match, so every delete is delivered.
+     * @param consumer called with each change, in order, on the subscription's thread
+     * @return the subscription, which should be closed to stop it
+     */
+    public ChangeSubscription watch (String queryJson, Consumer<BagObject> consumer) {
+        return watch (queryJson, consumer, null);
+    }
+
+    /**
+     * deliver the changes to the matching objects, starting after a saved resume token
+     * @param queryJson
+     * @param consumer
+     * @param resumeToken from ChangeSubscription.getResumeToken, or null to start now
+     * @return
+     */
+    public ChangeSubscription watch (String queryJson, Consumer<BagObject> consumer, String resumeToken) {
+        // the query applies to the object after the change, and the stream always passes the
+        // events that end it
+        List<Bson> pipeline = new ArrayList<> (1);
+        BsonDocument query = buildQuery (queryJson).toBsonDocument (BsonDocument.class, collection.getCodecRegistry ());
+        if (! query.isEmpty ()) {
+            BsonArray operationTypes = new BsonArray (Arrays.asList (
+                    new BsonString ("delete"), new BsonString ("invalidate"), new BsonString ("drop"), new BsonString ("rename")));
+            pipeline.add (new BsonDocument ("$match", new BsonDocument ("$or", new BsonArray (Arrays.asList (
+                    new BsonDocument ("operationType", new BsonDocument ("$in", operationTypes)),
+                    prefixFields (query, "fullDocument."))))));
+        }
+        ChangeSubscription changeSubscription = new ChangeSubscription (collection, getName (), pipeline, consumer, ChangeSubscription.decodeResumeToken (resumeToken));
+        changeSubscriptions.removeIf (subscription -> ! subscription.isRunning ());
+        changeSubscriptions.add (changeSubscription);
+        return changeSubscription;
+    }
+
+    private static BsonDocument prefixFields (BsonDocument query, String prefix) {
+        BsonDocument prefixed = new BsonDocument ();
+        for (Map.Entry<String, BsonValue> entry : query.entrySet ()) {
+            String key = entry.getKey ();
+            BsonValue value = entry.getValue ();
+            if (key.equals ("$and") || key.equals ("$or") || key.equals ("$nor")) {
+                BsonArray clauses = new BsonArray ();
+                for (BsonValue clause : value.asArray ()) {
+                    clauses.add (clause.isDocument () ? prefixFields (clause.asDocument (), prefix) : clause);
+                }
+                prefixed.put (key, clauses);
+            } else {
+                prefixed.put (key.startsWith ("$") ? key : (prefix + key), value);
+            }
+        }
+        return prefixed;
+    }
+
+    /**
+     * write every object to a file, in the format given by its name (see FileFormat)
+     * @param path
+     * @return the number of objects written
+     * @throws IOException
+     */
+    public long exportTo (Path path) throws IOException {
+        return exportTo (path, FileFormat.fromPath (path));
+    }
+
+    /**
+     * write every object to a file, streaming from a cursor so the collection is never held
+     * in memory
+     * @param path
+     * @param format
+     * @return the number of objects written
+     * @throws IOException
+     */
+    public long exportTo (Path path, FileFormat format) throws IOException {
+        return new CollectionTransfer (this, collection, importParallelism).exportTo (path, format);
+    }
+
+    /**
+     * put every object in a file, in the format given by its name (see FileFormat)
+     * @param path
+     * @return
+     * @throws IOException
+     */
+    public PutManyResult importFrom (Path path) throws IOException {
+        return importFrom (path, FileFormat.fromPath (path));
+    }
+
+    /**
+     * put every object in a file, as unordered bulk inserts of the write batch size, on up
+     * to the import parallelism threads at once. errors are reported by the index of the
+     * object in the file.
+     * @param path
+     * @param format
+     * @return
+     * @throws IOException
+     */
+    public PutManyResult importFrom (Path path, FileFormat format) throws IOException {
+        return new CollectionTransfer (this, collection, importParallelism).importFrom (path, format);
+    }
+
     public BagDbInterface delete (String queryJson) {
-        Bson filter = buildQuery (queryJson);
-        collection.deleteOne (filter);
+        long startTime = metrics.start ();
+        long deletedCount = 0;
+        try {
+            Bson filter = buildQuery (queryJson);
+            // another object could match once the first is gone, so this isn't retried
+            if (largeValueStore != null) {
+                // the deleted object comes back, so the large values it refers to go with it
+                RawBsonDocument deleted = guard (false, maxTime -> collection
+                        .withDocumentClass (RawBsonDocument.class)
+                        .findOneAndDelete (filter, new FindOneAndDeleteOptions ().maxTime (maxTime, TimeUnit.MILLISECONDS)));
+                deletedCount = getDeletedCount (DeleteResult.acknowledged ((deleted != null) ? 1 : 0));
+                if (deleted != null) {
+                    largeValueStore.delete (LargeValueStore.getReferences (deleted));
+                }
+            } else {
+                deletedCount = getDeletedCount (guard (false, maxTime -> collection.deleteOne (filter)));
+            }
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.DELETE, startTime, deletedCount);
+        }
         return this;
     }
 
     public BagDbInterface deleteMany (String queryJson) {
-        Bson filter = buildQuery (queryJson);
-        collection.deleteMany (filter);
+        long startTime = metrics.start ();
+        long deletedCount = 0;
+        try {
+            deletedCount = deleteMatching (buildQuery (queryJson));
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.DELETE_MANY, startTime, deletedCount);
+        }
         return this;
     }
 
     public BagDbInterface deleteAll () {
-        collection.deleteMany (new Document ());
+        long startTime = metrics.start ();
+        long deletedCount = 0;
+        try {
+            deletedCount = deleteMatching (new Document ());
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.DELETE_ALL, startTime, deletedCount);
+        }
         return this;
     }
 
+    private long deleteMatching (Bson filter) {
+        // the large values are found before the objects that refer to them are deleted, and
+        // deleted after, so no object is ever left with a missing value
+        List<ObjectId> references = (largeValueStore != null) ? largeValueStore.findReferences (collection, filter) : null;
+        long deletedCount = getDeletedCount (guard (true, maxTime -> collection.deleteMany (filter)));
+        if (references != null) {
+            largeValueStore.delete (references);
+        }
+        return deletedCount;
+    }
+
+    /**
+     * delete the large values that no object refers to any more. values are left behind
+     * when an object that has them is replaced or updated, so this should be run now and
+     * then on collections that do that.
+     * @return the number of values deleted
+     */
+    public long deleteUnreferencedLargeValues () {
+        return (largeValueStore != null) ? largeValueStore.deleteUnreferenced (collection) : 0;
+    }
+
+    /**
+     * stream a string field of the first matching object without reading all of it into
+     * memory first, if it is a large value it is read from GridFS a chunk at a time
+     * @param queryJson
+     * @param field the (possibly dotted) name of the field
+     * @return the UTF-8 bytes of the value, or null if there isn't a matching object with a
+     * string in the field
+     */
+    public InputStream openLargeValue (String queryJson, String field) {
+        Bson filter = buildQuery (queryJson);
+        RawBsonDocument document = guard (true, maxTime -> collection
+                .withDocumentClass (RawBsonDocument.class)
+                .find (filter)
+                .projection (Projections.include (field))
+                .maxTime (maxTime, TimeUnit.MILLISECONDS)
+                .first ());
+        BsonValue value = (document != null) ? getSortValue (document, field) : BsonNull.VALUE;
+        if (value.isDocument () && (largeValueStore != null)) {
+            ObjectId reference = LargeValueStore.getReference (value.asDocument ());
+            if (reference != null) {
+                return largeValueStore.open (reference);
+            }
+        }
+        return value.isString () ? new ByteArrayInputStream (value.asString ().getValue ().getBytes (StandardCharsets.UTF_8)) : null;
+    }
+
+    /**
+     *
+     * @return the length of the longest string value that is stored inline, or 0 if every
+     * value is
+     */
+    public int getLargeValueSize () {
+        return (largeValueStore != null) ? largeValueStore.getValueSize () : 0;
+    }
+
+    LargeValueStore getLargeValueStore () {
+        return largeValueStore;
+    }
+
+    private long getDeletedCount (DeleteResult deleteResult) {
+        // the count is only known when the delete was acknowledged
+        long deletedCount = deleteResult.wasAcknowledged () ? deleteResult.getDeletedCount () : 0;
+        cachedCount.addAndGet (-deletedCount);
+        return deletedCount;
+    }
+
     public void drop () throws Exception {
-        close ();
+        // queued writes go in before the drop, so they can't recreate the collection after it
+        closeWriteBehind ();
         collection.drop ();
+        if (largeValueStore != null) {
+            largeValueStore.drop ();
+        }
+        cachedCount.set (0);
         log.info ("Dropped '" + getName () + "'" );
+        close ();
     }
 
     @Override
     public void close () throws Exception {
-        // XXX what should happen here?
-        log.info ("Closed '" + getName () + "'");
+        // release this collection's reference to the client, only once
+        if (closed.compareAndSet (false, true)) {
+            closeWriteBehind ();
+            for (ChangeSubscription changeSubscription : changeSubscriptions) {
+                changeSubscription.close ();
+            }
+            releaseClient (clientUri);
+            log.info ("Closed '" + getName () + "'");
+        }
+    }
+
+    private synchronized void closeWriteBehind () {
+        // drain the queue while the client is still open
+        if (writeBehindBuffer != null) {
+            writeBehindBuffer.close ();
+            writeBehindBuffer = null;
+        }
     }
 
     /**
-     *
+     * count the objects in the way the count mode says (see CountMode)
      * @return
      */
     public long getCount () {
-        return collection.count ();
+        long startTime = metrics.start ();
+        try {
+            switch (countMode) {
+                case ESTIMATED:
+                    return getEstimatedCount ();
+                case CACHED:
+                    return getCachedCount ();
+                default:
+                    return guard (true, maxTime -> collection.countDocuments (new BsonDocument (), new CountOptions ().maxTime (maxTime, TimeUnit.MILLISECONDS)));
+            }
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.COUNT, startTime, 0);
+        }
+    }
+
+    private long getCachedCount () {
+        // the first count waits for the estimate, after that a stale count is refreshed in
+        // the background while the last one is returned. writes made here keep it current
+        // in between, and the refresh picks up the writes made elsewhere.
+        long refreshTime = cachedCountRefreshTime.get ();
+        if (refreshTime == 0) {
+            refreshCachedCount ();
+        } else if (((System.nanoTime () - refreshTime) > TimeUnit.MILLISECONDS.toNanos (countRefreshIntervalMillis)) && cachedCountRefreshing.compareAndSet (false, true)) {
+            READ_EXECUTOR.execute (() -> {
+                try {
+                    refreshCachedCount ();
+                } catch (MongoException exception) {
+                    log.warn ("Failed to refresh the count of '" + getName () + "'", exception);
+                } finally {
+                    cachedCountRefreshing.set (false);
+                }
+            });
+        }
+        return Math.max (cachedCount.get (), 0);
+    }
+
+    private long getEstimatedCount () {
+        return guard (true, maxTime -> collection.estimatedDocumentCount (new EstimatedDocumentCountOptions ().maxTime (maxTime, TimeUnit.MILLISECONDS)));
+    }
+
+    private void refreshCachedCount () {
+        cachedCount.set (getEstimatedCount ());
+        cachedCountRefreshTime.set (System.nanoTime () | 1);
+    }
+
+    /**
+     * count the matching objects on the server, with an index on the queried fields the
+     * count is answered from the index without reading the objects
+     * @param queryJson
+     * @return
+     */
+    public long getCount (String queryJson) {
+        if (queryJson == null) {
+            return getCount ();
+        }
+        long startTime = metrics.start ();
+        try {
+            Bson filter = buildQuery (queryJson);
+            explainSampler.sample (collection, filter);
+            return guard (true, maxTime -> collection.countDocuments (filter, new CountOptions ().maxTime (maxTime, TimeUnit.MILLISECONDS)));
+        } finally {
+            metrics.stop (BagMongoMetrics.Operation.COUNT, startTime, 0);
+        }
     }
 
     public String getName () {
@@ -0,0 +1,298 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Per-operation latency histograms and counters for one collection. Each operation
+ * records its total latency, and separately the part of it spent in the driver, which is
+ * the total less the time the bag codecs spent encoding and decoding on the calling
+ * thread. Conversion on the threads an operation split its reads across overlaps with
+ * the calling thread, so it is counted in the operation's conversion time and bytes, but
+ * not taken out of its driver latency. The codecs also record their own time and the
+ * encoded size of every document. Nothing on the recording path allocates, and
+ * getSnapshot reports everything as a bag object.
+ * The retries, timeouts, and circuit breaker changes are counted for the collection as a
+ * whole.
+ */
+public class BagMongoMetrics {
+    public enum Operation {
+        PUT ("put"),
+        PUT_MANY ("put-many"),
+        UPSERT ("upsert"),
+        UPSERT_MANY ("upsert-many"),
+        UPDATE ("update"),
+        UPDATE_MANY ("update-many"),
+        GET ("get"),
+        GET_MANY ("get-many"),
+        GET_ALL ("get-all"),
+        GET_BY_KEYS ("get-by-keys"),
+        GET_PAGE ("get-page"),
+        DELETE ("delete"),
+        DELETE_MANY ("delete-many"),
+        DELETE_ALL ("delete-all"),
+        COUNT ("count"),
+        AGGREGATE ("aggregate");
+
+        private final String name;
+
+        Operation (String name) {
+            this.name = name;
+        }
+
+        public String getName () {
+            return name;
+        }
+    }
+
+    private static class OperationMetrics {
+        final LatencyHistogram latency = new LatencyHistogram ();
+        final LatencyHistogram driverLatency = new LatencyHistogram ();
+        final AtomicLong documentCount = new AtomicLong ();
+        final AtomicLong byteCount = new AtomicLong ();
+        final AtomicLong conversionNanos = new AtomicLong ();
+    }
+
+    private static class ConversionMetrics {
+        final LatencyHistogram latency = new LatencyHistogram ();
+        final AtomicLong byteCount = new AtomicLong ();
+    }
+
+    // the conversion time and bytes accumulated on this thread since the start of the
+    // current operation, and the conversion time merged in from other threads
+    private static final int CONVERSION_NANOS = 0;
+    private static final int CONVERSION_BYTES = 1;
+    private static final int MERGED_NANOS = 2;
+    private static final ThreadLocal<long[]> CONVERSION = ThreadLocal.withInitial (() -> new long[3]);
+
+    private final String name;
+    private final OperationMetrics[] operations;
+    private final ConversionMetrics encode;
+    private final ConversionMetrics decode;
+    private final AtomicLong retryCount;
+    private final AtomicLong timeoutCount;
+    private final AtomicLong rejectedCount;
+    private final AtomicLong circuitBreakerOpenCount;
+    private volatile CircuitBreaker.State circuitBreakerState;
+
+    BagMongoMetrics (String name) {
+        this.name = name;
+        Operation[] values = Operation.values ();
+        operations = new OperationMetrics[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            operations[i] = new OperationMetrics ();
+        }
+        encode = new ConversionMetrics ();
+        decode = new ConversionMetrics ();
+        retryCount = new AtomicLong ();
+        timeoutCount = new AtomicLong ();
+        rejectedCount = new AtomicLong ();
+        circuitBreakerOpenCount = new AtomicLong ();
+        circuitBreakerState = CircuitBreaker.State.CLOSED;
+    }
+
+    /**
+     * mark the start of an operation on the calling thread
+     * @return the start time, to pass to stop
+     */
+    long start () {
+        reset (CONVERSION.get ());
+        return System.nanoTime ();
+    }
+
+    private static void reset (long[] conversion) {
+        conversion[CONVERSION_NANOS] = 0;
+        conversion[CONVERSION_BYTES] = 0;
+        conversion[MERGED_NANOS] = 0;
+    }
+
+    void stop (Operation operation, long startTime, long documentCount) {
+        long elapsed = System.nanoTime () - startTime;
+        long[] conversion = CONVERSION.get ();
+        OperationMetrics operationMetrics = operations[operation.ordinal ()];
+        operationMetrics.latency.record (elapsed);
+        operationMetrics.driverLatency.record (Math.max (elapsed - conversion[CONVERSION_NANOS], 0));
+        operationMetrics.documentCount.addAndGet (documentCount);
+        operationMetrics.byteCount.addAndGet (conversion[CONVERSION_BYTES]);
+        operationMetrics.conversionNanos.addAndGet (conversion[CONVERSION_NANOS] + conversion[MERGED_NANOS]);
+    }
+
+    /**
+     * a result produced on another thread, with the conversion time and bytes it took
+     */
+    static class Measured<T> {
+        private final T result;
+        private final long conversionNanos;
+        private final long conversionBytes;
+
+        Measured (T result, long conversionNanos, long conversionBytes) {
+            this.result = result;
+            this.conversionNanos = conversionNanos;
+            this.conversionBytes = conversionBytes;
+        }
+    }
+
+    /**
+     * run part of an operation on a thread other than the one that started it, keeping the
+     * conversion it does with its result
+     * @param task
+     * @return the result, to pass to merge on the thread that started the operation
+     */
+    static <T> Measured<T> measure (Supplier<T> task) {
+        long[] conversion = CONVERSION.get ();
+        reset (conversion);
+        T result = task.get ();
+        return new Measured<> (result, conversion[CONVERSION_NANOS] + conversion[MERGED_NANOS], conversion[CONVERSION_BYTES]);
+    }
+
+    /**
+     * add the conversion done for a part of an operation to the operation on this thread,
+     * the time ran alongside this thread so it isn't taken out of the driver latency
+     * @param measured
+     * @return the result of the part
+     */
+    static <T> T merge (Measured<T> measured) {
+        long[] conversion = CONVERSION.get ();
+        conversion[MERGED_NANOS] += measured.conversionNanos;
+        conversion[CONVERSION_BYTES] += measured.conversionBytes;
+        return measured.result;
+    }
+
+    void recordEncode (long nanos, long bytes) {
+        record (encode, nanos, bytes);
+    }
+
+    void recordDecode (long nanos, long bytes) {
+        record (decode, nanos, bytes);
+    }
+
+    private static void record (ConversionMetrics conversionMetrics, long nanos, long bytes) {
+        conversionMetrics.latency.record (nanos);
+        conversionMetrics.byteCount.addAndGet (bytes);
+        long[] conversion = CONVERSION.get ();
+        conversion[CONVERSION_NANOS] += nanos;
+        conversion[CONVERSION_BYTES] += bytes;
+    }
+
+    void recordRetry () {
+        retryCount.incrementAndGet ();
+    }
+
+    void recordTimeout () {
+        timeoutCount.incrementAndGet ();
+    }
+
+    void recordRejected () {
+        rejectedCount.incrementAndGet ();
+    }
+
+    void recordCircuitBreakerState (CircuitBreaker.State state) {
+        circuitBreakerState = state;
+        if (state == CircuitBreaker.State.OPEN) {
+            circuitBreakerOpenCount.incrementAndGet ();
+        }
+    }
+
+    /**
+     *
+     * @param operation
+     * @return the number of times the operation was called
+     */
+    public long getCallCount (Operation operation) {
+        return operations[operation.ordinal ()].latency.getCount ();
+    }
+
+    /**
+     *
+     * @param operation
+     * @return the number of documents written, read, or deleted by the operation
+     */
+    public long getDocumentCount (Operation operation) {
+        return operations[operation.ordinal ()].documentCount.get ();
+    }
+
+    /**
+     *
+     * @param operation
+     * @return the number of encoded bytes the operation wrote or read
+     */
+    public long getByteCount (Operation operation) {
+        return operations[operation.ordinal ()].byteCount.get ();
+    }
+
+    /**
+     *
+     * @return the number of attempts that were retried after a failure
+     */
+    public long getRetryCount () {
+        return retryCount.get ();
+    }
+
+    /**
+     *
+     * @return the number of attempts that failed by running out of time
+     */
+    public long getTimeoutCount () {
+        return timeoutCount.get ();
+    }
+
+    /**
+     *
+     * @return the number of operations that failed fast because the circuit breaker was open
+     */
+    public long getRejectedCount () {
+        return rejectedCount.get ();
+    }
+
+    /**
+     *
+     * @return the number of times the circuit breaker opened
+     */
+    public long getCircuitBreakerOpenCount () {
+        return circuitBreakerOpenCount.get ();
+    }
+
+    public CircuitBreaker.State getCircuitBreakerState () {
+        return circuitBreakerState;
+    }
+
+    /**
+     *
+     * @return all of the metrics as a bag object, with times in microseconds
+     */
+    public BagObject getSnapshot () {
+        BagObject operationsBagObject = new BagObject ();
+        for (Operation operation : Operation.values ()) {
+            OperationMetrics operationMetrics = operations[operation.ordinal ()];
+            if (operationMetrics.latency.getCount () > 0) {
+                operationsBagObject.put (operation.getName (), new BagObject ()
+                        .put ("documents", operationMetrics.documentCount.get ())
+                        .put ("bytes", operationMetrics.byteCount.get ())
+                        .put ("conversion-us", operationMetrics.conversionNanos.get () / 1_000.0)
+                        .put ("latency", operationMetrics.latency.toBagObject ())
+                        .put ("driver-latency", operationMetrics.driverLatency.toBagObject ())
+                );
+            }
+        }
+        return new BagObject ()
+                .put ("name", name)
+                .put ("operations", operationsBagObject)
+                .put ("encode", getSnapshot (encode))
+                .put ("decode", getSnapshot (decode))
+                .put ("retries", retryCount.get ())
+                .put ("timeouts", timeoutCount.get ())
+                .put ("circuit-breaker", new BagObject ()
+                        .put ("state", circuitBreakerState.getName ())
+                        .put ("opened", circuitBreakerOpenCount.get ())
+                        .put ("rejected", rejectedCount.get ())
+                );
+    }
+
+    private static BagObject getSnapshot (ConversionMetrics conversionMetrics) {
+        return new BagObject ()
+                .put ("bytes", conversionMetrics.byteCount.get ())
+                .put ("latency", conversionMetrics.latency.toBagObject ());
+    }
+}
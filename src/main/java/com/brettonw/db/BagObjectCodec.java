@@ -0,0 +1,292 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.RawBsonDocumentCodec;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Collections;
+import java.util.Set;
+
+public class BagObjectCodec implements Codec<BagObject> {
+    static final String UNDERSCORE_ID = "_id";
+
+    private static final RawBsonDocumentCodec RAW_BSON_DOCUMENT_CODEC = new RawBsonDocumentCodec ();
+
+    private final BagMongoMetrics metrics;
+    private final boolean lazy;
+    private final LargeValueStore largeValueStore;
+    private final boolean skipId;
+
+    public BagObjectCodec () {
+        this (null, false, null);
+    }
+
+    /**
+     *
+     * @param metrics where to record the encode and decode times and sizes, or null
+     * @param lazy whether to decode to lazy bag objects that keep the raw BSON and decode
+     *             each field when it is first used
+     * @param largeValueStore where the values that were too long to store inline are, or
+     *                        null
+     */
+    BagObjectCodec (BagMongoMetrics metrics, boolean lazy, LargeValueStore largeValueStore) {
+        this (metrics, lazy, largeValueStore, true);
+    }
+
+    /**
+     *
+     * @param metrics
+     * @param lazy
+     * @param largeValueStore
+     * @param skipId whether "_id" is masked from the objects read, which it is everywhere
+     *               but in aggregation results
+     */
+    BagObjectCodec (BagMongoMetrics metrics, boolean lazy, LargeValueStore largeValueStore, boolean skipId) {
+        this.metrics = metrics;
+        this.lazy = lazy;
+        this.largeValueStore = largeValueStore;
+        this.skipId = skipId;
+    }
+
+    @Override
+    public void encode (BsonWriter writer, BagObject bagObject, EncoderContext encoderContext) {
+        if (metrics != null) {
+            long startTime = System.nanoTime ();
+            int startPosition = getPosition (writer);
+            writeBagObject (writer, bagObject);
+            metrics.recordEncode (System.nanoTime () - startTime, getPosition (writer) - startPosition);
+        } else {
+            writeBagObject (writer, bagObject);
+        }
+    }
+
+    @Override
+    public BagObject decode (BsonReader reader, DecoderContext decoderContext) {
+        // Mongo adds "_id" if the posting object doesn't include it. we decide to allow
+        // this, but to otherwise mask it from the user as it would lock us into the
+        // Mongo API, so it is skipped at the top level rather than decoded and removed
+        if (metrics != null) {
+            long startTime = System.nanoTime ();
+            int startPosition = getPosition (reader);
+            BagObject bagObject = read (reader, decoderContext);
+            metrics.recordDecode (System.nanoTime () - startTime, getPosition (reader) - startPosition);
+            return bagObject;
+        }
+        return read (reader, decoderContext);
+    }
+
+    private BagObject read (BsonReader reader, DecoderContext decoderContext) {
+        // a lazy object only copies the bytes now, and "_id" is masked when it is decoded
+        return lazy
+                ? new LazyBagObject (RAW_BSON_DOCUMENT_CODEC.decode (reader, decoderContext), largeValueStore, skipId)
+                : readBagObject (reader, skipId, largeValueStore);
+    }
+
+    // the encoded size is only known when working directly with binary BSON
+    private static int getPosition (BsonWriter writer) {
+        return (writer instanceof BsonBinaryWriter) ? ((BsonBinaryWriter) writer).getBsonOutput ().getPosition () : 0;
+    }
+
+    private static int getPosition (BsonReader reader) {
+        return (reader instanceof BsonBinaryReader) ? ((BsonBinaryReader) reader).getBsonInput ().getPosition () : 0;
+    }
+
+    @Override
+    public Class<BagObject> getEncoderClass () {
+        return BagObject.class;
+    }
+
+    static void writeBagObject (BsonWriter writer, BagObject bagObject) {
+        // a lazy object that was never decoded is copied as it was read, less the "_id" that
+        // the user never saw
+        if (bagObject instanceof LazyBagObject) {
+            LazyBagObject lazyBagObject = (LazyBagObject) bagObject;
+            RawBsonDocument rawBsonDocument = lazyBagObject.getUndecoded ();
+            if (rawBsonDocument != null) {
+                ByteBuffer bytes = rawBsonDocument.getByteBuffer ().asNIO ();
+                writer.pipe (new BsonBinaryReader (lazyBagObject.isIdSkipped () ? withoutId (bytes) : bytes));
+                return;
+            }
+        }
+        writer.writeStartDocument ();
+        String[] keys = bagObject.keys ();
+        for (String key : keys) {
+            Object value = bagObject.getObject (key);
+            if (value != null) {
+                writer.writeName (key);
+                writeValue (writer, value);
+            }
+        }
+        writer.writeEndDocument ();
+    }
+
+    static ByteBuffer withoutId (ByteBuffer document) {
+        // find the bytes of the top level "_id" element by walking the fields without
+        // decoding them, and cut them out of a copy of the document
+        document.order (ByteOrder.LITTLE_ENDIAN);
+        int offset = document.position (), size = document.remaining ();
+        int idStart = -1, idEnd = -1;
+        try (BsonBinaryReader reader = new BsonBinaryReader (document.duplicate ())) {
+            reader.readStartDocument ();
+            while (idStart < 0) {
+                int start = reader.getBsonInput ().getPosition () - offset;
+                if (reader.readBsonType () == BsonType.END_OF_DOCUMENT) {
+                    break;
+                }
+                String name = reader.readName ();
+                reader.skipValue ();
+                if (name.equals (UNDERSCORE_ID)) {
+                    idStart = start;
+                    idEnd = reader.getBsonInput ().getPosition () - offset;
+                }
+            }
+        }
+        if (idStart < 0) {
+            return document;
+        }
+        int idSize = idEnd - idStart;
+        ByteBuffer copy = ByteBuffer.allocate (size - idSize).order (ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer head = document.duplicate ();
+        head.limit (offset + idStart);
+        ByteBuffer tail = document.duplicate ();
+        tail.position (offset + idEnd);
+        copy.put (head).put (tail).putInt (0, size - idSize);
+        copy.flip ();
+        return copy;
+    }
+
+    static void writeBagArray (BsonWriter writer, BagArray bagArray) {
+        writer.writeStartArray ();
+        for (int i = 0, end = bagArray.getCount (); i < end; ++i) {
+            Object value = bagArray.getObject (i);
+            if (value != null) {
+                writeValue (writer, value);
+            } else {
+                writer.writeNull ();
+            }
+        }
+        writer.writeEndArray ();
+    }
+
+    private static void writeValue (BsonWriter writer, Object value) {
+        // bags hold strings, bag objects, and bag arrays, and the JSON round trip this
+        // replaces stored every scalar as a string, so we do the same here
+        if (value instanceof BagObject) {
+            writeBagObject (writer, (BagObject) value);
+        } else if (value instanceof BagArray) {
+            writeBagArray (writer, (BagArray) value);
+        } else {
+            writer.writeString (value.toString ());
+        }
+    }
+
+    static BagObject readBagObject (BsonReader reader, boolean skipId) {
+        return readBagObject (reader, skipId, null);
+    }
+
+    static BagObject readBagObject (BsonReader reader, boolean skipId, LargeValueStore largeValueStore) {
+        return readBagObject (reader, skipId, largeValueStore, Collections.emptySet ());
+    }
+
+    /**
+     *
+     * @param reader
+     * @param skipId
+     * @param largeValueStore
+     * @param skipKeys top level fields to skip without decoding them
+     * @return
+     */
+    static BagObject readBagObject (BsonReader reader, boolean skipId, LargeValueStore largeValueStore, Set<String> skipKeys) {
+        BagObject bagObject = new BagObject ();
+        reader.readStartDocument ();
+        while (reader.readBsonType () != BsonType.END_OF_DOCUMENT) {
+            String key = reader.readName ();
+            if ((skipId && key.equals (UNDERSCORE_ID)) || skipKeys.contains (key)) {
+                reader.skipValue ();
+            } else {
+                Object value = readValue (reader, largeValueStore);
+                if (value != null) {
+                    bagObject.put (key, value);
+                }
+            }
+        }
+        reader.readEndDocument ();
+        return bagObject;
+    }
+
+    static Object readField (RawBsonDocument rawBsonDocument, String name) {
+        return readField (rawBsonDocument, name, null);
+    }
+
+    static Object readField (RawBsonDocument rawBsonDocument, String name, LargeValueStore largeValueStore) {
+        return readField (rawBsonDocument, name, largeValueStore, true);
+    }
+
+    static Object readField (RawBsonDocument rawBsonDocument, String name, LargeValueStore largeValueStore, boolean skipId) {
+        // find the field by skipping over the ones before it, without decoding them
+        if (! (skipId && name.equals (UNDERSCORE_ID))) {
+            try (BsonBinaryReader reader = new BsonBinaryReader (rawBsonDocument.getByteBuffer ().asNIO ())) {
+                reader.readStartDocument ();
+                while (reader.readBsonType () != BsonType.END_OF_DOCUMENT) {
+                    if (reader.readName ().equals (name)) {
+                        return readValue (reader, largeValueStore);
+                    }
+                    reader.skipValue ();
+                }
+            }
+        }
+        return null;
+    }
+
+    static BagArray readBagArray (BsonReader reader) {
+        return readBagArray (reader, null);
+    }
+
+    private static BagArray readBagArray (BsonReader reader, LargeValueStore largeValueStore) {
+        BagArray bagArray = new BagArray ();
+        reader.readStartArray ();
+        while (reader.readBsonType () != BsonType.END_OF_DOCUMENT) {
+            bagArray.add (readValue (reader, largeValueStore));
+        }
+        reader.readEndArray ();
+        return bagArray;
+    }
+
+    private static Object readValue (BsonReader reader, LargeValueStore largeValueStore) {
+        // scalars are converted to the string forms the bag would have parsed out of the
+        // JSON representation, and anything without a sensible bag form is dropped. a
+        // reference to a large value is replaced by the value.
+        switch (reader.getCurrentBsonType ()) {
+            case DOCUMENT: return readDocument (reader, largeValueStore);
+            case ARRAY: return readBagArray (reader, largeValueStore);
+            case STRING: return reader.readString ();
+            case INT32: return Integer.toString (reader.readInt32 ());
+            case INT64: return Long.toString (reader.readInt64 ());
+            case DOUBLE: return Double.toString (reader.readDouble ());
+            case DECIMAL128: return reader.readDecimal128 ().toString ();
+            case BOOLEAN: return Boolean.toString (reader.readBoolean ());
+            case OBJECT_ID: return reader.readObjectId ().toHexString ();
+            case DATE_TIME: return Long.toString (reader.readDateTime ());
+            case SYMBOL: return reader.readSymbol ();
+            case JAVASCRIPT: return reader.readJavaScript ();
+            case NULL: reader.readNull (); return null;
+            default: reader.skipValue (); return null;
+        }
+    }
+
+    private static Object readDocument (BsonReader reader, LargeValueStore largeValueStore) {
+        BagObject bagObject = readBagObject (reader, false, largeValueStore);
+        return (largeValueStore != null) ? largeValueStore.resolve (bagObject) : bagObject;
+    }
+}
@@ -0,0 +1,320 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.formats.MimeType;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * A read-through cache in front of any BagDbInterface. Query results are held in a
+ * least-recently-used map bounded by entry count, and each entry expires after a fixed
+ * time to live. Any write through this instance clears the whole cache, so reads never
+ * see results older than the last write made here (writes made elsewhere are only bounded
+ * by the time to live, or by a change stream with invalidateOnChanges). Cached results
+ * are shared between callers, and should be treated as read-only. Pages, streams,
+ * aggregations, and counts are always passed through to the underlying database.
+ */
+public class CachingBagDb implements BagDbInterface {
+    private static final Logger log = LogManager.getLogger (CachingBagDb.class);
+
+    // a cached lookup that didn't find anything
+    private static final Object NOT_FOUND = new Object ();
+
+    private static class CacheEntry {
+        final Object value;
+        final long expiresAt;
+
+        CacheEntry (Object value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final BagDbInterface bagDb;
+    private final int maximumSize;
+    private final long timeToLiveNanos;
+    private final LinkedHashMap<String, CacheEntry> cache;
+
+    private final AtomicLong hitCount;
+    private final AtomicLong missCount;
+    private final AtomicLong evictionCount;
+    private final AtomicLong invalidationCount;
+
+    /**
+     *
+     * @param bagDb the database to cache
+     * @param maximumSize the maximum number of cached query results
+     * @param timeToLive how long a cached result is valid
+     * @param timeUnit
+     */
+    public CachingBagDb (BagDbInterface bagDb, int maximumSize, long timeToLive, TimeUnit timeUnit) {
+        this.bagDb = bagDb;
+        this.maximumSize = maximumSize;
+        timeToLiveNanos = timeUnit.toNanos (timeToLive);
+        hitCount = new AtomicLong ();
+        missCount = new AtomicLong ();
+        evictionCount = new AtomicLong ();
+        invalidationCount = new AtomicLong ();
+        cache = new LinkedHashMap<String, CacheEntry> (16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String, CacheEntry> eldest) {
+                if (size () > CachingBagDb.this.maximumSize) {
+                    evictionCount.incrementAndGet ();
+                    return true;
+                }
+                return false;
+            }
+        };
+        log.info ("Caching '" + getName () + "' (" + maximumSize + " entries, " + timeToLive + " " + timeUnit + ")");
+    }
+
+    private interface Loader {
+        Object load ();
+    }
+
+    private Object lookup (String key, Loader loader) {
+        long now = System.nanoTime ();
+        synchronized (cache) {
+            CacheEntry entry = cache.get (key);
+            if (entry != null) {
+                if ((entry.expiresAt - now) > 0) {
+                    hitCount.incrementAndGet ();
+                    return entry.value;
+                }
+                cache.remove (key);
+                evictionCount.incrementAndGet ();
+            }
+        }
+
+        // load outside the lock so a slow query doesn't hold up the other readers, and
+        // only keep the result if no write invalidated the cache while it was loading
+        missCount.incrementAndGet ();
+        long invalidations = invalidationCount.get ();
+        Object value = loader.load ();
+        synchronized (cache) {
+            if (invalidations == invalidationCount.get ()) {
+                cache.put (key, new CacheEntry ((value != null) ? value : NOT_FOUND, now + timeToLiveNanos));
+            }
+        }
+        return value;
+    }
+
+    private static Object found (Object value) {
+        return (value != NOT_FOUND) ? value : null;
+    }
+
+    private static String key (String operation, String queryJson, Projection projection) {
+        return operation + ":" + ((queryJson != null) ? QueryCache.normalize (queryJson) : "") + ":" + ((projection != null) ? projection.toString () : "");
+    }
+
+    private void invalidate () {
+        synchronized (cache) {
+            invalidationCount.incrementAndGet ();
+            cache.clear ();
+        }
+    }
+
+    @Override
+    public BagDbInterface put (BagObject bagObject) {
+        bagDb.put (bagObject);
+        invalidate ();
+        return this;
+    }
+
+    @Override
+    public BagDbInterface putMany (BagArray bagArray) {
+        bagDb.putMany (bagArray);
+        invalidate ();
+        return this;
+    }
+
+    @Override
+    public BagDbInterface upsert (String[] keyFields, BagObject bagObject) {
+        bagDb.upsert (keyFields, bagObject);
+        invalidate ();
+        return this;
+    }
+
+    @Override
+    public BagDbInterface upsertMany (String[] keyFields, BagArray bagArray) {
+        bagDb.upsertMany (keyFields, bagArray);
+        invalidate ();
+        return this;
+    }
+
+    @Override
+    public BagDbInterface update (String queryJson, BagObject changes) {
+        bagDb.update (queryJson, changes);
+        invalidate ();
+        return this;
+    }
+
+    @Override
+    public BagDbInterface updateMany (String queryJson, BagObject changes) {
+        bagDb.updateMany (queryJson, changes);
+        invalidate ();
+        return this;
+    }
+
+    @Override
+    public BagObject get (String queryJson) {
+        return get (queryJson, null);
+    }
+
+    @Override
+    public BagObject get (final String queryJson, final Projection projection) {
+        return (BagObject) found (lookup (key ("get", queryJson, projection), () -> bagDb.get (queryJson, projection)));
+    }
+
+    @Override
+    public BagArray getMany (String queryJson) {
+        return getMany (queryJson, null);
+    }
+
+    @Override
+    public BagArray getMany (final String queryJson, final Projection projection) {
+        return (BagArray) found (lookup (key ("getMany", queryJson, projection), () -> bagDb.getMany (queryJson, projection)));
+    }
+
+    @Override
+    public BagArray getAll () {
+        return getAll (null);
+    }
+
+    @Override
+    public BagArray getAll (final Projection projection) {
+        return (BagArray) found (lookup (key ("getAll", null, projection), () -> bagDb.getAll (projection)));
+    }
+
+    @Override
+    public BagArray getByKeys (final String field, final BagArray values) {
+        return (BagArray) found (lookup ("getByKeys:" + field + ":" + values.toString (MimeType.JSON), () -> bagDb.getByKeys (field, values)));
+    }
+
+    @Override
+    public Page getPage (String queryJson, String sortField, int pageSize, String resumeToken) {
+        return bagDb.getPage (queryJson, sortField, pageSize, resumeToken);
+    }
+
+    @Override
+    public Stream<BagObject> stream (String queryJson) {
+        return bagDb.stream (queryJson);
+    }
+
+    @Override
+    public Stream<BagObject> streamAll () {
+        return bagDb.streamAll ();
+    }
+
+    @Override
+    public Stream<BagObject> aggregate (BagArray pipeline) {
+        return bagDb.aggregate (pipeline);
+    }
+
+    @Override
+    public BagDbInterface delete (String queryJson) {
+        bagDb.delete (queryJson);
+        invalidate ();
+        return this;
+    }
+
+    @Override
+    public BagDbInterface deleteMany (String queryJson) {
+        bagDb.deleteMany (queryJson);
+        invalidate ();
+        return this;
+    }
+
+    @Override
+    public BagDbInterface deleteAll () {
+        bagDb.deleteAll ();
+        invalidate ();
+        return this;
+    }
+
+    @Override
+    public void drop () throws Exception {
+        invalidate ();
+        bagDb.drop ();
+    }
+
+    @Override
+    public long getCount () {
+        return bagDb.getCount ();
+    }
+
+    @Override
+    public long getCount (String queryJson) {
+        return bagDb.getCount (queryJson);
+    }
+
+    @Override
+    public String getName () {
+        return bagDb.getName ();
+    }
+
+    @Override
+    public void close () throws Exception {
+        invalidate ();
+        bagDb.close ();
+        log.info ("Cache for '" + getName () + "' closed (" + getStatistics ().toString (MimeType.JSON) + ")");
+    }
+
+    /**
+     * clear the cache on every change to the objects, including writes made elsewhere
+     * @param bagMongo the database under this cache
+     * @return the subscription, which closes with the database
+     */
+    public ChangeSubscription invalidateOnChanges (BagMongo bagMongo) {
+        return bagMongo.watch (null, change -> invalidate ());
+    }
+
+    public long getHitCount () {
+        return hitCount.get ();
+    }
+
+    public long getMissCount () {
+        return missCount.get ();
+    }
+
+    public long getEvictionCount () {
+        return evictionCount.get ();
+    }
+
+    public long getInvalidationCount () {
+        return invalidationCount.get ();
+    }
+
+    public int getSize () {
+        synchronized (cache) {
+            return cache.size ();
+        }
+    }
+
+    public double getHitRate () {
+        long hits = hitCount.get ();
+        long total = hits + missCount.get ();
+        return (total > 0) ? ((double) hits / total) : 0;
+    }
+
+    /**
+     *
+     * @return the cache counters as a bag object
+     */
+    public BagObject getStatistics () {
+        return new BagObject ()
+                .put ("size", getSize ())
+                .put ("hits", getHitCount ())
+                .put ("misses", getMissCount ())
+                .put ("evictions", getEvictionCount ())
+                .put ("invalidations", getInvalidationCount ())
+                .put ("hit-rate", getHitRate ());
+    }
+}
@@ -0,0 +1,225 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import com.mongodb.MongoException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * A running subscription to the changes in a collection, backed by a change stream and
+ * delivered in order on its own listener thread. Each change is a bag object with the
+ * operation ("insert", "update", "replace", or "delete"), the key of the changed object
+ * (the string form of its "_id"), and for everything but a delete, the object as it is
+ * after the change, decoded with "_id" masked like every other read. An update also has
+ * the fields it set and the names of the fields it removed.
+ * <p>
+ * The resume token of the last delivered change is kept, and the stream is reopened from
+ * it after a failure (e.g. a stepdown), so nothing is missed or repeated. The token can be
+ * saved and passed back to watch to pick up after a restart. A change is only counted as
+ * delivered once the consumer returns, and a consumer that throws is logged and skipped.
+ * The subscription ends when it is closed, or when the collection is dropped or renamed.
+ */
+public class ChangeSubscription implements AutoCloseable {
+    private static final Logger log = LogManager.getLogger (ChangeSubscription.class);
+
+    public static final String OPERATION = "operation";
+    public static final String KEY = "key";
+    public static final String OBJECT = "object";
+    public static final String UPDATED = "updated";
+    public static final String REMOVED = "removed";
+
+    private static final long MAX_AWAIT_MILLIS = 1000;
+    private static final long RETRY_DELAY_MILLIS = 100;
+    private static final long RETRY_DELAY_MAX_MILLIS = 10000;
+
+    private final MongoCollection<BagObject> collection;
+    private final String name;
+    private final List<Bson> pipeline;
+    private final Consumer<BagObject> consumer;
+    private final Thread thread;
+    private final AtomicLong deliveredCount;
+    private volatile BsonDocument resumeToken;
+    private volatile boolean running;
+
+    ChangeSubscription (MongoCollection<BagObject> collection, String name, List<Bson> pipeline, Consumer<BagObject> consumer, BsonDocument resumeToken) {
+        this.collection = collection;
+        this.name = name;
+        this.pipeline = pipeline;
+        this.consumer = consumer;
+        this.resumeToken = resumeToken;
+        deliveredCount = new AtomicLong ();
+        running = true;
+
+        // the stream is opened here, so every change after watch returns is delivered, and a
+        // collection that can't be watched fails right away
+        final MongoCursor<ChangeStreamDocument<BagObject>> cursor = open ();
+        thread = AsyncBagDb.daemonThreadFactory ("watch-" + name).newThread (() -> listen (cursor));
+        thread.start ();
+        log.info ("Watching '" + name + "'");
+    }
+
+    private MongoCursor<ChangeStreamDocument<BagObject>> open () {
+        // updates look up the whole object, so they can be matched and delivered like the rest
+        ChangeStreamIterable<BagObject> changeStreamIterable = collection
+                .watch (pipeline)
+                .fullDocument (FullDocument.UPDATE_LOOKUP)
+                .maxAwaitTime (MAX_AWAIT_MILLIS, TimeUnit.MILLISECONDS);
+        if (resumeToken != null) {
+            changeStreamIterable.resumeAfter (resumeToken);
+        }
+        return changeStreamIterable.iterator ();
+    }
+
+    private void listen (MongoCursor<ChangeStreamDocument<BagObject>> cursor) {
+        // the cursor waits at most the await time for each change, so a close is seen promptly
+        int failureCount = 0;
+        while (running) {
+            try {
+                if (cursor == null) {
+                    cursor = open ();
+                }
+                ChangeStreamDocument<BagObject> change = cursor.tryNext ();
+                if (change != null) {
+                    deliver (change);
+                    failureCount = 0;
+                }
+            } catch (MongoException exception) {
+                cursor = closeQuietly (cursor);
+                if (running) {
+                    long delay = Math.min (RETRY_DELAY_MILLIS << Math.min (failureCount++, 16), RETRY_DELAY_MAX_MILLIS);
+                    log.warn ("Change stream on '" + name + "' failed, reopening in " + delay + " ms", exception);
+                    try {
+                        Thread.sleep (delay);
+                    } catch (InterruptedException interruptedException) {
+                        running = false;
+                    }
+                }
+            } catch (RuntimeException exception) {
+                // anything else would fail the same way again
+                log.error ("Change stream on '" + name + "' stopped", exception);
+                running = false;
+            }
+        }
+        closeQuietly (cursor);
+        log.info ("Stopped watching '" + name + "' after " + deliveredCount.get () + " changes");
+    }
+
+    private MongoCursor<ChangeStreamDocument<BagObject>> closeQuietly (MongoCursor<ChangeStreamDocument<BagObject>> cursor) {
+        if (cursor != null) {
+            try {
+                cursor.close ();
+            } catch (RuntimeException exception) {
+                log.debug ("Failed to close the change stream on '" + name + "'", exception);
+            }
+        }
+        return null;
+    }
+
+    private void deliver (ChangeStreamDocument<BagObject> change) {
+        OperationType operationType = change.getOperationType ();
+        switch (operationType) {
+            case INSERT:
+            case UPDATE:
+            case REPLACE:
+            case DELETE:
+                try {
+                    consumer.accept (toBagObject (change));
+                } catch (RuntimeException exception) {
+                    log.error ("Change consumer on '" + name + "' failed", exception);
+                }
+                deliveredCount.incrementAndGet ();
+                resumeToken = change.getResumeToken ();
+                break;
+            default:
+                // the collection is gone, so there is nothing left to watch
+                log.info ("Change stream on '" + name + "' ended (" + operationType.getValue () + ")");
+                resumeToken = change.getResumeToken ();
+                running = false;
+                break;
+        }
+    }
+
+    private static BagObject toBagObject (ChangeStreamDocument<BagObject> change) {
+        BagObject bagObject = new BagObject ().put (OPERATION, change.getOperationType ().getValue ());
+        BsonDocument documentKey = change.getDocumentKey ();
+        BsonValue id = (documentKey != null) ? documentKey.get (BagObjectCodec.UNDERSCORE_ID) : null;
+        if (id != null) {
+            bagObject.put (KEY, id.isString () ? id.asString ().getValue () : id.isObjectId () ? id.asObjectId ().getValue ().toHexString () : id.toString ());
+        }
+        if (change.getFullDocument () != null) {
+            bagObject.put (OBJECT, change.getFullDocument ());
+        }
+        UpdateDescription updateDescription = change.getUpdateDescription ();
+        if (updateDescription != null) {
+            if (updateDescription.getUpdatedFields () != null) {
+                bagObject.put (UPDATED, BagObjectCodec.readBagObject (new BsonDocumentReader (updateDescription.getUpdatedFields ()), false));
+            }
+            if (updateDescription.getRemovedFields () != null) {
+                BagArray removed = new BagArray ();
+                for (String field : updateDescription.getRemovedFields ()) {
+                    removed.add (field);
+                }
+                bagObject.put (REMOVED, removed);
+            }
+        }
+        return bagObject;
+    }
+
+    public boolean isRunning () {
+        return running && thread.isAlive ();
+    }
+
+    /**
+     *
+     * @return the number of changes delivered to the consumer
+     */
+    public long getDeliveredCount () {
+        return deliveredCount.get ();
+    }
+
+    /**
+     *
+     * @return the token to resume after the last delivered change, or null if there hasn't
+     * been one
+     */
+    public String getResumeToken () {
+        BsonDocument token = resumeToken;
+        return (token != null) ? token.toJson () : null;
+    }
+
+    static BsonDocument decodeResumeToken (String resumeToken) {
+        try {
+            return (resumeToken != null) ? BsonDocument.parse (resumeToken) : null;
+        } catch (RuntimeException exception) {
+            throw new IllegalArgumentException ("Invalid resume token (" + resumeToken + ")", exception);
+        }
+    }
+
+    /**
+     * stop listening, and wait for the listener to finish the change it is delivering
+     */
+    @Override
+    public void close () throws InterruptedException {
+        running = false;
+        if (Thread.currentThread () != thread) {
+            thread.join (MAX_AWAIT_MILLIS * 2);
+        }
+    }
+}
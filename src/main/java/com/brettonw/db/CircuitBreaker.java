@@ -0,0 +1,134 @@
+package com.brettonw.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Fails the operations on a collection fast once enough of them in a row have timed out or
+ * failed to reach the server, instead of letting every caller wait out its own timeout
+ * against a server that isn't answering. The breaker stays open for the open time, then
+ * lets one trial operation through (half open). If the server answers the trial the
+ * breaker closes, otherwise it opens again. A threshold of 0 means the breaker never
+ * opens. State changes are counted in the collection's metrics.
+ */
+public class CircuitBreaker {
+    private static final Logger log = LogManager.getLogger (CircuitBreaker.class);
+
+    public enum State {
+        CLOSED ("closed"),
+        OPEN ("open"),
+        HALF_OPEN ("half-open");
+
+        private final String name;
+
+        State (String name) {
+            this.name = name;
+        }
+
+        public String getName () {
+            return name;
+        }
+    }
+
+    private final String name;
+    private final int threshold;
+    private final long openNanos;
+    private final BagMongoMetrics metrics;
+    private final AtomicReference<State> state;
+    private final AtomicInteger consecutiveFailures;
+    private volatile long openedTime;
+
+    CircuitBreaker (String name, int threshold, long openMillis, BagMongoMetrics metrics) {
+        this.name = name;
+        this.threshold = threshold;
+        this.openNanos = TimeUnit.MILLISECONDS.toNanos (openMillis);
+        this.metrics = metrics;
+        state = new AtomicReference<> (State.CLOSED);
+        consecutiveFailures = new AtomicInteger ();
+        metrics.recordCircuitBreakerState (State.CLOSED);
+    }
+
+    /**
+     *
+     * @return true if an operation can go ahead, false if it should fail fast
+     */
+    boolean allow () {
+        switch (state.get ()) {
+            case CLOSED:
+                return true;
+            case OPEN:
+                // only the first caller after the open time gets to make the trial
+                return ((System.nanoTime () - openedTime) >= openNanos) && transition (State.OPEN, State.HALF_OPEN);
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * the server answered the operation, which includes answering with an error
+     */
+    void recordSuccess () {
+        consecutiveFailures.set (0);
+        if (state.get () == State.HALF_OPEN) {
+            transition (State.HALF_OPEN, State.CLOSED);
+        }
+    }
+
+    /**
+     * the operation timed out, or couldn't reach the server
+     */
+    void recordFailure () {
+        if (state.get () == State.HALF_OPEN) {
+            open (State.HALF_OPEN);
+        } else if ((threshold > 0) && (consecutiveFailures.incrementAndGet () >= threshold)) {
+            open (State.CLOSED);
+        }
+    }
+
+    /**
+     * the operation failed without an answer from the server for a reason that says nothing
+     * about the server (a bad argument, an interrupt). a trial that ends this way gives the
+     * next caller the trial, without counting as the breaker opening again.
+     */
+    void recordInconclusive () {
+        state.compareAndSet (State.HALF_OPEN, State.OPEN);
+    }
+
+    private void open (State from) {
+        // the time is set first, so a caller that sees the breaker open sees when it opened.
+        // if another thread changed the state first, the time is only read while open, and
+        // then it was just opened anyway.
+        openedTime = System.nanoTime ();
+        transition (from, State.OPEN);
+    }
+
+    private boolean transition (State from, State to) {
+        if (state.compareAndSet (from, to)) {
+            consecutiveFailures.set (0);
+            metrics.recordCircuitBreakerState (to);
+            if (to == State.CLOSED) {
+                log.info ("Circuit breaker for '" + name + "' closed");
+            } else {
+                log.warn ("Circuit breaker for '" + name + "' " + to.getName ());
+            }
+            return true;
+        }
+        return false;
+    }
+
+    public State getState () {
+        return state.get ();
+    }
+
+    public int getThreshold () {
+        return threshold;
+    }
+
+    public long getOpenMillis () {
+        return TimeUnit.NANOSECONDS.toMillis (openNanos);
+    }
+}
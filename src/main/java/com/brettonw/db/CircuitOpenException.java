@@ -0,0 +1,15 @@
+package com.brettonw.db;
+
+import com.mongodb.MongoClientException;
+
+/**
+ * Thrown instead of running an operation while the collection's circuit breaker is open,
+ * see CircuitBreaker.
+ */
+public class CircuitOpenException extends MongoClientException {
+    private static final long serialVersionUID = 1L;
+
+    public CircuitOpenException (String message) {
+        super (message);
+    }
+}
@@ -0,0 +1,395 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.BagObjectFrom;
+import com.brettonw.bag.formats.MimeType;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.InsertManyOptions;
+import com.mongodb.client.model.Projections;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Streams a collection to and from a file without holding more than a few batches in
+ * memory. Exports read through a cursor and write through a buffered file channel, and
+ * BSON exports copy the stored bytes without decoding them. Imports read the file in
+ * chunks on one thread, and hand each batch to a pool of threads that parse it (NDJSON)
+ * and write it as an unordered bulk insert. The number of batches in flight is bounded, so
+ * the reader waits for the writers. Both directions log their throughput as they go.
+ * Files always hold long values inline, so when the collection keeps them in its large
+ * value store, BSON exports decode the documents that refer to one, and imports store the
+ * long values again, the same as a put does.
+ */
+class CollectionTransfer {
+    private static final Logger log = LogManager.getLogger (CollectionTransfer.class);
+
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final long PROGRESS_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos (5);
+    private static final byte[] NEWLINE = { '\n' };
+    private static final BagObjectCodec BAG_OBJECT_CODEC = new BagObjectCodec ();
+    private static final BsonDocumentCodec BSON_DOCUMENT_CODEC = new BsonDocumentCodec ();
+
+    private final BagMongo bagMongo;
+    private final MongoCollection<BagObject> collection;
+    private final int parallelism;
+
+    CollectionTransfer (BagMongo bagMongo, MongoCollection<BagObject> collection, int parallelism) {
+        this.bagMongo = bagMongo;
+        this.collection = collection;
+        this.parallelism = parallelism;
+    }
+
+    private static class Progress {
+        private final String description;
+        private final long startTime;
+        private final AtomicLong documentCount;
+        private final AtomicLong byteCount;
+        private final AtomicLong lastReportTime;
+
+        Progress (String description) {
+            this.description = description;
+            startTime = System.nanoTime ();
+            documentCount = new AtomicLong ();
+            byteCount = new AtomicLong ();
+            lastReportTime = new AtomicLong (startTime);
+        }
+
+        void add (long documents, long bytes) {
+            documentCount.addAndGet (documents);
+            byteCount.addAndGet (bytes);
+            long now = System.nanoTime ();
+            long lastReport = lastReportTime.get ();
+            if (((now - lastReport) > PROGRESS_INTERVAL_NANOS) && lastReportTime.compareAndSet (lastReport, now)) {
+                report ("");
+            }
+        }
+
+        long report (String state) {
+            double seconds = Math.max (System.nanoTime () - startTime, 1) / 1e9;
+            long documents = documentCount.get ();
+            double megabytes = byteCount.get () / (1024.0 * 1024.0);
+            log.info (String.format ("%s%s: %d documents, %.1f MB in %.1f s (%.0f documents/s, %.1f MB/s)",
+                    description, state, documents, megabytes, seconds, documents / seconds, megabytes / seconds));
+            return documents;
+        }
+    }
+
+    private static class ChannelOutput implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+
+        ChannelOutput (Path path) throws IOException {
+            channel = FileChannel.open (path, StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = ByteBuffer.allocateDirect (BUFFER_SIZE);
+        }
+
+        void write (ByteBuffer source) throws IOException {
+            if (source.remaining () > buffer.remaining ()) {
+                flush ();
+                if (source.remaining () > buffer.capacity ()) {
+                    while (source.hasRemaining ()) {
+                        channel.write (source);
+                    }
+                    return;
+                }
+            }
+            buffer.put (source);
+        }
+
+        void flush () throws IOException {
+            buffer.flip ();
+            while (buffer.hasRemaining ()) {
+                channel.write (buffer);
+            }
+            buffer.clear ();
+        }
+
+        @Override
+        public void close () throws IOException {
+            try {
+                flush ();
+            } finally {
+                channel.close ();
+            }
+        }
+    }
+
+    long exportTo (Path path, FileFormat format) throws IOException {
+        Progress progress = new Progress ("Export of '" + bagMongo.getName () + "' to '" + path + "'");
+        try (ChannelOutput output = new ChannelOutput (path)) {
+            if (format == FileFormat.BSON) {
+                // the stored bytes are written as they are, without decoding them
+                LargeValueStore largeValueStore = bagMongo.getLargeValueStore ();
+                try (MongoCursor<RawBsonDocument> cursor = find (collection.withDocumentClass (RawBsonDocument.class))) {
+                    while (cursor.hasNext ()) {
+                        RawBsonDocument document = cursor.next ();
+                        if (largeValueStore != null) {
+                            document = resolve (document, largeValueStore);
+                        }
+                        ByteBuffer bytes = document.getByteBuffer ().asNIO ();
+                        progress.add (1, bytes.remaining ());
+                        output.write (bytes);
+                    }
+                }
+            } else {
+                try (MongoCursor<BagObject> cursor = find (collection)) {
+                    while (cursor.hasNext ()) {
+                        byte[] bytes = cursor.next ().toString (MimeType.JSON).getBytes (StandardCharsets.UTF_8);
+                        progress.add (1, bytes.length + 1);
+                        output.write (ByteBuffer.wrap (bytes));
+                        output.write (ByteBuffer.wrap (NEWLINE));
+                    }
+                }
+            }
+        }
+        return progress.report (" finished");
+    }
+
+    private static RawBsonDocument resolve (RawBsonDocument document, LargeValueStore largeValueStore) {
+        // a document that refers to large values is decoded with the values read back in
+        if (LargeValueStore.getReferences (document).isEmpty ()) {
+            return document;
+        }
+        BagObject bagObject = BagObjectCodec.readBagObject (new BsonBinaryReader (document.getByteBuffer ().asNIO ()), true, largeValueStore);
+        return new RawBsonDocument (bagObject, BAG_OBJECT_CODEC);
+    }
+
+    private RawBsonDocument externalize (RawBsonDocument document, int valueSize) {
+        // a document too small to hold a long value is inserted as it is, otherwise its long
+        // values are stored the same as a put stores them, and an "_id" from the file is kept
+        if (document.getByteBuffer ().remaining () <= valueSize) {
+            return document;
+        }
+        BagObject bagObject = BagObjectCodec.readBagObject (new BsonBinaryReader (document.getByteBuffer ().asNIO ()), true);
+        BagObject externalized = bagMongo.externalize (bagObject);
+        if (externalized == bagObject) {
+            return document;
+        }
+        BsonDocument externalizedDocument = new BsonDocument ();
+        if (document.containsKey (BagObjectCodec.UNDERSCORE_ID)) {
+            externalizedDocument.put (BagObjectCodec.UNDERSCORE_ID, document.get (BagObjectCodec.UNDERSCORE_ID));
+        }
+        externalizedDocument.putAll (new RawBsonDocument (externalized, BAG_OBJECT_CODEC));
+        return new RawBsonDocument (externalizedDocument, BSON_DOCUMENT_CODEC);
+    }
+
+    private <T> MongoCursor<T> find (MongoCollection<T> source) {
+        // "_id" is masked from the user everywhere else, so it isn't exported either
+        return source
+                .find ()
+                .projection (Projections.excludeId ())
+                .batchSize (Math.max (bagMongo.getReadBatchSize (), bagMongo.getWriteBatchSize ()))
+                .iterator ();
+    }
+
+    private class Importer {
+        private final Progress progress;
+        private final PutManyResult putManyResult;
+        private final ExecutorService executor;
+        private final Semaphore inFlight;
+        private final InsertManyOptions insertManyOptions;
+
+        Importer (Path path) {
+            progress = new Progress ("Import of '" + path + "' to '" + bagMongo.getName () + "'");
+            putManyResult = new PutManyResult ();
+            executor = Executors.newFixedThreadPool (parallelism, AsyncBagDb.daemonThreadFactory ("import-" + bagMongo.getName ()));
+            inFlight = new Semaphore (parallelism * 2);
+            insertManyOptions = new InsertManyOptions ().ordered (false);
+        }
+
+        void submit (Runnable batch, int start, int count) throws IOException {
+            try {
+                inFlight.acquire ();
+            } catch (InterruptedException exception) {
+                Thread.currentThread ().interrupt ();
+                throw new IOException ("Import interrupted", exception);
+            }
+            executor.execute (() -> {
+                // a batch that fails as a whole (e.g. storing a large value) counts every one
+                // of its objects as failed, with the error at the start of the batch
+                try {
+                    batch.run ();
+                } catch (RuntimeException exception) {
+                    log.error ("Failed to import a batch to '" + bagMongo.getName () + "'", exception);
+                    synchronized (putManyResult) {
+                        putManyResult.addFailed (count);
+                        putManyResult.addError (start, "Failed to import the batch of " + count + " (" + exception.getMessage () + ")");
+                    }
+                } finally {
+                    inFlight.release ();
+                }
+            });
+        }
+
+        void putLines (List<String> lines, int start) {
+            // lines that aren't valid JSON objects fail on their own, and the errors from the
+            // insert are moved back to the line numbers they came from. nothing is recorded
+            // until the whole batch is done, so a batch that fails isn't counted twice.
+            List<BagObject> batch = new ArrayList<> (lines.size ());
+            int[] lineIndices = new int[lines.size ()];
+            List<Integer> invalidLines = new ArrayList<> ();
+            PutManyResult batchResult = new PutManyResult ();
+            long byteCount = 0;
+            for (int i = 0, end = lines.size (); i < end; ++i) {
+                String line = lines.get (i);
+                byteCount += line.length () + 1;
+                BagObject bagObject = null;
+                try {
+                    bagObject = BagObjectFrom.string (line, MimeType.JSON);
+                } catch (RuntimeException exception) {
+                    // reported below
+                }
+                if (bagObject != null) {
+                    lineIndices[batch.size ()] = start + i;
+                    batch.add (bagMongo.externalize (bagObject));
+                } else {
+                    invalidLines.add (start + i);
+                }
+            }
+            if (! batch.isEmpty ()) {
+                bagMongo.putBatch (collection, batch, 0, insertManyOptions, batchResult);
+            }
+            synchronized (putManyResult) {
+                for (int invalidLine : invalidLines) {
+                    putManyResult.addFailed (1);
+                    putManyResult.addError (invalidLine, "Invalid JSON object");
+                }
+                putManyResult.add (batchResult, index -> lineIndices[index]);
+            }
+            progress.add (lines.size (), byteCount);
+        }
+
+        void putDocuments (List<RawBsonDocument> documents, int start) {
+            PutManyResult batchResult = new PutManyResult ();
+            long byteCount = 0;
+            for (RawBsonDocument document : documents) {
+                byteCount += document.getByteBuffer ().remaining ();
+            }
+            int valueSize = bagMongo.getLargeValueSize ();
+            if (valueSize > 0) {
+                documents.replaceAll (document -> externalize (document, valueSize));
+            }
+            bagMongo.putBatch (collection.withDocumentClass (RawBsonDocument.class), documents, 0, insertManyOptions, batchResult);
+            synchronized (putManyResult) {
+                putManyResult.add (batchResult, index -> start + index);
+            }
+            progress.add (documents.size (), byteCount);
+        }
+
+        PutManyResult finish () throws IOException {
+            executor.shutdown ();
+            try {
+                inFlight.acquire (parallelism * 2);
+            } catch (InterruptedException exception) {
+                Thread.currentThread ().interrupt ();
+                throw new IOException ("Import interrupted", exception);
+            }
+            progress.report (" finished");
+            return putManyResult;
+        }
+    }
+
+    PutManyResult importFrom (Path path, FileFormat format) throws IOException {
+        Importer importer = new Importer (path);
+        int batchSize = bagMongo.getWriteBatchSize ();
+        int index = 0;
+        try {
+            if (format == FileFormat.BSON) {
+                List<RawBsonDocument> batch = new ArrayList<> (batchSize);
+                try (FileChannel channel = FileChannel.open (path, StandardOpenOption.READ)) {
+                    ByteBuffer buffer = ByteBuffer.allocate (BUFFER_SIZE).order (ByteOrder.LITTLE_ENDIAN);
+                    boolean endOfFile = false;
+                    while (! endOfFile) {
+                        endOfFile = channel.read (buffer) < 0;
+                        buffer.flip ();
+
+                        // each document starts with its size, and only whole documents are taken
+                        while (buffer.remaining () >= 4) {
+                            int size = buffer.getInt (buffer.position ());
+                            if (size < 5) {
+                                throw new IOException ("Invalid BSON document size (" + size + ") at document " + index);
+                            }
+                            if (buffer.remaining () < size) {
+                                break;
+                            }
+                            byte[] bytes = new byte[size];
+                            buffer.get (bytes);
+                            batch.add (new RawBsonDocument (bytes));
+                            if (batch.size () == batchSize) {
+                                final List<RawBsonDocument> documents = batch;
+                                final int start = index;
+                                importer.submit (() -> importer.putDocuments (documents, start), start, documents.size ());
+                                index += batch.size ();
+                                batch = new ArrayList<> (batchSize);
+                            }
+                        }
+                        if (endOfFile && buffer.hasRemaining ()) {
+                            throw new IOException ("Truncated BSON document at document " + (index + batch.size ()));
+                        }
+                        buffer.compact ();
+
+                        // a document bigger than the buffer needs a bigger buffer
+                        if (! buffer.hasRemaining ()) {
+                            ByteBuffer bigger = ByteBuffer.allocate (buffer.capacity () * 2).order (ByteOrder.LITTLE_ENDIAN);
+                            buffer.flip ();
+                            buffer = bigger.put (buffer);
+                        }
+                    }
+                }
+                if (! batch.isEmpty ()) {
+                    final List<RawBsonDocument> documents = batch;
+                    final int start = index;
+                    importer.submit (() -> importer.putDocuments (documents, start), start, documents.size ());
+                }
+            } else {
+                List<String> batch = new ArrayList<> (batchSize);
+                try (BufferedReader reader = new BufferedReader (new InputStreamReader (Channels.newInputStream (FileChannel.open (path, StandardOpenOption.READ)), StandardCharsets.UTF_8), BUFFER_SIZE)) {
+                    String line;
+                    while ((line = reader.readLine ()) != null) {
+                        if (! line.trim ().isEmpty ()) {
+                            batch.add (line);
+                            if (batch.size () == batchSize) {
+                                final List<String> lines = batch;
+                                final int start = index;
+                                importer.submit (() -> importer.putLines (lines, start), start, lines.size ());
+                                index += batch.size ();
+                                batch = new ArrayList<> (batchSize);
+                            }
+                        }
+                    }
+                }
+                if (! batch.isEmpty ()) {
+                    final List<String> lines = batch;
+                    final int start = index;
+                    importer.submit (() -> importer.putLines (lines, start), start, lines.size ());
+                }
+            }
+        } finally {
+            importer.finish ();
+        }
+        return importer.putManyResult;
+    }
+}
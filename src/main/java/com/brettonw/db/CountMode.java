@@ -0,0 +1,29 @@
+package com.brettonw.db;
+
+/**
+ * How BagMongo answers getCount without a query. ESTIMATED, the default, reads the count
+ * from the collection metadata (fast, but it can be off after an unclean shutdown or
+ * during a sharded migration). EXACT counts the documents on the server, which scans the
+ * whole collection, so it is only worth it when the count has to be exact. CACHED keeps a
+ * local count that this instance adjusts with its own writes and refreshes from the
+ * estimate on an interval, so a count usually costs nothing.
+ */
+public enum CountMode {
+    EXACT,
+    ESTIMATED,
+    CACHED;
+
+    /**
+     *
+     * @param name
+     * @return the mode with the name, ignoring case, or null if there isn't one
+     */
+    public static CountMode fromName (String name) {
+        for (CountMode countMode : values ()) {
+            if (countMode.name ().equalsIgnoreCase (name)) {
+                return countMode;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,94 @@
+package com.brettonw.db;
+
+import com.mongodb.MongoException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+import org.bson.conversions.Bson;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs "explain" on a random sample of queries, and logs and counts the ones whose
+ * winning plan scans the whole collection instead of using an index.
+ */
+class ExplainSampler {
+    private static final Logger log = LogManager.getLogger (ExplainSampler.class);
+
+    private static final String COLLSCAN = "COLLSCAN";
+
+    private final MongoDatabase database;
+    private final double sampleRate;
+    private final AtomicLong explainCount;
+    private final AtomicLong collectionScanCount;
+
+    ExplainSampler (MongoDatabase database, double sampleRate) {
+        this.database = database;
+        this.sampleRate = sampleRate;
+        explainCount = new AtomicLong ();
+        collectionScanCount = new AtomicLong ();
+    }
+
+    void sample (MongoCollection<?> collection, Bson filter) {
+        if ((sampleRate > 0) && (ThreadLocalRandom.current ().nextDouble () < sampleRate)) {
+            // an empty filter is a collection scan by definition, so it isn't interesting
+            BsonDocument filterDocument = filter.toBsonDocument (BsonDocument.class, collection.getCodecRegistry ());
+            if (! filterDocument.isEmpty ()) {
+                explain (collection, filterDocument);
+            }
+        }
+    }
+
+    private void explain (MongoCollection<?> collection, BsonDocument filterDocument) {
+        try {
+            BsonDocument command = new BsonDocument ("explain", new BsonDocument ("find", new BsonString (collection.getNamespace ().getCollectionName ()))
+                    .append ("filter", filterDocument))
+                    .append ("verbosity", new BsonString ("queryPlanner"));
+            BsonDocument result = database.runCommand (command, BsonDocument.class);
+            explainCount.incrementAndGet ();
+            BsonDocument queryPlanner = result.getDocument ("queryPlanner", null);
+            if ((queryPlanner != null) && usesStage (queryPlanner.get ("winningPlan"), COLLSCAN)) {
+                collectionScanCount.incrementAndGet ();
+                log.warn ("Collection scan in '" + collection.getNamespace () + "' for query " + filterDocument.toJson ());
+            }
+        } catch (MongoException exception) {
+            log.error ("Failed to explain query " + filterDocument.toJson () + " in '" + collection.getNamespace () + "'", exception);
+        }
+    }
+
+    private static boolean usesStage (BsonValue plan, String stage) {
+        // plans are trees of stages, with the children in "inputStage" or "inputStages"
+        if ((plan != null) && plan.isDocument ()) {
+            BsonDocument planDocument = plan.asDocument ();
+            BsonValue planStage = planDocument.get ("stage");
+            if ((planStage != null) && planStage.isString () && planStage.asString ().getValue ().equals (stage)) {
+                return true;
+            }
+            if (usesStage (planDocument.get ("inputStage"), stage)) {
+                return true;
+            }
+            BsonValue inputStages = planDocument.get ("inputStages");
+            if ((inputStages != null) && inputStages.isArray ()) {
+                for (BsonValue inputStage : inputStages.asArray ()) {
+                    if (usesStage (inputStage, stage)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    long getExplainCount () {
+        return explainCount.get ();
+    }
+
+    long getCollectionScanCount () {
+        return collectionScanCount.get ();
+    }
+}
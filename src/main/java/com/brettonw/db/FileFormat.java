@@ -0,0 +1,25 @@
+package com.brettonw.db;
+
+import java.nio.file.Path;
+
+/**
+ * The file formats a collection can be exported to and imported from. NDJSON holds one bag
+ * object per line as JSON, and BSON holds the documents back to back as they are stored,
+ * in the same layout as mongodump writes. Neither export includes "_id", which is masked
+ * from the user everywhere else, so a BSON export is not a mongodump of the collection,
+ * and importing it gives every document a new "_id". A BSON file that does have "_id"
+ * (from mongodump, for instance) is imported with it.
+ */
+public enum FileFormat {
+    NDJSON,
+    BSON;
+
+    /**
+     *
+     * @param path
+     * @return BSON for a ".bson" file, NDJSON for anything else
+     */
+    public static FileFormat fromPath (Path path) {
+        return path.getFileName ().toString ().toLowerCase ().endsWith (".bson") ? BSON : NDJSON;
+    }
+}
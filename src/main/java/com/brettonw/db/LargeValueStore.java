@@ -0,0 +1,279 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagObject;
+import com.mongodb.MongoException;
+import com.mongodb.MongoGridFSException;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoDatabase;
+import com.mongodb.client.gridfs.GridFSBucket;
+import com.mongodb.client.gridfs.GridFSBuckets;
+import com.mongodb.client.gridfs.GridFSUploadStream;
+import com.mongodb.client.gridfs.model.GridFSFile;
+import com.mongodb.client.model.Filters;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps the string values that are too long to store inline in a GridFS bucket next to the
+ * collection ("<collection>.large"), so big objects stay well under the document size limit
+ * and are never written or read as one huge document. Each long value is streamed to the
+ * bucket in chunks and replaced in the object by a small reference, an object with the id
+ * of the file and the length of the value. The bag codec turns references back into the
+ * values they stand for as objects are read, and a lazy object only does that for the
+ * fields that are used. Objects with no long values are written as they are.
+ */
+class LargeValueStore {
+    private static final Logger log = LogManager.getLogger (LargeValueStore.class);
+
+    static final String REFERENCE = "_large-value";
+    static final String LENGTH = "_large-value-length";
+
+    private static final String BUCKET_SUFFIX = ".large";
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    // files younger than this might belong to a put that hasn't written its object yet
+    private static final long UNREFERENCED_AGE_MILLIS = TimeUnit.MINUTES.toMillis (1);
+
+    private final GridFSBucket bucket;
+    private final String name;
+    private final int valueSize;
+
+    /**
+     *
+     * @param database
+     * @param collectionName
+     * @param valueSize values longer than this (in characters) are stored in the bucket
+     */
+    LargeValueStore (MongoDatabase database, String collectionName, int valueSize) {
+        bucket = GridFSBuckets.create (database, collectionName + BUCKET_SUFFIX);
+        name = database.getName () + "." + collectionName + BUCKET_SUFFIX;
+        this.valueSize = valueSize;
+    }
+
+    int getValueSize () {
+        return valueSize;
+    }
+
+    /**
+     *
+     * @param bagObject
+     * @return the object if it has no long values, or a copy with each of them replaced by a
+     * reference to where it was stored
+     */
+    BagObject externalize (BagObject bagObject) {
+        return externalize (bagObject, "");
+    }
+
+    private BagObject externalize (BagObject bagObject, String path) {
+        // values in nested objects are stored too, but not values in arrays
+        BagObject externalized = null;
+        for (String key : bagObject.keys ()) {
+            Object value = bagObject.getObject (key);
+            Object replacement = value;
+            if (value instanceof String) {
+                if (((String) value).length () > valueSize) {
+                    replacement = upload (path + key, (String) value);
+                }
+            } else if (value instanceof BagObject) {
+                replacement = externalize ((BagObject) value, path + key + ".");
+            }
+            if (replacement != value) {
+                if (externalized == null) {
+                    externalized = new BagObject ();
+                    for (String copyKey : bagObject.keys ()) {
+                        externalized.put (copyKey, bagObject.getObject (copyKey));
+                    }
+                }
+                externalized.put (key, replacement);
+            }
+        }
+        return (externalized != null) ? externalized : bagObject;
+    }
+
+    private BagObject upload (String fileName, String value) {
+        // the value is encoded into the bucket a chunk at a time, rather than all at once
+        GridFSUploadStream uploadStream = bucket.openUploadStream (fileName);
+        try {
+            Writer writer = new OutputStreamWriter (uploadStream, StandardCharsets.UTF_8);
+            writer.write (value);
+            writer.close ();
+        } catch (IOException exception) {
+            uploadStream.abort ();
+            throw new MongoException ("Failed to store '" + fileName + "' in '" + name + "'", exception);
+        } catch (RuntimeException exception) {
+            uploadStream.abort ();
+            throw exception;
+        }
+        return new BagObject ()
+                .put (REFERENCE, uploadStream.getObjectId ().toHexString ())
+                .put (LENGTH, value.length ());
+    }
+
+    static boolean isReference (BagObject bagObject) {
+        // a reference is exactly the id of a file and the length of its value, so a user
+        // object that happens to use the same keys isn't mistaken for one
+        if (bagObject.getCount () == 2) {
+            Object reference = bagObject.getObject (REFERENCE);
+            Object length = bagObject.getObject (LENGTH);
+            return (reference instanceof String) && ObjectId.isValid ((String) reference)
+                    && (length != null) && isLength (length.toString ());
+        }
+        return false;
+    }
+
+    private static boolean isLength (String length) {
+        // a non-negative int, written the way upload writes it
+        if (length.isEmpty () || (length.length () > 10)) {
+            return false;
+        }
+        for (int i = 0, end = length.length (); i < end; ++i) {
+            if (! Character.isDigit (length.charAt (i))) {
+                return false;
+            }
+        }
+        return Long.parseLong (length) <= Integer.MAX_VALUE;
+    }
+
+    /**
+     *
+     * @param bagObject
+     * @return the value the object refers to if it is a reference, or the object
+     */
+    Object resolve (BagObject bagObject) {
+        if (isReference (bagObject)) {
+            try {
+                return download (new ObjectId (bagObject.getString (REFERENCE)), bagObject.getInteger (LENGTH));
+            } catch (IllegalArgumentException | MongoException exception) {
+                // the reference is left in place, so the rest of the object can still be read
+                log.error ("Failed to read large value (" + bagObject.getString (REFERENCE) + ") from '" + name + "'", exception);
+            }
+        }
+        return bagObject;
+    }
+
+    private String download (ObjectId id, Integer length) {
+        // the length is known up front, so the value is built without growing
+        StringBuilder stringBuilder = new StringBuilder ((length != null) ? length : BUFFER_SIZE);
+        try (Reader reader = new InputStreamReader (bucket.openDownloadStream (id), StandardCharsets.UTF_8)) {
+            char[] buffer = new char[BUFFER_SIZE];
+            int count;
+            while ((count = reader.read (buffer)) >= 0) {
+                stringBuilder.append (buffer, 0, count);
+            }
+        } catch (IOException exception) {
+            throw new MongoException ("Failed to read large value (" + id + ") from '" + name + "'", exception);
+        }
+        return stringBuilder.toString ();
+    }
+
+    /**
+     *
+     * @param id
+     * @return a stream of the UTF-8 bytes of the value, read from the bucket a chunk at a
+     * time
+     */
+    InputStream open (ObjectId id) {
+        return bucket.openDownloadStream (id);
+    }
+
+    static ObjectId getReference (BsonDocument document) {
+        // the same test as isReference, on the stored form
+        if (document.size () == 2) {
+            BsonValue reference = document.get (REFERENCE);
+            BsonValue length = document.get (LENGTH);
+            if ((reference != null) && reference.isString () && ObjectId.isValid (reference.asString ().getValue ())
+                    && (length != null) && length.isString () && isLength (length.asString ().getValue ())) {
+                return new ObjectId (reference.asString ().getValue ());
+            }
+        }
+        return null;
+    }
+
+    static List<ObjectId> getReferences (BsonDocument document) {
+        List<ObjectId> references = new ArrayList<> ();
+        collectReferences (document, references);
+        return references;
+    }
+
+    private static void collectReferences (BsonDocument document, List<ObjectId> references) {
+        ObjectId reference = getReference (document);
+        if (reference != null) {
+            references.add (reference);
+        } else {
+            for (BsonValue value : document.values ()) {
+                if (value.isDocument ()) {
+                    collectReferences (value.asDocument (), references);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * @param collection
+     * @param filter
+     * @return the ids of the values referenced by the matching objects
+     */
+    List<ObjectId> findReferences (MongoCollection<?> collection, Bson filter) {
+        List<ObjectId> references = new ArrayList<> ();
+        for (RawBsonDocument document : collection.withDocumentClass (RawBsonDocument.class).find (filter)) {
+            collectReferences (document, references);
+        }
+        return references;
+    }
+
+    void delete (List<ObjectId> references) {
+        for (ObjectId reference : references) {
+            try {
+                bucket.delete (reference);
+            } catch (MongoGridFSException exception) {
+                log.debug ("Large value (" + reference + ") was already deleted from '" + name + "'");
+            }
+        }
+    }
+
+    /**
+     * delete the values that no object in the collection refers to any more, which is what
+     * is left behind when an object with long values is replaced or updated, or a put fails
+     * after its values were stored
+     * @param collection
+     * @return the number of values deleted
+     */
+    long deleteUnreferenced (MongoCollection<?> collection) {
+        Date before = new Date (System.currentTimeMillis () - UNREFERENCED_AGE_MILLIS);
+        List<ObjectId> referenced = findReferences (collection, new BsonDocument ());
+        Set<ObjectId> referencedSet = new HashSet<> (referenced);
+        List<ObjectId> unreferenced = new ArrayList<> ();
+        for (GridFSFile file : bucket.find (Filters.lt ("uploadDate", before))) {
+            if (! referencedSet.contains (file.getObjectId ())) {
+                unreferenced.add (file.getObjectId ());
+            }
+        }
+        delete (unreferenced);
+        log.info ("Deleted " + unreferenced.size () + " unreferenced large values from '" + name + "'");
+        return unreferenced.size ();
+    }
+
+    void drop () {
+        bucket.drop ();
+    }
+}
@@ -0,0 +1,101 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagObject;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size, log-linear histogram of nanosecond latencies. Each power of two is split
+ * into 8 sub-buckets, so a reported percentile is within 12.5% of the recorded value.
+ * Recording is lock-free and doesn't allocate.
+ */
+class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKET_COUNT = (64 - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+    private static final double NANOS_PER_MICRO = 1_000.0;
+
+    private final AtomicLongArray buckets;
+    private final AtomicLong count;
+    private final AtomicLong total;
+    private final AtomicLong max;
+
+    LatencyHistogram () {
+        buckets = new AtomicLongArray (BUCKET_COUNT);
+        count = new AtomicLong ();
+        total = new AtomicLong ();
+        max = new AtomicLong ();
+    }
+
+    static int getBucket (long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) Math.max (value, 0);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros (value);
+        int subBucket = (int) ((value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1));
+        return ((exponent - SUB_BUCKET_BITS + 1) << SUB_BUCKET_BITS) + subBucket;
+    }
+
+    static long getBucketLowerBound (int bucket) {
+        int group = bucket >>> SUB_BUCKET_BITS;
+        long subBucket = bucket & (SUB_BUCKET_COUNT - 1);
+        if (group == 0) {
+            return subBucket;
+        }
+        int exponent = group + SUB_BUCKET_BITS - 1;
+        return (1L << exponent) + (subBucket << (exponent - SUB_BUCKET_BITS));
+    }
+
+    static long getBucketUpperBound (int bucket) {
+        return (bucket < (BUCKET_COUNT - 1)) ? (getBucketLowerBound (bucket + 1) - 1) : Long.MAX_VALUE;
+    }
+
+    void record (long nanos) {
+        buckets.incrementAndGet (getBucket (nanos));
+        count.incrementAndGet ();
+        total.addAndGet (nanos);
+        long currentMax;
+        while (nanos > (currentMax = max.get ())) {
+            if (max.compareAndSet (currentMax, nanos)) {
+                break;
+            }
+        }
+    }
+
+    long getCount () {
+        return count.get ();
+    }
+
+    /**
+     *
+     * @param fraction - the percentile as a fraction, e.g. 0.99
+     * @return the upper bound of the bucket holding the percentile, in nanoseconds
+     */
+    long getPercentile (double fraction) {
+        long target = (long) Math.ceil (fraction * count.get ());
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; ++bucket) {
+            seen += buckets.get (bucket);
+            if ((seen >= target) && (seen > 0)) {
+                return Math.min (getBucketUpperBound (bucket), max.get ());
+            }
+        }
+        return 0;
+    }
+
+    /**
+     *
+     * @return the count, mean, percentiles and maximum, with times in microseconds
+     */
+    BagObject toBagObject () {
+        long snapshotCount = count.get ();
+        return new BagObject ()
+                .put ("count", snapshotCount)
+                .put ("mean-us", (snapshotCount > 0) ? (total.get () / NANOS_PER_MICRO / snapshotCount) : 0)
+                .put ("p50-us", getPercentile (0.5) / NANOS_PER_MICRO)
+                .put ("p99-us", getPercentile (0.99) / NANOS_PER_MICRO)
+                .put ("p999-us", getPercentile (0.999) / NANOS_PER_MICRO)
+                .put ("max-us", max.get () / NANOS_PER_MICRO);
+    }
+}
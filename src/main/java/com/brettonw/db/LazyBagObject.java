@@ -0,0 +1,197 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.SelectKey;
+import org.bson.BsonBinaryReader;
+import org.bson.RawBsonDocument;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * A bag object read from the database that holds on to the raw BSON, and only decodes a
+ * field the first time it is asked for. Anything that needs every field (keys, counts,
+ * changes, string forms, comparisons) decodes the rest of them once, and from then on it
+ * is an ordinary bag object. An object that is written back without any of its fields
+ * having been decoded is copied straight from the raw BSON. A field that refers to a
+ * large value is only read from the large value store when the field is decoded. Since
+ * reading a field can change the object, its methods are synchronized, so a lazy object
+ * can be shared between threads for reading (as CachingBagDb does) like any other.
+ */
+class LazyBagObject extends BagObject {
+    private RawBsonDocument rawBsonDocument;
+    private Set<String> decodedKeys;
+    private final LargeValueStore largeValueStore;
+    private final boolean skipId;
+
+    LazyBagObject (RawBsonDocument rawBsonDocument) {
+        this (rawBsonDocument, null, true);
+    }
+
+    LazyBagObject (RawBsonDocument rawBsonDocument, LargeValueStore largeValueStore) {
+        this (rawBsonDocument, largeValueStore, true);
+    }
+
+    /**
+     *
+     * @param rawBsonDocument
+     * @param largeValueStore
+     * @param skipId whether "_id" is masked, which it is everywhere but in aggregation
+     *               results
+     */
+    LazyBagObject (RawBsonDocument rawBsonDocument, LargeValueStore largeValueStore, boolean skipId) {
+        this.rawBsonDocument = rawBsonDocument;
+        this.largeValueStore = largeValueStore;
+        this.skipId = skipId;
+        decodedKeys = new HashSet<> ();
+    }
+
+    boolean isIdSkipped () {
+        return skipId;
+    }
+
+    synchronized boolean isDecoded () {
+        return rawBsonDocument == null;
+    }
+
+    /**
+     *
+     * @return the raw BSON if nothing has been decoded, or null otherwise
+     */
+    synchronized RawBsonDocument getUndecoded () {
+        return ((rawBsonDocument != null) && decodedKeys.isEmpty ()) ? rawBsonDocument : null;
+    }
+
+    private synchronized String decode (String key) {
+        // a path only needs its first field decoded
+        if ((rawBsonDocument != null) && (key != null)) {
+            int separator = key.indexOf ('/');
+            String name = (separator >= 0) ? key.substring (0, separator) : key;
+            if (decodedKeys.add (name)) {
+                Object value = BagObjectCodec.readField (rawBsonDocument, name, largeValueStore, skipId);
+                if (value != null) {
+                    super.put (name, value);
+                }
+            }
+        }
+        return key;
+    }
+
+    private synchronized void decodeAll () {
+        // fields that were already decoded are kept, as they may have been changed, and
+        // aren't decoded again
+        if (rawBsonDocument != null) {
+            BagObject bagObject = BagObjectCodec.readBagObject (new BsonBinaryReader (rawBsonDocument.getByteBuffer ().asNIO ()), skipId, largeValueStore, decodedKeys);
+            for (String key : bagObject.keys ()) {
+                super.put (key, bagObject.getObject (key));
+            }
+            rawBsonDocument = null;
+            decodedKeys = null;
+        }
+    }
+
+    @Override
+    public synchronized Object getObject (String key) {
+        return super.getObject (decode (key));
+    }
+
+    @Override
+    public synchronized String getString (String key) {
+        return super.getString (decode (key));
+    }
+
+    @Override
+    public synchronized Integer getInteger (String key) {
+        return super.getInteger (decode (key));
+    }
+
+    @Override
+    public synchronized Long getLong (String key) {
+        return super.getLong (decode (key));
+    }
+
+    @Override
+    public synchronized Double getDouble (String key) {
+        return super.getDouble (decode (key));
+    }
+
+    @Override
+    public synchronized Boolean getBoolean (String key) {
+        return super.getBoolean (decode (key));
+    }
+
+    @Override
+    public synchronized BagObject getBagObject (String key) {
+        return super.getBagObject (decode (key));
+    }
+
+    @Override
+    public synchronized BagArray getBagArray (String key) {
+        return super.getBagArray (decode (key));
+    }
+
+    @Override
+    public synchronized boolean has (String key) {
+        return super.has (decode (key));
+    }
+
+    @Override
+    public synchronized BagObject put (String key, Object value) {
+        decodeAll ();
+        return super.put (key, value);
+    }
+
+    @Override
+    public synchronized BagObject remove (String key) {
+        decodeAll ();
+        return super.remove (key);
+    }
+
+    @Override
+    public synchronized String[] keys () {
+        decodeAll ();
+        return super.keys ();
+    }
+
+    @Override
+    public synchronized int getCount () {
+        decodeAll ();
+        return super.getCount ();
+    }
+
+    @Override
+    public synchronized BagObject select (SelectKey selectKey) {
+        decodeAll ();
+        return super.select (selectKey);
+    }
+
+    @Override
+    public synchronized String toString (String format) {
+        decodeAll ();
+        return super.toString (format);
+    }
+
+    @Override
+    public synchronized String toString () {
+        decodeAll ();
+        return super.toString ();
+    }
+
+    @Override
+    public boolean equals (Object object) {
+        // both objects are decoded under their own locks, rather than holding one while
+        // taking the other, and neither changes on a read after that
+        decodeAll ();
+        if (object instanceof LazyBagObject) {
+            ((LazyBagObject) object).decodeAll ();
+        }
+        return super.equals (object);
+    }
+
+    @Override
+    public synchronized int hashCode () {
+        decodeAll ();
+        return super.hashCode ();
+    }
+}
@@ -0,0 +1,28 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import lombok.Getter;
+
+/**
+ * One page of a keyset-paginated query. The resume token is opaque, and is passed back to
+ * get the next page. It is only set when there is at least one more match after this page,
+ * so a page that ends exactly at the last match has no token.
+ */
+public class Page {
+    @Getter private BagArray results;
+    @Getter private String resumeToken;
+
+    Page (BagArray results, String resumeToken) {
+        this.results = results;
+        this.resumeToken = resumeToken;
+    }
+
+    public boolean hasMore () {
+        return resumeToken != null;
+    }
+
+    @Override
+    public String toString () {
+        return results.getCount () + " results" + (hasMore () ? ", more" : "");
+    }
+}
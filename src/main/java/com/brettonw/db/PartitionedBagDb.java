@@ -0,0 +1,458 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Spreads the objects of one logical database over several partitions (usually BagMongo
+ * collections, possibly on different servers) by the hash of a key field. Writes and reads
+ * that name a single value of the key field go to just the partition that holds it, and
+ * everything else is fanned out to all of the partitions at once and the results merged.
+ * Aggregations run separately in each partition, so stages that combine objects (e.g.
+ * "$group") combine them per partition. The partitions are closed with this database.
+ */
+public class PartitionedBagDb implements BagDbInterface {
+    private static final Logger log = LogManager.getLogger (PartitionedBagDb.class);
+
+    public static final String KEY_FIELD = "key-field";
+    public static final String PARTITIONS = "partitions";
+
+    private final String keyField;
+    private final List<BagDbInterface> partitions;
+    private final ExecutorService executor;
+
+    /**
+     *
+     * @param keyField the (possibly dotted) name of the field objects are partitioned on
+     * @param partitions the databases holding the partitions, the order must never change
+     *                   once objects have been put
+     */
+    public PartitionedBagDb (String keyField, List<? extends BagDbInterface> partitions) {
+        if (partitions.isEmpty ()) {
+            throw new IllegalArgumentException ("Invalid partitions (none)");
+        }
+        this.keyField = keyField;
+        this.partitions = new ArrayList<> (partitions);
+        executor = Executors.newCachedThreadPool (AsyncBagDb.daemonThreadFactory ("partitioned"));
+        log.info ("Partitioned '" + getName () + "' on '" + keyField + "'");
+    }
+
+    /**
+     * connect to each of the partitions in the configuration, e.g.
+     * { "key-field": "id", "partitions": [ { "connection-string": ..., "database-name": ...,
+     * "collection-name": ... }, ... ] }, where each partition is a BagMongo configuration for
+     * one collection
+     * @param configuration
+     * @return
+     */
+    public static PartitionedBagDb connect (BagObject configuration) {
+        String keyField = configuration.getString (KEY_FIELD);
+        BagArray partitionConfigurations = configuration.getBagArray (PARTITIONS);
+        if ((keyField != null) && (partitionConfigurations != null) && (partitionConfigurations.getCount () > 0)) {
+            List<BagMongo> partitions = new ArrayList<> (partitionConfigurations.getCount ());
+            for (int i = 0, end = partitionConfigurations.getCount (); i < end; ++i) {
+                Map<String, BagMongo> collections = BagMongo.connect (partitionConfigurations.getBagObject (i));
+                if ((collections == null) || (collections.size () != 1)) {
+                    log.error ("Invalid partition (" + i + ")");
+                    for (BagMongo partition : partitions) {
+                        try {
+                            partition.close ();
+                        } catch (Exception exception) {
+                            log.error ("Failed to close '" + partition.getName () + "'", exception);
+                        }
+                    }
+                    return null;
+                }
+                partitions.addAll (collections.values ());
+            }
+            return new PartitionedBagDb (keyField, partitions);
+        } else {
+            log.error ("Invalid configuration (missing '" + KEY_FIELD + "' or '" + PARTITIONS + "')");
+        }
+        return null;
+    }
+
+    public String getKeyField () {
+        return keyField;
+    }
+
+    public int getPartitionCount () {
+        return partitions.size ();
+    }
+
+    private int getPartitionIndex (String key) {
+        return Math.floorMod (key.hashCode (), partitions.size ());
+    }
+
+    private BagDbInterface getPartition (BagObject bagObject) {
+        String key = BagMongo.getFieldValue (bagObject, keyField);
+        if (key == null) {
+            throw new IllegalArgumentException ("Missing key field '" + keyField + "'");
+        }
+        return partitions.get (getPartitionIndex (key));
+    }
+
+    private BagDbInterface getPartition (String queryJson) {
+        // a query routes to one partition when it tests the key field for equality with a
+        // single string or integer, otherwise it has to go to all of them (null)
+        if (queryJson != null) {
+            try {
+                BsonValue value = BsonDocument.parse (queryJson).get (keyField);
+                if ((value != null) && value.isDocument () && (value.asDocument ().size () == 1)) {
+                    value = value.asDocument ().get ("$eq");
+                }
+                if (value != null) {
+                    switch (value.getBsonType ()) {
+                        case STRING: return partitions.get (getPartitionIndex (value.asString ().getValue ()));
+                        case INT32: return partitions.get (getPartitionIndex (Integer.toString (value.asInt32 ().getValue ())));
+                        case INT64: return partitions.get (getPartitionIndex (Long.toString (value.asInt64 ().getValue ())));
+                        default: break;
+                    }
+                }
+            } catch (RuntimeException exception) {
+                // an invalid query goes everywhere, and each partition reports it
+            }
+        }
+        return null;
+    }
+
+    private BagDbInterface findPartition (String queryJson) {
+        // operations on a single object go to the first partition that has a match
+        BagDbInterface partition = getPartition (queryJson);
+        if (partition == null) {
+            List<BagObject> found = fanOut (bagDb -> bagDb.get (queryJson, Projection.include (keyField)));
+            for (int i = 0; (i < found.size ()) && (partition == null); ++i) {
+                partition = (found.get (i) != null) ? partitions.get (i) : null;
+            }
+        }
+        return partition;
+    }
+
+    private <T> List<T> fanOut (Function<BagDbInterface, T> operation) {
+        // every partition after the first goes to the executor, and the first runs here
+        // while the others are in flight
+        List<CompletableFuture<T>> futures = new ArrayList<> (partitions.size ());
+        for (int i = 1; i < partitions.size (); ++i) {
+            final BagDbInterface partition = partitions.get (i);
+            futures.add (CompletableFuture.supplyAsync (() -> operation.apply (partition), executor));
+        }
+        List<T> results = new ArrayList<> (partitions.size ());
+        results.add (operation.apply (partitions.get (0)));
+        for (CompletableFuture<T> future : futures) {
+            try {
+                results.add (future.join ());
+            } catch (CompletionException exception) {
+                throw (exception.getCause () instanceof RuntimeException) ? (RuntimeException) exception.getCause () : exception;
+            }
+        }
+        return results;
+    }
+
+    private List<BagArray> split (BagArray bagArray) {
+        List<BagArray> split = new ArrayList<> (partitions.size ());
+        for (int i = 0; i < partitions.size (); ++i) {
+            split.add (new BagArray ());
+        }
+        for (int i = 0, end = bagArray.getCount (); i < end; ++i) {
+            BagObject bagObject = bagArray.getBagObject (i);
+            split.get (partitions.indexOf (getPartition (bagObject))).add (bagObject);
+        }
+        return split;
+    }
+
+    private static BagArray merge (List<BagArray> bagArrays) {
+        BagArray merged = new BagArray ();
+        for (BagArray bagArray : bagArrays) {
+            for (int i = 0, end = bagArray.getCount (); i < end; ++i) {
+                merged.add (bagArray.getObject (i));
+            }
+        }
+        return merged;
+    }
+
+    @Override
+    public BagDbInterface put (BagObject bagObject) {
+        getPartition (bagObject).put (bagObject);
+        return this;
+    }
+
+    @Override
+    public BagDbInterface putMany (BagArray bagArray) {
+        List<BagArray> split = split (bagArray);
+        fanOut (partition -> partition.putMany (split.get (partitions.indexOf (partition))));
+        return this;
+    }
+
+    @Override
+    public BagDbInterface upsert (String[] keyFields, BagObject bagObject) {
+        getPartition (bagObject).upsert (keyFields, bagObject);
+        return this;
+    }
+
+    @Override
+    public BagDbInterface upsertMany (String[] keyFields, BagArray bagArray) {
+        List<BagArray> split = split (bagArray);
+        fanOut (partition -> partition.upsertMany (keyFields, split.get (partitions.indexOf (partition))));
+        return this;
+    }
+
+    @Override
+    public BagDbInterface update (String queryJson, BagObject changes) {
+        BagDbInterface partition = findPartition (queryJson);
+        if (partition != null) {
+            partition.update (queryJson, changes);
+        }
+        return this;
+    }
+
+    @Override
+    public BagDbInterface updateMany (String queryJson, BagObject changes) {
+        BagDbInterface partition = getPartition (queryJson);
+        if (partition != null) {
+            partition.updateMany (queryJson, changes);
+        } else {
+            fanOut (bagDb -> bagDb.updateMany (queryJson, changes));
+        }
+        return this;
+    }
+
+    @Override
+    public BagObject get (String queryJson) {
+        return get (queryJson, null);
+    }
+
+    @Override
+    public BagObject get (String queryJson, Projection projection) {
+        BagDbInterface partition = getPartition (queryJson);
+        if (partition != null) {
+            return partition.get (queryJson, projection);
+        }
+        for (BagObject bagObject : fanOut (bagDb -> bagDb.get (queryJson, projection))) {
+            if (bagObject != null) {
+                return bagObject;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public BagArray getMany (String queryJson) {
+        return getMany (queryJson, null);
+    }
+
+    @Override
+    public BagArray getMany (String queryJson, Projection projection) {
+        BagDbInterface partition = getPartition (queryJson);
+        return (partition != null) ? partition.getMany (queryJson, projection) : merge (fanOut (bagDb -> bagDb.getMany (queryJson, projection)));
+    }
+
+    @Override
+    public BagArray getAll () {
+        return getAll (null);
+    }
+
+    @Override
+    public BagArray getAll (Projection projection) {
+        return merge (fanOut (bagDb -> bagDb.getAll (projection)));
+    }
+
+    @Override
+    public BagArray getByKeys (String field, BagArray values) {
+        // lookups on the key field only go to the partitions holding each key, anything else
+        // asks every partition for every key and takes whichever one found it
+        int count = values.getCount ();
+        List<BagArray> results;
+        int[] partitionIndices = new int[count];
+        if (field.equals (keyField)) {
+            List<BagArray> split = new ArrayList<> (partitions.size ());
+            for (int i = 0; i < partitions.size (); ++i) {
+                split.add (new BagArray ());
+            }
+            for (int i = 0; i < count; ++i) {
+                Object value = values.getObject (i);
+                partitionIndices[i] = (value != null) ? getPartitionIndex (value.toString ()) : -1;
+                if (value != null) {
+                    split.get (partitionIndices[i]).add (value);
+                }
+            }
+            results = fanOut (partition -> partition.getByKeys (field, split.get (partitions.indexOf (partition))));
+        } else {
+            results = fanOut (partition -> partition.getByKeys (field, values));
+        }
+
+        BagArray bagArray = new BagArray (count);
+        int[] positions = new int[partitions.size ()];
+        for (int i = 0; i < count; ++i) {
+            BagObject found = null;
+            if (field.equals (keyField)) {
+                int partitionIndex = partitionIndices[i];
+                found = (partitionIndex >= 0) ? results.get (partitionIndex).getBagObject (positions[partitionIndex]++) : null;
+            } else {
+                for (int j = 0; (j < results.size ()) && ((found == null) || (found.getCount () == 0)); ++j) {
+                    found = results.get (j).getBagObject (i);
+                }
+            }
+            bagArray.add ((found != null) ? found : new BagObject ());
+        }
+        return bagArray;
+    }
+
+    /**
+     * pages go through the partitions one after another, so they are in order of the sort
+     * field within each partition, but not across partitions
+     */
+    @Override
+    public Page getPage (String queryJson, String sortField, int pageSize, String resumeToken) {
+        // the resume token holds the partition index and the token for that partition
+        int partitionIndex = 0;
+        String partitionToken = null;
+        if (resumeToken != null) {
+            try {
+                String decoded = new String (Base64.getUrlDecoder ().decode (resumeToken), StandardCharsets.UTF_8);
+                int separator = decoded.indexOf (':');
+                partitionIndex = Integer.parseInt (decoded.substring (0, separator));
+                partitionToken = (separator + 1 < decoded.length ()) ? decoded.substring (separator + 1) : null;
+            } catch (RuntimeException exception) {
+                throw new IllegalArgumentException ("Invalid resume token (" + resumeToken + ")");
+            }
+        }
+
+        // fill the page from as many partitions as it takes
+        BagArray results = new BagArray (pageSize);
+        while ((partitionIndex < partitions.size ()) && (results.getCount () < pageSize)) {
+            Page page = partitions.get (partitionIndex).getPage (queryJson, sortField, pageSize - results.getCount (), partitionToken);
+            for (int i = 0, end = page.getResults ().getCount (); i < end; ++i) {
+                results.add (page.getResults ().getObject (i));
+            }
+            partitionToken = page.getResumeToken ();
+            if (partitionToken == null) {
+                ++partitionIndex;
+            }
+        }
+
+        // a full page that finished off a partition only has more if a later partition has
+        // a match, so the partitions without one are skipped over here
+        if (partitionToken == null) {
+            while ((partitionIndex < partitions.size ()) && (partitions.get (partitionIndex).getPage (queryJson, sortField, 1, null).getResults ().getCount () == 0)) {
+                ++partitionIndex;
+            }
+        }
+        String nextToken = null;
+        if (partitionIndex < partitions.size ()) {
+            String token = partitionIndex + ":" + ((partitionToken != null) ? partitionToken : "");
+            nextToken = Base64.getUrlEncoder ().withoutPadding ().encodeToString (token.getBytes (StandardCharsets.UTF_8));
+        }
+        return new Page (results, nextToken);
+    }
+
+    @Override
+    public Stream<BagObject> stream (String queryJson) {
+        BagDbInterface partition = getPartition (queryJson);
+        return (partition != null) ? partition.stream (queryJson) : concat (bagDb -> bagDb.stream (queryJson));
+    }
+
+    @Override
+    public Stream<BagObject> streamAll () {
+        return concat (BagDbInterface::streamAll);
+    }
+
+    @Override
+    public Stream<BagObject> aggregate (BagArray pipeline) {
+        return concat (bagDb -> bagDb.aggregate (pipeline));
+    }
+
+    private Stream<BagObject> concat (Function<BagDbInterface, Stream<BagObject>> operation) {
+        // closing the concatenated stream closes every partition's stream
+        return partitions.stream ()
+                .map (operation)
+                .reduce (Stream::concat)
+                .orElseGet (Stream::empty);
+    }
+
+    @Override
+    public BagDbInterface delete (String queryJson) {
+        BagDbInterface partition = findPartition (queryJson);
+        if (partition != null) {
+            partition.delete (queryJson);
+        }
+        return this;
+    }
+
+    @Override
+    public BagDbInterface deleteMany (String queryJson) {
+        BagDbInterface partition = getPartition (queryJson);
+        if (partition != null) {
+            partition.deleteMany (queryJson);
+        } else {
+            fanOut (bagDb -> bagDb.deleteMany (queryJson));
+        }
+        return this;
+    }
+
+    @Override
+    public BagDbInterface deleteAll () {
+        fanOut (BagDbInterface::deleteAll);
+        return this;
+    }
+
+    @Override
+    public void drop () throws Exception {
+        for (BagDbInterface partition : partitions) {
+            partition.drop ();
+        }
+        executor.shutdown ();
+    }
+
+    @Override
+    public long getCount () {
+        long count = 0;
+        for (long partitionCount : fanOut (BagDbInterface::getCount)) {
+            count += partitionCount;
+        }
+        return count;
+    }
+
+    @Override
+    public long getCount (String queryJson) {
+        BagDbInterface partition = getPartition (queryJson);
+        if (partition != null) {
+            return partition.getCount (queryJson);
+        }
+        long count = 0;
+        for (long partitionCount : fanOut (bagDb -> bagDb.getCount (queryJson))) {
+            count += partitionCount;
+        }
+        return count;
+    }
+
+    @Override
+    public String getName () {
+        return partitions.stream ().map (BagDbInterface::getName).collect (Collectors.joining (","));
+    }
+
+    @Override
+    public void close () throws Exception {
+        for (BagDbInterface partition : partitions) {
+            partition.close ();
+        }
+        executor.shutdown ();
+        log.info ("Closed '" + getName () + "'");
+    }
+}
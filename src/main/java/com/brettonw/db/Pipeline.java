@@ -0,0 +1,176 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.bson.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Compiles an aggregation pipeline written as bag stages into BSON. Bags hold every scalar
+ * as a string, but stage arguments like "$limit": 10 or "$sort": { "age": -1 } have to be
+ * numbers, so any string that is exactly the text of a number or a boolean is sent as one.
+ * The body of a "$match" stage is the exception, the values it compares against stored
+ * fields stay strings so they match the strings bags store, while the arguments of other
+ * operators ($exists, $size, etc.) are typed, and it is compiled like any other query.
+ */
+class Pipeline {
+    private static final String MATCH = "$match";
+    private static final String NOT = "$not";
+    private static final String ELEM_MATCH = "$elemMatch";
+
+    // the operators whose arguments are compared against stored values, or are patterns
+    // matched against them, and the operators that take a list of queries
+    private static final Set<String> COMPARISONS = new HashSet<> (Arrays.asList (
+            "$eq", "$ne", "$gt", "$gte", "$lt", "$lte", "$in", "$nin", "$all", "$regex", "$options"
+    ));
+    private static final Set<String> LOGICAL = new HashSet<> (Arrays.asList ("$and", "$or", "$nor"));
+
+    static List<BsonDocument> compile (BagArray pipeline) {
+        List<BsonDocument> stages = new ArrayList<> (pipeline.getCount ());
+        for (int i = 0, end = pipeline.getCount (); i < end; ++i) {
+            BagObject stage = pipeline.getBagObject (i);
+            if (stage == null) {
+                throw new IllegalArgumentException ("Invalid pipeline stage at " + i);
+            }
+            BsonDocument compiled = new BsonDocument ();
+            for (String key : stage.keys ()) {
+                Object value = stage.getObject (key);
+                if (key.equals (MATCH) && (value instanceof BagObject)) {
+                    compiled.put (key, QueryCache.compileDocument (toQuery ((BagObject) value)));
+                } else if (value != null) {
+                    compiled.put (key, toBson (value, true));
+                }
+            }
+            stages.add (compiled);
+        }
+        return stages;
+    }
+
+    private static BsonDocument toQuery (BagObject query) {
+        // values compared against stored fields stay strings, the way bags store them, but
+        // the arguments of the other operators ($exists, $size, $mod, $type, etc.) are typed
+        BsonDocument document = new BsonDocument ();
+        for (String key : query.keys ()) {
+            Object value = query.getObject (key);
+            if (value == null) {
+                continue;
+            }
+            if (LOGICAL.contains (key) && (value instanceof BagArray)) {
+                BagArray clauses = (BagArray) value;
+                BsonArray array = new BsonArray ();
+                for (int i = 0, end = clauses.getCount (); i < end; ++i) {
+                    Object clause = clauses.getObject (i);
+                    array.add ((clause instanceof BagObject) ? toQuery ((BagObject) clause) : toBson (clause, true));
+                }
+                document.put (key, array);
+            } else if (key.startsWith ("$")) {
+                document.put (key, toBson (value, true));
+            } else if (isOperators (value)) {
+                document.put (key, toOperators ((BagObject) value));
+            } else {
+                document.put (key, toBson (value, false));
+            }
+        }
+        return document;
+    }
+
+    private static BsonDocument toOperators (BagObject operators) {
+        BsonDocument document = new BsonDocument ();
+        for (String operator : operators.keys ()) {
+            Object value = operators.getObject (operator);
+            if (value == null) {
+                continue;
+            }
+            if (COMPARISONS.contains (operator)) {
+                document.put (operator, toBson (value, false));
+            } else if (operator.equals (NOT) && isOperators (value)) {
+                document.put (operator, toOperators ((BagObject) value));
+            } else if (operator.equals (ELEM_MATCH) && (value instanceof BagObject)) {
+                document.put (operator, isOperators (value) ? toOperators ((BagObject) value) : toQuery ((BagObject) value));
+            } else {
+                document.put (operator, toBson (value, true));
+            }
+        }
+        return document;
+    }
+
+    private static boolean isOperators (Object value) {
+        if (value instanceof BagObject) {
+            String[] keys = ((BagObject) value).keys ();
+            for (String key : keys) {
+                if (! key.startsWith ("$")) {
+                    return false;
+                }
+            }
+            return keys.length > 0;
+        }
+        return false;
+    }
+
+    static BsonDocument toBson (BagObject bagObject) {
+        return toBson (bagObject, true);
+    }
+
+    static BsonArray toBson (BagArray bagArray) {
+        return toBson (bagArray, true);
+    }
+
+    private static BsonDocument toBson (BagObject bagObject, boolean typed) {
+        BsonDocument document = new BsonDocument ();
+        for (String key : bagObject.keys ()) {
+            Object value = bagObject.getObject (key);
+            if (value != null) {
+                document.put (key, toBson (value, typed));
+            }
+        }
+        return document;
+    }
+
+    private static BsonArray toBson (BagArray bagArray, boolean typed) {
+        BsonArray array = new BsonArray ();
+        for (int i = 0, end = bagArray.getCount (); i < end; ++i) {
+            Object value = bagArray.getObject (i);
+            array.add ((value != null) ? toBson (value, typed) : BsonNull.VALUE);
+        }
+        return array;
+    }
+
+    private static BsonValue toBson (Object value, boolean typed) {
+        if (value instanceof BagObject) {
+            return toBson ((BagObject) value, typed);
+        } else if (value instanceof BagArray) {
+            return toBson ((BagArray) value, typed);
+        }
+        return typed ? toScalar (value.toString ()) : new BsonString (value.toString ());
+    }
+
+    static BsonValue toScalar (String value) {
+        // only text that converts back to exactly the same string is taken as a number, so
+        // values like "007" or "1e3" stay strings
+        switch (value) {
+            case "true": return BsonBoolean.TRUE;
+            case "false": return BsonBoolean.FALSE;
+        }
+        try {
+            long longValue = Long.parseLong (value);
+            if (Long.toString (longValue).equals (value)) {
+                return ((longValue >= Integer.MIN_VALUE) && (longValue <= Integer.MAX_VALUE)) ? new BsonInt32 ((int) longValue) : new BsonInt64 (longValue);
+            }
+        } catch (NumberFormatException exception) {
+            try {
+                double doubleValue = Double.parseDouble (value);
+                if (Double.toString (doubleValue).equals (value)) {
+                    return new BsonDouble (doubleValue);
+                }
+            } catch (NumberFormatException ignored) {
+                // not a number
+            }
+        }
+        return new BsonString (value);
+    }
+}
@@ -0,0 +1,60 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.SelectKey;
+import com.brettonw.bag.SelectType;
+import com.mongodb.client.model.Projections;
+import lombok.Getter;
+import org.bson.conversions.Bson;
+
+import java.util.Arrays;
+
+/**
+ * The fields to return from a query, either only the listed keys (INCLUDE) or everything
+ * but the listed keys (EXCLUDE), following the bag select model. "_id" is always excluded.
+ */
+public class Projection {
+    @Getter private SelectType selectType;
+    @Getter private String[] keys;
+    private Bson bson;
+
+    public Projection (SelectType selectType, String... keys) {
+        this.selectType = selectType;
+        this.keys = keys;
+    }
+
+    public static Projection include (String... keys) {
+        return new Projection (SelectType.INCLUDE, keys);
+    }
+
+    public static Projection exclude (String... keys) {
+        return new Projection (SelectType.EXCLUDE, keys);
+    }
+
+    /**
+     * the equivalent bag select key, for applying the projection to a bag directly
+     * @return
+     */
+    public SelectKey toSelectKey () {
+        return new SelectKey (selectType, keys);
+    }
+
+    Bson toBson () {
+        if (bson == null) {
+            bson = (selectType == SelectType.INCLUDE) ?
+                    Projections.fields (Projections.include (keys), Projections.excludeId ()) :
+                    Projections.exclude (Arrays.asList (withId (keys)));
+        }
+        return bson;
+    }
+
+    private static String[] withId (String[] keys) {
+        String[] withId = Arrays.copyOf (keys, keys.length + 1);
+        withId[keys.length] = BagObjectCodec.UNDERSCORE_ID;
+        return withId;
+    }
+
+    @Override
+    public String toString () {
+        return selectType + " " + Arrays.toString (keys);
+    }
+}
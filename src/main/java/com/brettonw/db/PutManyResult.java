@@ -0,0 +1,57 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import lombok.Getter;
+
+import java.util.function.IntUnaryOperator;
+
+/**
+ * The outcome of a bulk put. Documents that were not inserted, either because they
+ * failed or because an ordered write stopped before reaching them, count as failed. Each
+ * reported error is a bag object with the index of the document in the source array and
+ * the message from the database.
+ */
+public class PutManyResult {
+    public static final String INDEX = "index";
+    public static final String MESSAGE = "message";
+
+    @Getter private long insertedCount;
+    @Getter private long failedCount;
+    @Getter private BagArray errors;
+
+    PutManyResult () {
+        errors = new BagArray ();
+    }
+
+    void addInserted (long count) {
+        insertedCount += count;
+    }
+
+    void addFailed (long count) {
+        failedCount += count;
+    }
+
+    void addError (int index, String message) {
+        errors.add (new BagObject ().put (INDEX, index).put (MESSAGE, message));
+    }
+
+    void add (PutManyResult putManyResult, IntUnaryOperator indexMap) {
+        // the errors are moved from the indices they had in the other result
+        insertedCount += putManyResult.insertedCount;
+        failedCount += putManyResult.failedCount;
+        for (int i = 0, end = putManyResult.errors.getCount (); i < end; ++i) {
+            BagObject error = putManyResult.errors.getBagObject (i);
+            addError (indexMap.applyAsInt (error.getInteger (INDEX)), error.getString (MESSAGE));
+        }
+    }
+
+    public boolean hasFailures () {
+        return failedCount > 0;
+    }
+
+    @Override
+    public String toString () {
+        return "inserted " + insertedCount + ", failed " + failedCount;
+    }
+}
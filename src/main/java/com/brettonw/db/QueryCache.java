@@ -0,0 +1,261 @@
+package com.brettonw.db;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.bson.*;
+import org.bson.conversions.Bson;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded, least-recently-used cache of query JSON compiled to BSON filters. The query
+ * text is parsed once with the driver's JSON reader, so values keep the types they were
+ * written with and operators ($in, $gt, $lt, $exists, etc.) and dotted paths pass through
+ * to the server. Range bounds have to be strings, like the values bags store. The cache is
+ * keyed by the query text with insignificant whitespace removed.
+ */
+class QueryCache {
+    private static final Logger log = LogManager.getLogger (QueryCache.class);
+
+    private static final BsonDocument EMPTY = new BsonDocument ();
+
+    private static final String EQ = "$eq";
+    private static final String NE = "$ne";
+    private static final String GT = "$gt";
+    private static final String GTE = "$gte";
+    private static final String LT = "$lt";
+    private static final String LTE = "$lte";
+    private static final String IN = "$in";
+    private static final String NIN = "$nin";
+    private static final String AND = "$and";
+    private static final String OR = "$or";
+    private static final String NOR = "$nor";
+    private static final String NOT = "$not";
+
+    private final int capacity;
+    private final LinkedHashMap<String, Bson> cache;
+    private final AtomicLong hitCount;
+    private final AtomicLong missCount;
+
+    QueryCache (int capacity) {
+        this.capacity = capacity;
+        cache = new LinkedHashMap<String, Bson> (16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry (Map.Entry<String, Bson> eldest) {
+                return size () > QueryCache.this.capacity;
+            }
+        };
+        hitCount = new AtomicLong ();
+        missCount = new AtomicLong ();
+    }
+
+    Bson get (String queryJson) {
+        if (queryJson == null) {
+            return EMPTY;
+        }
+
+        // look for the compiled query, compiling outside the lock if it's not there. two
+        // threads might compile the same query at the same time, which is harmless. the
+        // normalized text is only the key, the query itself is compiled as it was written
+        String key = normalize (queryJson);
+        Bson filter;
+        synchronized (cache) {
+            filter = cache.get (key);
+        }
+        if (filter != null) {
+            hitCount.incrementAndGet ();
+        } else {
+            missCount.incrementAndGet ();
+            filter = compile (queryJson);
+            if (capacity > 0) {
+                synchronized (cache) {
+                    cache.put (key, filter);
+                }
+            }
+        }
+        return filter;
+    }
+
+    long getHitCount () {
+        return hitCount.get ();
+    }
+
+    long getMissCount () {
+        return missCount.get ();
+    }
+
+    double getHitRate () {
+        long hits = hitCount.get ();
+        long total = hits + missCount.get ();
+        return (total > 0) ? ((double) hits / total) : 0;
+    }
+
+    int getSize () {
+        synchronized (cache) {
+            return cache.size ();
+        }
+    }
+
+    static String normalize (String queryJson) {
+        // drop whitespace that isn't inside a quoted string, the JSON reader accepts both
+        // double and single quotes
+        StringBuilder stringBuilder = new StringBuilder (queryJson.length ());
+        char quote = 0;
+        for (int i = 0, end = queryJson.length (); i < end; ++i) {
+            char c = queryJson.charAt (i);
+            if (quote != 0) {
+                stringBuilder.append (c);
+                if (c == '\\') {
+                    if (++i < end) {
+                        stringBuilder.append (queryJson.charAt (i));
+                    }
+                } else if (c == quote) {
+                    quote = 0;
+                }
+            } else if (! Character.isWhitespace (c)) {
+                stringBuilder.append (c);
+                if ((c == '"') || (c == '\'')) {
+                    quote = c;
+                }
+            }
+        }
+        return stringBuilder.toString ();
+    }
+
+    static Bson compile (String queryJson) {
+        // an unparseable query has always been treated as an empty query
+        BsonDocument query;
+        try {
+            query = BsonDocument.parse (queryJson);
+        } catch (RuntimeException exception) {
+            log.error ("Invalid query (" + queryJson + ")", exception);
+            return EMPTY;
+        }
+        return compileDocument (query);
+    }
+
+    static BsonDocument compileDocument (BsonDocument query) {
+        BsonDocument compiled = new BsonDocument ();
+        for (Map.Entry<String, BsonValue> entry : query.entrySet ()) {
+            String key = entry.getKey ();
+            BsonValue value = entry.getValue ();
+            if (key.equals (AND) || key.equals (OR) || key.equals (NOR)) {
+                compiled.put (key, compileClauses (value));
+            } else if (key.startsWith ("$")) {
+                compiled.put (key, value);
+            } else if (value.isDocument () && isOperatorDocument (value.asDocument ())) {
+                compiled.put (key, compileOperators (value.asDocument ()));
+            } else if (isBareScalar (value)) {
+                compiled.put (key, new BsonDocument (IN, withStringForm (value)));
+            } else {
+                compiled.put (key, value);
+            }
+        }
+        return compiled;
+    }
+
+    private static BsonValue compileClauses (BsonValue clauses) {
+        if (clauses.isArray ()) {
+            BsonArray compiled = new BsonArray ();
+            for (BsonValue clause : clauses.asArray ()) {
+                compiled.add (clause.isDocument () ? compileDocument (clause.asDocument ()) : clause);
+            }
+            return compiled;
+        }
+        return clauses;
+    }
+
+    private static BsonDocument compileOperators (BsonDocument operators) {
+        // bags store scalars as strings, so equality tests against a bare number or
+        // boolean also accept its string form. a range can't do the same, since strings
+        // order by their characters and not by their values ("9" > "10"), so a range with a
+        // bare number or boolean bound is rejected rather than silently matching nothing
+        BsonDocument compiled = new BsonDocument ();
+        for (Map.Entry<String, BsonValue> entry : operators.entrySet ()) {
+            String operator = entry.getKey ();
+            BsonValue value = entry.getValue ();
+            switch (operator) {
+                case EQ:
+                    if (isBareScalar (value)) {
+                        compiled.put (IN, withStringForm (value));
+                    } else {
+                        compiled.put (EQ, value);
+                    }
+                    break;
+                case NE:
+                    if (isBareScalar (value)) {
+                        compiled.put (NIN, withStringForm (value));
+                    } else {
+                        compiled.put (NE, value);
+                    }
+                    break;
+                case IN:
+                case NIN:
+                    if (value.isArray ()) {
+                        BsonArray values = new BsonArray ();
+                        for (BsonValue element : value.asArray ()) {
+                            appendWithStringForm (values, element);
+                        }
+                        compiled.put (operator, values);
+                    } else {
+                        compiled.put (operator, value);
+                    }
+                    break;
+                case GT:
+                case GTE:
+                case LT:
+                case LTE:
+                    if (isBareScalar (value)) {
+                        throw new IllegalArgumentException ("Range operator (" + operator + ") has a bound that is not a string (" + value + "), but bags store scalars as strings, use \"" + toStringForm (value) + "\" instead");
+                    }
+                    compiled.put (operator, value);
+                    break;
+                case NOT:
+                    compiled.put (operator, (value.isDocument () && isOperatorDocument (value.asDocument ())) ? compileOperators (value.asDocument ()) : value);
+                    break;
+                default:
+                    compiled.put (operator, value);
+                    break;
+            }
+        }
+        return compiled;
+    }
+
+    private static BsonArray withStringForm (BsonValue value) {
+        return appendWithStringForm (new BsonArray (), value);
+    }
+
+    private static BsonArray appendWithStringForm (BsonArray values, BsonValue value) {
+        values.add (value);
+        if (isBareScalar (value)) {
+            values.add (new BsonString (toStringForm (value)));
+        }
+        return values;
+    }
+
+    private static boolean isOperatorDocument (BsonDocument document) {
+        for (String key : document.keySet ()) {
+            if (! key.startsWith ("$")) {
+                return false;
+            }
+        }
+        return ! document.isEmpty ();
+    }
+
+    private static boolean isBareScalar (BsonValue value) {
+        return value.isNumber () || value.isBoolean () || value.isDecimal128 ();
+    }
+
+    private static String toStringForm (BsonValue value) {
+        switch (value.getBsonType ()) {
+            case INT32: return Integer.toString (value.asInt32 ().getValue ());
+            case INT64: return Long.toString (value.asInt64 ().getValue ());
+            case DOUBLE: return Double.toString (value.asDouble ().getValue ());
+            case DECIMAL128: return value.asDecimal128 ().getValue ().toString ();
+            case BOOLEAN: return Boolean.toString (value.asBoolean ().getValue ());
+            default: return value.toString ();
+        }
+    }
+}
@@ -0,0 +1,421 @@
+package com.brettonw.db;
+
+import org.bson.BsonArray;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.BsonValue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Evaluates a compiled query filter against a document in memory, with the semantics the
+ * server gives the same filter. Dotted paths reach into nested documents and through
+ * arrays, a condition on an array matches if the array or any of its elements does, a
+ * missing field equals null, and comparisons only match values of the same type (numbers
+ * with numbers, strings with strings, etc.).
+ */
+class QueryMatcher {
+    private static final String AND = "$and";
+    private static final String OR = "$or";
+    private static final String NOR = "$nor";
+
+    private QueryMatcher () {
+    }
+
+    static boolean matches (BsonDocument document, BsonDocument filter) {
+        for (Map.Entry<String, BsonValue> entry : filter.entrySet ()) {
+            if (! matchesClause (document, entry.getKey (), entry.getValue ())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesClause (BsonDocument document, String key, BsonValue value) {
+        switch (key) {
+            case AND:
+                for (BsonValue clause : getClauses (key, value)) {
+                    if (! matches (document, clause.asDocument ())) {
+                        return false;
+                    }
+                }
+                return true;
+            case OR:
+                for (BsonValue clause : getClauses (key, value)) {
+                    if (matches (document, clause.asDocument ())) {
+                        return true;
+                    }
+                }
+                return false;
+            case NOR:
+                for (BsonValue clause : getClauses (key, value)) {
+                    if (matches (document, clause.asDocument ())) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                if (key.startsWith ("$")) {
+                    throw new IllegalArgumentException ("Unsupported query operator (" + key + ")");
+                }
+                List<BsonValue> values = resolve (document, key);
+                return isOperatorDocument (value) ? matchesOperators (values, value.asDocument ()) : matchesValue (values, value);
+        }
+    }
+
+    private static BsonArray getClauses (String operator, BsonValue value) {
+        if (value.isArray ()) {
+            boolean valid = true;
+            for (BsonValue clause : value.asArray ()) {
+                valid = valid && clause.isDocument ();
+            }
+            if (valid) {
+                return value.asArray ();
+            }
+        }
+        throw new IllegalArgumentException ("Invalid " + operator + " (" + value + ")");
+    }
+
+    static boolean isOperatorDocument (BsonValue value) {
+        if (value.isDocument () && (! value.asDocument ().isEmpty ())) {
+            for (String key : value.asDocument ().keySet ()) {
+                if (! key.startsWith ("$")) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * all of the values at a (possibly dotted) path, following the path into every element
+     * of any arrays along the way. a numeric name also picks that element of an array.
+     * @param document
+     * @param path
+     * @return the values, empty if the path is missing
+     */
+    static List<BsonValue> resolve (BsonDocument document, String path) {
+        List<BsonValue> values = new ArrayList<> (1);
+        resolve (document, path.split ("\\."), 0, values);
+        return values;
+    }
+
+    private static void resolve (BsonValue value, String[] names, int index, List<BsonValue> values) {
+        if (index == names.length) {
+            values.add (value);
+        } else if (value.isDocument ()) {
+            BsonValue child = value.asDocument ().get (names[index]);
+            if (child != null) {
+                resolve (child, names, index + 1, values);
+            }
+        } else if (value.isArray ()) {
+            BsonArray array = value.asArray ();
+            int element = getArrayIndex (names[index]);
+            if ((element >= 0) && (element < array.size ())) {
+                resolve (array.get (element), names, index + 1, values);
+            }
+            for (BsonValue child : array) {
+                if (child.isDocument ()) {
+                    resolve (child, names, index, values);
+                }
+            }
+        }
+    }
+
+    private static int getArrayIndex (String name) {
+        for (int i = 0, end = name.length (); i < end; ++i) {
+            if (! Character.isDigit (name.charAt (i))) {
+                return -1;
+            }
+        }
+        try {
+            return name.isEmpty () ? -1 : Integer.parseInt (name);
+        } catch (NumberFormatException exception) {
+            return -1;
+        }
+    }
+
+    private static boolean matchesValue (List<BsonValue> values, BsonValue target) {
+        // a missing field matches null, and an array matches as a whole or by any element
+        if (target.isRegularExpression ()) {
+            return matchesRegularExpression (values, target.asRegularExpression ().getPattern (), target.asRegularExpression ().getOptions ());
+        }
+        if (values.isEmpty ()) {
+            return target.isNull ();
+        }
+        for (BsonValue value : values) {
+            if (isEqual (value, target)) {
+                return true;
+            }
+            if (value.isArray ()) {
+                for (BsonValue element : value.asArray ()) {
+                    if (isEqual (element, target)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesOperators (List<BsonValue> values, BsonDocument operators) {
+        for (Map.Entry<String, BsonValue> entry : operators.entrySet ()) {
+            String operator = entry.getKey ();
+            BsonValue operand = entry.getValue ();
+            boolean matched;
+            switch (operator) {
+                case "$eq": matched = matchesValue (values, operand); break;
+                case "$ne": matched = ! matchesValue (values, operand); break;
+                case "$in": matched = matchesAny (values, operator, operand); break;
+                case "$nin": matched = ! matchesAny (values, operator, operand); break;
+                case "$gt": matched = matchesComparison (values, operand, 1, false); break;
+                case "$gte": matched = matchesComparison (values, operand, 1, true); break;
+                case "$lt": matched = matchesComparison (values, operand, -1, false); break;
+                case "$lte": matched = matchesComparison (values, operand, -1, true); break;
+                case "$exists": matched = (! values.isEmpty ()) == isTrue (operand); break;
+                case "$size": matched = matchesSize (values, operand); break;
+                case "$all": matched = matchesAll (values, operand); break;
+                case "$elemMatch": matched = matchesElement (values, operator, operand); break;
+                case "$regex":
+                    matched = matchesRegularExpression (values, getPattern (operand), operators.containsKey ("$options") ? operators.getString ("$options").getValue () : "");
+                    break;
+                case "$options":
+                    matched = true;
+                    break;
+                case "$not":
+                    matched = ! (isOperatorDocument (operand) ? matchesOperators (values, operand.asDocument ()) : matchesValue (values, operand));
+                    break;
+                default:
+                    throw new IllegalArgumentException ("Unsupported query operator (" + operator + ")");
+            }
+            if (! matched) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean matchesAny (List<BsonValue> values, String operator, BsonValue operand) {
+        if (! operand.isArray ()) {
+            throw new IllegalArgumentException ("Invalid " + operator + " (" + operand + ")");
+        }
+        for (BsonValue target : operand.asArray ()) {
+            if (matchesValue (values, target)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesAll (List<BsonValue> values, BsonValue operand) {
+        if (! operand.isArray ()) {
+            throw new IllegalArgumentException ("Invalid $all (" + operand + ")");
+        }
+        for (BsonValue target : operand.asArray ()) {
+            if (! matchesValue (values, target)) {
+                return false;
+            }
+        }
+        return ! operand.asArray ().isEmpty ();
+    }
+
+    private static boolean matchesComparison (List<BsonValue> values, BsonValue target, int direction, boolean orEqual) {
+        // a null bound is only met by null (or missing) values, with $gte and $lte
+        if (values.isEmpty ()) {
+            return target.isNull () && orEqual;
+        }
+        for (BsonValue value : values) {
+            if (isComparable (value, target, direction, orEqual)) {
+                return true;
+            }
+            if (value.isArray ()) {
+                for (BsonValue element : value.asArray ()) {
+                    if (isComparable (element, target, direction, orEqual)) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isComparable (BsonValue value, BsonValue target, int direction, boolean orEqual) {
+        if (getTypeOrder (value) != getTypeOrder (target)) {
+            return false;
+        }
+        int comparison = Integer.signum (compare (value, target));
+        return (comparison == direction) || (orEqual && (comparison == 0));
+    }
+
+    private static boolean matchesSize (List<BsonValue> values, BsonValue operand) {
+        if (! operand.isNumber ()) {
+            throw new IllegalArgumentException ("Invalid $size (" + operand + ")");
+        }
+        for (BsonValue value : values) {
+            if (value.isArray () && (value.asArray ().size () == operand.asNumber ().intValue ())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean matchesElement (List<BsonValue> values, String operator, BsonValue operand) {
+        if (! operand.isDocument ()) {
+            throw new IllegalArgumentException ("Invalid " + operator + " (" + operand + ")");
+        }
+        BsonDocument conditions = operand.asDocument ();
+        boolean operators = isOperatorDocument (conditions);
+        for (BsonValue value : values) {
+            if (value.isArray ()) {
+                for (BsonValue element : value.asArray ()) {
+                    List<BsonValue> elementValues = new ArrayList<> (1);
+                    elementValues.add (element);
+                    if (operators ? matchesOperators (elementValues, conditions) : (element.isDocument () && matches (element.asDocument (), conditions))) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static String getPattern (BsonValue operand) {
+        if (operand.isString ()) {
+            return operand.asString ().getValue ();
+        } else if (operand.isRegularExpression ()) {
+            return operand.asRegularExpression ().getPattern ();
+        }
+        throw new IllegalArgumentException ("Invalid $regex (" + operand + ")");
+    }
+
+    private static boolean matchesRegularExpression (List<BsonValue> values, String pattern, String options) {
+        int flags = 0;
+        for (char option : options.toCharArray ()) {
+            switch (option) {
+                case 'i': flags |= Pattern.CASE_INSENSITIVE | Pattern.UNICODE_CASE; break;
+                case 'm': flags |= Pattern.MULTILINE; break;
+                case 's': flags |= Pattern.DOTALL; break;
+                case 'x': flags |= Pattern.COMMENTS; break;
+                default: break;
+            }
+        }
+        Pattern compiled = Pattern.compile (pattern, flags);
+        for (BsonValue value : values) {
+            if (value.isString () && compiled.matcher (value.asString ().getValue ()).find ()) {
+                return true;
+            }
+            if (value.isArray ()) {
+                for (BsonValue element : value.asArray ()) {
+                    if (element.isString () && compiled.matcher (element.asString ().getValue ()).find ()) {
+                        return true;
+                    }
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isTrue (BsonValue value) {
+        if (value.isBoolean ()) {
+            return value.asBoolean ().getValue ();
+        }
+        return value.isNumber () ? (value.asNumber ().doubleValue () != 0) : (! value.isNull ());
+    }
+
+    private static boolean isEqual (BsonValue value, BsonValue target) {
+        return (getTypeOrder (value) == getTypeOrder (target)) && (compare (value, target) == 0);
+    }
+
+    static int getTypeOrder (BsonValue value) {
+        // the order the server sorts values of different types in
+        switch (value.getBsonType ()) {
+            case MIN_KEY: return 0;
+            case NULL: case UNDEFINED: return 1;
+            case INT32: case INT64: case DOUBLE: case DECIMAL128: return 2;
+            case STRING: case SYMBOL: return 3;
+            case DOCUMENT: return 4;
+            case ARRAY: return 5;
+            case BINARY: return 6;
+            case OBJECT_ID: return 7;
+            case BOOLEAN: return 8;
+            case DATE_TIME: return 9;
+            case TIMESTAMP: return 10;
+            case REGULAR_EXPRESSION: return 11;
+            case MAX_KEY: return 13;
+            default: return 12;
+        }
+    }
+
+    /**
+     * a total order over values, by type and then by value, the same order the server sorts
+     * in for the types bags use
+     * @param left
+     * @param right
+     * @return
+     */
+    static int compare (BsonValue left, BsonValue right) {
+        int typeOrder = Integer.compare (getTypeOrder (left), getTypeOrder (right));
+        if (typeOrder != 0) {
+            return typeOrder;
+        }
+        switch (getTypeOrder (left)) {
+            case 1:
+                return 0;
+            case 2:
+                if ((left.isInt32 () || left.isInt64 ()) && (right.isInt32 () || right.isInt64 ())) {
+                    return Long.compare (left.asNumber ().longValue (), right.asNumber ().longValue ());
+                }
+                return Double.compare (toDouble (left), toDouble (right));
+            case 3:
+                return getString (left).compareTo (getString (right));
+            case 4:
+            case 5:
+                return compareElements (left, right);
+            case 7:
+                return left.asObjectId ().getValue ().compareTo (right.asObjectId ().getValue ());
+            case 8:
+                return Boolean.compare (left.asBoolean ().getValue (), right.asBoolean ().getValue ());
+            case 9:
+                return Long.compare (left.asDateTime ().getValue (), right.asDateTime ().getValue ());
+            default:
+                return left.equals (right) ? 0 : left.toString ().compareTo (right.toString ());
+        }
+    }
+
+    private static int compareElements (BsonValue left, BsonValue right) {
+        // documents compare field by field (names, then values), and arrays element by element
+        List<BsonValue> leftElements = getElements (left);
+        List<BsonValue> rightElements = getElements (right);
+        for (int i = 0, end = Math.min (leftElements.size (), rightElements.size ()); i < end; ++i) {
+            int comparison = compare (leftElements.get (i), rightElements.get (i));
+            if (comparison != 0) {
+                return comparison;
+            }
+        }
+        return Integer.compare (leftElements.size (), rightElements.size ());
+    }
+
+    private static List<BsonValue> getElements (BsonValue value) {
+        if (value.isArray ()) {
+            return value.asArray ().getValues ();
+        }
+        List<BsonValue> elements = new ArrayList<> ();
+        for (Map.Entry<String, BsonValue> entry : value.asDocument ().entrySet ()) {
+            elements.add (new BsonString (entry.getKey ()));
+            elements.add (entry.getValue ());
+        }
+        return elements;
+    }
+
+    static double toDouble (BsonValue value) {
+        return value.isDecimal128 () ? value.asDecimal128 ().getValue ().bigDecimalValue ().doubleValue () : value.asNumber ().doubleValue ();
+    }
+
+    private static String getString (BsonValue value) {
+        return value.isSymbol () ? value.asSymbol ().getSymbol () : value.asString ().getValue ();
+    }
+}
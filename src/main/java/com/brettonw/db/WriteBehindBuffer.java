@@ -0,0 +1,209 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A bounded queue of puts from any number of threads, written by a single flusher thread
+ * as bulk inserts (group commit). A batch is written as soon as it reaches the batch size,
+ * or when the oldest write in it has waited for the maximum delay. When the queue is full,
+ * a put waits up to the offer timeout for space (backpressure), and fails if there still
+ * isn't any, so a timeout of 0 fails fast. Every put gets a future that completes when its
+ * document is written, or completes exceptionally with the reason it wasn't.
+ */
+class WriteBehindBuffer {
+    private static final Logger log = LogManager.getLogger (WriteBehindBuffer.class);
+
+    private static class PendingWrite {
+        final BagObject bagObject;
+        final CompletableFuture<Void> future;
+        final boolean stop;
+
+        PendingWrite (BagObject bagObject, boolean stop) {
+            this.bagObject = bagObject;
+            this.stop = stop;
+            future = new CompletableFuture<> ();
+        }
+
+        // markers go through the queue in order with the writes, and complete when
+        // everything ahead of them has been written
+        boolean isMarker () {
+            return bagObject == null;
+        }
+    }
+
+    private final BagMongo bagMongo;
+    private final BlockingQueue<PendingWrite> queue;
+    private final int batchSize;
+    private final long maxDelayNanos;
+    private final long offerTimeoutMillis;
+    private final Thread flusher;
+    private final ReadWriteLock closeLock;
+    private volatile boolean closed;
+
+    WriteBehindBuffer (BagMongo bagMongo, int queueSize, int batchSize, long maxDelayMillis, long offerTimeoutMillis) {
+        this.bagMongo = bagMongo;
+        queue = new ArrayBlockingQueue<> (queueSize);
+        this.batchSize = batchSize;
+        maxDelayNanos = TimeUnit.MILLISECONDS.toNanos (maxDelayMillis);
+        this.offerTimeoutMillis = offerTimeoutMillis;
+        closeLock = new ReentrantReadWriteLock ();
+        flusher = new Thread (this::run, "write-behind-" + bagMongo.getName ());
+        flusher.setDaemon (true);
+        flusher.start ();
+        log.info ("Write behind for '" + bagMongo.getName () + "' (queue " + queueSize + ", batch " + batchSize + ", delay " + maxDelayMillis + " ms)");
+    }
+
+    CompletableFuture<Void> put (BagObject bagObject) {
+        // the check and the offer are one step with respect to close, so a put that gets in
+        // is always queued ahead of the marker that stops the flusher
+        PendingWrite pendingWrite = new PendingWrite (bagObject, false);
+        closeLock.readLock ().lock ();
+        try {
+            if (closed) {
+                pendingWrite.future.completeExceptionally (new RejectedExecutionException ("Write behind for '" + bagMongo.getName () + "' is closed"));
+            } else if (! queue.offer (pendingWrite, offerTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                pendingWrite.future.completeExceptionally (new RejectedExecutionException ("Write behind queue for '" + bagMongo.getName () + "' is full"));
+            }
+        } catch (InterruptedException exception) {
+            Thread.currentThread ().interrupt ();
+            pendingWrite.future.completeExceptionally (exception);
+        } finally {
+            closeLock.readLock ().unlock ();
+        }
+        return pendingWrite.future;
+    }
+
+    int getQueuedCount () {
+        return queue.size ();
+    }
+
+    /**
+     * write everything queued before this call, and wait for it
+     */
+    void flush () {
+        enqueueMarker (false);
+    }
+
+    /**
+     * stop accepting puts, write everything queued, and stop the flusher
+     */
+    void close () {
+        // waits for puts that are between their check and their offer
+        boolean closing;
+        closeLock.writeLock ().lock ();
+        try {
+            closing = ! closed;
+            closed = true;
+        } finally {
+            closeLock.writeLock ().unlock ();
+        }
+        if (closing) {
+            enqueueMarker (true);
+            try {
+                flusher.join ();
+            } catch (InterruptedException exception) {
+                Thread.currentThread ().interrupt ();
+            }
+        }
+    }
+
+    private void enqueueMarker (boolean stop) {
+        if (flusher.isAlive ()) {
+            PendingWrite marker = new PendingWrite (null, stop);
+            try {
+                queue.put (marker);
+                marker.future.join ();
+            } catch (InterruptedException exception) {
+                Thread.currentThread ().interrupt ();
+            }
+        }
+    }
+
+    private void run () {
+        List<PendingWrite> batch = new ArrayList<> (batchSize);
+        boolean running = true;
+        while (running) {
+            try {
+                // wait for the first write of a batch, then keep gathering until the batch
+                // is full, the oldest write has waited long enough, or a marker shows up
+                batch.add (queue.take ());
+                long deadline = System.nanoTime () + maxDelayNanos;
+                while ((batch.size () < batchSize) && (! batch.get (batch.size () - 1).isMarker ())) {
+                    PendingWrite next = queue.poll (deadline - System.nanoTime (), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add (next);
+                }
+            } catch (InterruptedException exception) {
+                running = false;
+            }
+
+            // write the batch, and then release any marker at the end of it
+            PendingWrite last = batch.isEmpty () ? null : batch.get (batch.size () - 1);
+            if ((last != null) && last.isMarker ()) {
+                batch.remove (batch.size () - 1);
+                write (batch);
+                last.future.complete (null);
+                running = running && (! last.stop);
+            } else {
+                write (batch);
+            }
+            batch.clear ();
+        }
+
+        // anything left behind after the flusher stops can't be written any more
+        PendingWrite pendingWrite;
+        while ((pendingWrite = queue.poll ()) != null) {
+            pendingWrite.future.completeExceptionally (new RejectedExecutionException ("Write behind for '" + bagMongo.getName () + "' is closed"));
+        }
+    }
+
+    private void write (List<PendingWrite> batch) {
+        if (! batch.isEmpty ()) {
+            BagArray bagArray = new BagArray ();
+            for (PendingWrite pendingWrite : batch) {
+                bagArray.add (pendingWrite.bagObject);
+            }
+            try {
+                // match the errors back to their writes by index, anything else that wasn't
+                // inserted was skipped by an ordered write that stopped at an error
+                PutManyResult putManyResult = bagMongo.putManyWithResult (bagArray);
+                String[] errors = new String[batch.size ()];
+                BagArray errorsBagArray = putManyResult.getErrors ();
+                for (int i = 0, end = errorsBagArray.getCount (); i < end; ++i) {
+                    BagObject error = errorsBagArray.getBagObject (i);
+                    Integer index = error.getInteger (PutManyResult.INDEX);
+                    if ((index != null) && (index >= 0) && (index < errors.length)) {
+                        errors[index] = error.getString (PutManyResult.MESSAGE);
+                    }
+                }
+                long skippedCount = putManyResult.getFailedCount () - errorsBagArray.getCount ();
+                for (int i = 0; i < errors.length; ++i) {
+                    CompletableFuture<Void> future = batch.get (i).future;
+                    if (errors[i] != null) {
+                        future.completeExceptionally (new IllegalStateException (errors[i]));
+                    } else if (i >= (errors.length - skippedCount)) {
+                        future.completeExceptionally (new IllegalStateException ("Not written after an earlier failure in the batch"));
+                    } else {
+                        future.complete (null);
+                    }
+                }
+            } catch (RuntimeException exception) {
+                log.error ("Failed to write behind " + batch.size () + " in '" + bagMongo.getName () + "'", exception);
+                for (PendingWrite pendingWrite : batch) {
+                    pendingWrite.future.completeExceptionally (exception);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.formats.MimeType;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.*;
+
+public class AsyncBagDb_Test {
+    private static final String TEST_COLLECTION_NAME = "AsyncTest";
+    private static final int COUNT = 200;
+
+    private BagDbInterface open () {
+        BagMongo bagMongo = BagMongo.connectLocal (TEST_COLLECTION_NAME);
+        assertNotEquals (null, bagMongo);
+        return bagMongo.deleteAll ();
+    }
+
+    @Test
+    public void testConcurrentPuts () throws Exception {
+        AsyncBagDb asyncBagDb = new AsyncBagDb (open (), 8);
+        CompletableFuture<?>[] futures = new CompletableFuture<?>[COUNT];
+        for (int i = 0; i < COUNT; ++i) {
+            futures[i] = asyncBagDb.put (new BagObject ().put ("id", i));
+            assertTrue (asyncBagDb.getInFlightCount () <= 8);
+        }
+        CompletableFuture.allOf (futures).join ();
+        assertEquals (COUNT, (long) asyncBagDb.getCount ().join ());
+
+        BagObject result = asyncBagDb.get (new BagObject ().put ("id", 7).toString (MimeType.JSON)).join ();
+        assertEquals (new BagObject ().put ("id", 7), result);
+
+        asyncBagDb.deleteAll ().join ();
+        assertEquals (0, (long) asyncBagDb.getCount ().join ());
+        asyncBagDb.getBagDb ().drop ();
+        asyncBagDb.close ();
+    }
+
+    @Test
+    public void testSuppliedExecutor () throws Exception {
+        AsyncBagDb asyncBagDb = new AsyncBagDb (open (), Executors.newCachedThreadPool (), 4);
+        asyncBagDb.putMany (new BagArray ().add (BagObject.open ("a", "b"))).join ();
+        assertEquals (1, asyncBagDb.getMany (null).join ().getCount ());
+        asyncBagDb.getBagDb ().drop ();
+        asyncBagDb.close ();
+    }
+}
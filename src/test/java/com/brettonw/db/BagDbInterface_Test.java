@@ -0,0 +1,347 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.formats.MimeType;
+import org.junit.Test;
+
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * The tests every BagDbInterface implementation has to pass, each implementation's test
+ * extends this with how to open a fresh database named "Test.Test", and adds its own.
+ */
+public abstract class BagDbInterface_Test {
+    protected static final String TEST_NAME = "Test.Test";
+    protected BagArray testBagArray;
+    protected String queryJson;
+    protected String queryManyJson;
+
+    public BagDbInterface_Test () throws Exception {
+
+        testBagArray = new BagArray ()
+                .add (new BagObject ()
+                        .put ("id", 1)
+                        .put ("key", "value 1" )
+                        .put ("payload", "full" )
+                )
+                .add (new BagObject ()
+                        .put ("id", 2)
+                        .put ("key", "value 2" )
+                        .put ("payload", "medium" )
+                )
+                .add (new BagObject ()
+                        .put ("id", 3)
+                        .put ("key", "value 3" )
+                        .put ("payload", "medium" )
+                )
+                .add (new BagObject ()
+                        .put ("id", 4)
+                        .put ("key", "value 4" )
+                        .put ("payload", "empty" )
+                );
+
+        queryJson = new BagObject ().put ("id", 2).toString (MimeType.JSON);
+        queryManyJson = new BagObject ().put ("payload", "medium" ).toString (MimeType.JSON);
+
+        // ensure the primary test database is fresh
+        close (open ());
+    }
+
+    protected abstract BagDbInterface open ();
+
+    protected void close (BagDbInterface bagDb) throws Exception {
+        bagDb.deleteAll ();
+        assertEquals (0, bagDb.getCount ());
+        bagDb.drop ();
+    }
+
+    @Test
+    public void testGetWithNoMatches () throws Exception {
+        // ensure the primary test database is fresh
+        close (open ());
+        BagDbInterface bagDb = open ();
+        BagObject result = bagDb.get (queryJson);
+        assertEquals (result, null);
+        close (bagDb);
+    }
+
+    @Test
+    public void testPutWithGet () throws Exception {
+        BagDbInterface bagDb = open ()
+                .put (testBagArray.getBagObject (0))
+                .put (testBagArray.getBagObject (1))
+                .put (testBagArray.getBagObject (2));
+        assertEquals (3, bagDb.getCount ());
+        assertEquals (TEST_NAME, bagDb.getName ());
+
+        BagObject result = bagDb.get (queryJson);
+        assertEquals (testBagArray.getBagObject (1), result);
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testPutArrayWithGet () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+        assertEquals (TEST_NAME, bagDb.getName ());
+
+        BagObject result = bagDb.get (queryJson);
+        assertEquals (testBagArray.getBagObject (1), result);
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testDelete () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+        assertEquals (TEST_NAME, bagDb.getName ());
+
+        bagDb.delete (queryJson);
+        BagObject result = bagDb.get (queryJson);
+        assertEquals (null, result);
+        assertEquals (testBagArray.getCount () - 1, bagDb.getCount ());
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testGetAll () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+        assertEquals (TEST_NAME, bagDb.getName ());
+
+        BagArray bagArray = bagDb.getAll ();
+        assertNotEquals (null, bagArray);
+        assertEquals (testBagArray.getCount (), bagArray.getCount ());
+        assertEquals (testBagArray, bagArray);
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testGetMany () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+        assertEquals (TEST_NAME, bagDb.getName ());
+
+        BagArray bagArray = bagDb.getMany (queryManyJson);
+        assertNotEquals (null, bagArray);
+        assertEquals (2, bagArray.getCount ());
+        assertEquals (testBagArray.getBagObject (1), bagArray.getBagObject (0));
+        assertEquals (testBagArray.getBagObject (2), bagArray.getBagObject (1));
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testStream () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+
+        try (Stream<BagObject> stream = bagDb.stream (queryManyJson)) {
+            assertEquals (2, stream.count ());
+        }
+
+        // stop early, and let the stream close the cursor
+        try (Stream<BagObject> stream = bagDb.streamAll ()) {
+            assertEquals (testBagArray.getBagObject (0), stream.findFirst ().orElse (null));
+        }
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testGetWithProjection () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+
+        BagObject result = bagDb.get (queryJson, Projection.include ("key"));
+        assertEquals (new BagObject ().put ("key", "value 2"), result);
+
+        result = bagDb.get (queryJson, Projection.exclude ("payload"));
+        assertEquals (new BagObject ().put ("id", 2).put ("key", "value 2"), result);
+
+        BagArray bagArray = bagDb.getMany (queryManyJson, Projection.include ("id"));
+        assertEquals (2, bagArray.getCount ());
+        assertEquals (new BagObject ().put ("id", 2), bagArray.getBagObject (0));
+        assertEquals (new BagObject ().put ("id", 3), bagArray.getBagObject (1));
+
+        bagArray = bagDb.getAll (Projection.exclude ("key", "payload"));
+        assertEquals (testBagArray.getCount (), bagArray.getCount ());
+        assertEquals (new BagObject ().put ("id", 4), bagArray.getBagObject (3));
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testGetPage () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+
+        // page through everything in order of "id", the last page isn't full so it has no
+        // resume token
+        Page page = bagDb.getPage (null, "id", 3, null);
+        assertEquals (3, page.getResults ().getCount ());
+        assertTrue (page.hasMore ());
+        assertEquals (testBagArray.getBagObject (0), page.getResults ().getBagObject (0));
+        assertEquals (testBagArray.getBagObject (2), page.getResults ().getBagObject (2));
+        page = bagDb.getPage (null, "id", 3, page.getResumeToken ());
+        assertEquals (1, page.getResults ().getCount ());
+        assertFalse (page.hasMore ());
+        assertEquals (testBagArray.getBagObject (3), page.getResults ().getBagObject (0));
+
+        // a page that ends exactly at the last match has no resume token either
+        page = bagDb.getPage (null, "id", 2, null);
+        assertTrue (page.hasMore ());
+        page = bagDb.getPage (null, "id", 2, page.getResumeToken ());
+        assertEquals (2, page.getResults ().getCount ());
+        assertFalse (page.hasMore ());
+
+        // a query is applied to every page
+        page = bagDb.getPage (queryManyJson, "id", 1, null);
+        assertEquals (testBagArray.getBagObject (1), page.getResults ().getBagObject (0));
+        assertTrue (page.hasMore ());
+        page = bagDb.getPage (queryManyJson, "id", 1, page.getResumeToken ());
+        assertEquals (testBagArray.getBagObject (2), page.getResults ().getBagObject (0));
+        assertFalse (page.hasMore ());
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testUpsertAndUpdate () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        String[] keyFields = { "id" };
+
+        // upsert replaces a match, and puts anything else
+        bagDb.upsert (keyFields, new BagObject ().put ("id", 2).put ("key", "replaced"));
+        bagDb.upsertMany (keyFields, new BagArray ()
+                .add (new BagObject ().put ("id", 3).put ("key", "replaced"))
+                .add (new BagObject ().put ("id", 5).put ("key", "new")));
+        assertEquals (testBagArray.getCount () + 1, bagDb.getCount ());
+        assertEquals (new BagObject ().put ("id", 2).put ("key", "replaced"), bagDb.get (queryJson));
+        assertEquals ("new", bagDb.get ("{\"id\":5}").getString ("key"));
+
+        // plain fields are set, and operators change only the fields they name
+        bagDb.update (queryJson, new BagObject ().put ("payload", "small"));
+        assertEquals (new BagObject ().put ("id", 2).put ("key", "replaced").put ("payload", "small"), bagDb.get (queryJson));
+        bagDb.update (queryJson, new BagObject ()
+                .put ("$unset", new BagObject ().put ("key", ""))
+                .put ("$inc", new BagObject ().put ("visits", 2)));
+        bagDb.update (queryJson, new BagObject ().put ("$inc", new BagObject ().put ("visits", 1)));
+        BagObject bagObject = bagDb.get (queryJson);
+        assertFalse (bagObject.has ("key"));
+        assertEquals (3, (int) bagObject.getInteger ("visits"));
+
+        bagDb.updateMany ("{\"key\":\"replaced\"}", new BagObject ().put ("payload", "tiny"));
+        assertEquals ("tiny", bagDb.get ("{\"id\":3}").getString ("payload"));
+        assertEquals ("full", bagDb.get ("{\"id\":1}").getString ("payload"));
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testDeleteMany () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+        assertEquals (TEST_NAME, bagDb.getName ());
+
+        bagDb.deleteMany (queryManyJson);
+        assertEquals (2, bagDb.getCount ());
+
+        BagArray bagArray = bagDb.getMany (queryManyJson);
+        assertNotEquals (null, bagArray);
+        assertEquals (0, bagArray.getCount ());
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testGetWithMultipleMatchFields () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+        assertEquals (TEST_NAME, bagDb.getName ());
+
+        BagObject result = bagDb.get (new BagObject ().put ("id", 3).put ("payload", "medium").toString (MimeType.JSON));
+        assertEquals (testBagArray.getBagObject (2), result);
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testGetWithOperators () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+
+        // bare numbers still match the string values bags store
+        assertEquals (testBagArray.getBagObject (1), bagDb.get ("{ \"id\": 2 }"));
+
+        BagArray bagArray = bagDb.getMany ("{\"id\": {\"$in\": [1, 4]}}");
+        assertEquals (2, bagArray.getCount ());
+        assertEquals (testBagArray.getBagObject (0), bagArray.getBagObject (0));
+        assertEquals (testBagArray.getBagObject (3), bagArray.getBagObject (1));
+
+        assertEquals (2, bagDb.getMany ("{\"key\": {\"$gt\": \"value 2\"}}").getCount ());
+        assertEquals (testBagArray.getCount (), bagDb.getMany ("{\"payload\": {\"$exists\": true}}").getCount ());
+        assertEquals (0, bagDb.getMany ("{\"missing\": {\"$exists\": true}}").getCount ());
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testGetCountWithQuery () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount (null));
+        assertEquals (1, bagDb.getCount ("{ \"id\": 2 }"));
+        assertEquals (2, bagDb.getCount ("{\"key\": {\"$gt\": \"value 2\"}}"));
+        assertEquals (0, bagDb.getCount ("{\"missing\": {\"$exists\": true}}"));
+        close (bagDb);
+    }
+
+    @Test
+    public void testGetManyWithNull () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagDb.getCount ());
+        assertEquals (TEST_NAME, bagDb.getName ());
+
+        BagArray bagArray = bagDb.getMany (null);
+        assertNotEquals (null, bagArray);
+        assertEquals (testBagArray.getCount (), bagArray.getCount ());
+        assertEquals (testBagArray, bagArray);
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testPutWithNestedValues () throws Exception {
+        BagObject nested = new BagObject ()
+                .put ("id", 5)
+                .put ("object", new BagObject ().put ("a", "b").put ("c", 1.5))
+                .put ("array", new BagArray ().add ("x").add (new BagObject ().put ("y", true)));
+        BagDbInterface bagDb = open ().put (nested);
+        assertEquals (1, bagDb.getCount ());
+
+        BagObject result = bagDb.get (new BagObject ().put ("id", 5).toString (MimeType.JSON));
+        assertEquals (nested, result);
+        assertFalse (result.has ("_id"));
+
+        close (bagDb);
+    }
+
+    @Test
+    public void testGetByKeysInOrder () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+
+        BagArray bagArray = bagDb.getByKeys ("key", new BagArray ().add ("value 3").add ("value 9").add ("value 1"));
+        assertEquals (3, bagArray.getCount ());
+        assertEquals (testBagArray.getBagObject (2), bagArray.getBagObject (0));
+        assertEquals (new BagObject (), bagArray.getBagObject (1));
+        assertEquals (testBagArray.getBagObject (0), bagArray.getBagObject (2));
+
+        close (bagDb);
+    }
+}
@@ -0,0 +1,131 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.junit.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.stream.Stream;
+
+import static com.brettonw.db.BagMongo.*;
+import static org.junit.Assert.*;
+
+public class BagMemory_Test extends BagDbInterface_Test {
+    public BagMemory_Test () throws Exception {
+        super ();
+    }
+
+    @Override
+    protected BagDbInterface open () {
+        return new BagMemory (TEST_NAME);
+    }
+
+    @Test
+    public void testIndexes () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, "Test")
+                .put (COLLECTION_NAME, "Test")
+                .put (INDEXES, BagObject.open ("Test", new BagArray ()
+                        .add (BagObject.open (INDEX_KEYS, BagArray.open ("id")).put (INDEX_UNIQUE, true))
+                        .add (BagObject.open (INDEX_KEYS, BagArray.open ("key")).put (BagMemory.INDEX_SORTED, true))
+                ));
+        BagMemory bagMemory = BagMemory.connect (configuration).get ("Test");
+        assertEquals (TEST_NAME, bagMemory.getName ());
+        bagMemory.putMany (testBagArray);
+
+        // the "_id" index, plus the two declared ones
+        assertEquals (3, bagMemory.getIndexes ().getCount ());
+
+        // indexed queries find the same objects as a scan would
+        assertEquals (testBagArray.getBagObject (1), bagMemory.get (queryJson));
+        assertEquals (2, bagMemory.getMany ("{\"id\": {\"$in\": [1, 4]}}").getCount ());
+        assertEquals (2, bagMemory.getMany ("{\"key\": {\"$gt\": \"value 2\"}}").getCount ());
+        assertEquals (1, bagMemory.getMany ("{\"key\": {\"$gte\": \"value 2\", \"$lt\": \"value 3\"}}").getCount ());
+        try {
+            bagMemory.getMany ("{\"key\": {\"$gt\": 2}}");
+            fail ("Expected a range with a number bound to fail");
+        } catch (IllegalArgumentException exception) {
+            assertTrue (exception.getMessage ().contains ("$gt"));
+        }
+
+        // the unique index rejects a duplicate id, and follows updates and deletes
+        PutManyResult putManyResult = bagMemory.putManyWithResult (BagArray.open (testBagArray.getBagObject (0)));
+        assertEquals (1, putManyResult.getFailedCount ());
+        bagMemory.update (queryJson, new BagObject ().put ("id", 5));
+        bagMemory.put (new BagObject ().put ("id", 2).put ("key", "value 5"));
+        bagMemory.delete ("{\"id\": 5}");
+        assertEquals (testBagArray.getCount (), bagMemory.getCount ());
+        assertEquals ("value 5", bagMemory.get (queryJson).getString ("key"));
+        assertEquals (3, bagMemory.getMany ("{\"key\": {\"$gt\": \"value 2\"}}").getCount ());
+
+        close (bagMemory);
+    }
+
+    @Test
+    public void testSnapshot () throws Exception {
+        Path directory = Files.createTempDirectory ("BagMemory_Test");
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, "Test")
+                .put (COLLECTION_NAME, "Test")
+                .put (BagMemory.SNAPSHOT_DIRECTORY, directory.toString ());
+        try {
+            BagMemory bagMemory = BagMemory.connect (configuration).get ("Test");
+            bagMemory.putMany (testBagArray);
+            bagMemory.close ();
+            assertTrue (Files.exists (directory.resolve (TEST_NAME + ".bson")));
+
+            // a restart comes back with the same objects, and new ones don't collide
+            bagMemory = BagMemory.connect (configuration).get ("Test");
+            assertEquals (testBagArray, bagMemory.getAll ());
+            bagMemory.put (new BagObject ().put ("id", 5));
+            assertEquals (testBagArray.getCount () + 1, bagMemory.getCount ());
+
+            // dropping removes the snapshot
+            close (bagMemory);
+            assertFalse (Files.exists (directory.resolve (TEST_NAME + ".bson")));
+        } finally {
+            Files.delete (directory);
+        }
+    }
+
+    @Test
+    public void testAggregate () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
+
+        // match, sort, skip, limit, and project run in memory, in order
+        BagArray pipeline = new BagArray ()
+                .add (BagObject.open ("$match", BagObject.open ("id", BagObject.open ("$gte", "2"))))
+                .add (BagObject.open ("$sort", BagObject.open ("payload", 1).put ("id", -1)))
+                .add (BagObject.open ("$skip", 1))
+                .add (BagObject.open ("$limit", 2))
+                .add (BagObject.open ("$project", BagObject.open ("id", 1).put ("_id", 0)));
+        BagArray bagArray = new BagArray ();
+        try (Stream<BagObject> stream = bagDb.aggregate (pipeline)) {
+            stream.forEachOrdered (bagArray::add);
+        }
+        assertEquals (BagArray.open (BagObject.open ("id", 3)).add (BagObject.open ("id", 2)), bagArray);
+
+        // the results keep their "_id" unless it is projected out, and a match on a field
+        // that doesn't exist takes a typed argument
+        pipeline = BagArray.open (BagObject.open ("$match", BagObject.open ("missing", BagObject.open ("$exists", false))))
+                .add (BagObject.open ("$project", BagObject.open ("key", 0)));
+        bagArray = new BagArray ();
+        try (Stream<BagObject> stream = bagDb.aggregate (pipeline)) {
+            stream.forEachOrdered (bagArray::add);
+        }
+        assertEquals (testBagArray.getCount (), bagArray.getCount ());
+        assertTrue (bagArray.getBagObject (0).has ("_id"));
+        assertFalse (bagArray.getBagObject (0).has ("key"));
+        assertEquals ("full", bagArray.getBagObject (0).getString ("payload"));
+
+        // stages that need a server aren't supported
+        try {
+            bagDb.aggregate (BagArray.open (BagObject.open ("$group", BagObject.open ("_id", "$payload"))));
+            fail ("Expected the $group stage to be unsupported");
+        } catch (IllegalArgumentException exception) {
+            assertEquals (testBagArray.getCount (), bagDb.getCount ());
+        }
+        close (bagDb);
+    }
+}
@@ -0,0 +1,40 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagObject;
+import org.junit.Test;
+
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class BagMongoMetrics_Test {
+    @Test
+    public void testConversionOnOtherThreads () throws Exception {
+        BagMongoMetrics metrics = new BagMongoMetrics ("Test.Test");
+        long startTime = metrics.start ();
+        metrics.recordDecode (1000, 10);
+
+        // decoding on another thread counts toward the operation once it is merged here
+        BagMongoMetrics.Measured<String> measured = CompletableFuture.supplyAsync (() -> BagMongoMetrics.measure (() -> {
+            metrics.recordDecode (2000, 20);
+            return "part";
+        })).join ();
+        assertEquals ("part", BagMongoMetrics.merge (measured));
+        metrics.stop (BagMongoMetrics.Operation.GET_BY_KEYS, startTime, 2);
+        assertEquals (30, metrics.getByteCount (BagMongoMetrics.Operation.GET_BY_KEYS));
+        assertEquals (3.0, metrics.getSnapshot ().getBagObject ("operations").getBagObject ("get-by-keys").getDouble ("conversion-us"), 1e-9);
+
+        // decoding on other threads ran alongside this one, so however long it took, it
+        // isn't taken out of the time spent in the driver
+        startTime = metrics.start ();
+        BagMongoMetrics.merge (CompletableFuture.supplyAsync (() -> BagMongoMetrics.measure (() -> {
+            metrics.recordDecode (10_000_000_000L, 10);
+            return "part";
+        })).join ());
+        Thread.sleep (1);
+        metrics.stop (BagMongoMetrics.Operation.GET_MANY, startTime, 1);
+        BagObject getMany = metrics.getSnapshot ().getBagObject ("operations").getBagObject ("get-many");
+        assertEquals (10_000_000.0, getMany.getDouble ("conversion-us"), 1e-9);
+        assertTrue (getMany.getBagObject ("driver-latency").getDouble ("max-us") >= 1000.0);
+    }
+}
@@ -6,65 +6,48 @@ import com.brettonw.bag.BagObjectFrom;
 import com.brettonw.bag.formats.MimeType;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import com.mongodb.MongoClient;
+import com.mongodb.MongoClientOptions;
+import com.mongodb.MongoClientURI;
+import com.mongodb.MongoExecutionTimeoutException;
+import org.bson.Document;
+import org.junit.Assume;
 import org.junit.Test;
 
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
 
 import static com.brettonw.db.BagMongo.*;
 import static org.junit.Assert.*;
 
-public class BagMongo_Test {
+public class BagMongo_Test extends BagDbInterface_Test {
     private static final Logger log = LogManager.getLogger (BagMongo_Test.class);
 
     private static final String TEST_COLLECTION_NAME = "Test";
-    private static final String TEST_NAME = "Test.Test";
-    private BagArray testBagArray;
-    private String queryJson;
-    private String queryManyJson;
 
     public BagMongo_Test () throws Exception {
-
-        testBagArray = new BagArray ()
-                .add (new BagObject ()
-                        .put ("id", 1)
-                        .put ("key", "value 1" )
-                        .put ("payload", "full" )
-                )
-                .add (new BagObject ()
-                        .put ("id", 2)
-                        .put ("key", "value 2" )
-                        .put ("payload", "medium" )
-                )
-                .add (new BagObject ()
-                        .put ("id", 3)
-                        .put ("key", "value 3" )
-                        .put ("payload", "medium" )
-                )
-                .add (new BagObject ()
-                        .put ("id", 4)
-                        .put ("key", "value 4" )
-                        .put ("payload", "empty" )
-                );
-
-        queryJson = new BagObject ().put ("id", 2).toString (MimeType.JSON);
-        queryManyJson = new BagObject ().put ("payload", "medium" ).toString (MimeType.JSON);
-
-        // ensure the primary test database is fresh
-        close (open ());
+        super ();
     }
 
-    private BagDbInterface open () {
+    @Override
+    protected BagDbInterface open () {
         BagMongo bagMongo = BagMongo.connectLocal (TEST_COLLECTION_NAME);
         assertNotEquals (null, bagMongo);
         return bagMongo;
     }
 
-    private void close (BagDbInterface bagDb) throws Exception {
-        bagDb.deleteAll ();
-        assertEquals (0, bagDb.getCount ());
-        bagDb.drop ();
-    }
-
     @Test
     public void testGetNames () throws Exception {
         BagMongo bagMongo = BagMongo.connectLocal (TEST_COLLECTION_NAME);
@@ -75,125 +58,511 @@ public class BagMongo_Test {
     }
 
     @Test
-    public void testGetWithNoMatches () throws Exception {
-        // ensure the primary test database is fresh
-        close (open ());
-        BagDbInterface bagDb = open ();
-        BagObject result = bagDb.get (queryJson);
-        assertEquals (result, null);
-        close (bagDb);
+    public void testGetByKeys () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME)
+                .put (KEY_BATCH_SIZE, 2);
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        bagMongo.putMany (testBagArray);
+
+        // the keys span several chunks, come back in the order asked, and a missing key
+        // gets an empty object in its place
+        BagArray bagArray = bagMongo.getByKeys ("id", new BagArray ().add (4).add (99).add (1).add (3).add (2));
+        assertEquals (5, bagArray.getCount ());
+        assertEquals (testBagArray.getBagObject (3), bagArray.getBagObject (0));
+        assertEquals (new BagObject (), bagArray.getBagObject (1));
+        assertEquals (testBagArray.getBagObject (0), bagArray.getBagObject (2));
+        assertEquals (testBagArray.getBagObject (2), bagArray.getBagObject (3));
+        assertEquals (testBagArray.getBagObject (1), bagArray.getBagObject (4));
+        assertEquals (0, bagMongo.getByKeys ("id", new BagArray ()).getCount ());
+
+        close (bagMongo);
     }
 
     @Test
-    public void testPutWithGet () throws Exception {
-        BagDbInterface bagDb = open ()
-                .put (testBagArray.getBagObject (0))
-                .put (testBagArray.getBagObject (1))
-                .put (testBagArray.getBagObject (2));
-        assertEquals (3, bagDb.getCount ());
-        assertEquals (TEST_NAME, bagDb.getName ());
+    public void testAggregate () throws Exception {
+        BagDbInterface bagDb = open ().putMany (testBagArray);
 
-        BagObject result = bagDb.get (queryJson);
-        assertEquals (testBagArray.getBagObject (1), result);
+        // count the objects for each payload on the server, biggest group first
+        BagArray pipeline = new BagArray ()
+                .add (BagObject.open ("$group", BagObject.open ("_id", "$payload").put ("count", BagObject.open ("$sum", 1))))
+                .add (BagObject.open ("$sort", BagObject.open ("count", -1)))
+                .add (BagObject.open ("$limit", 1));
+        BagArray bagArray = new BagArray ();
+        try (Stream<BagObject> stream = bagDb.aggregate (pipeline)) {
+            stream.forEachOrdered (bagArray::add);
+        }
+        assertEquals (1, bagArray.getCount ());
+        assertEquals (new BagObject ().put ("_id", "medium").put ("count", 2), bagArray.getBagObject (0));
 
         close (bagDb);
     }
 
     @Test
-    public void testPutArrayWithGet () throws Exception {
-        BagDbInterface bagDb = open ().putMany (testBagArray);
-        assertEquals (testBagArray.getCount (), bagDb.getCount ());
-        assertEquals (TEST_NAME, bagDb.getName ());
+    public void testParallelScan () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME)
+                .put (SCAN_PARALLELISM, 4);
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        BagArray bagArray = new BagArray ();
+        for (int i = 0; i < 500; ++i) {
+            bagArray.add (new BagObject ().put ("id", i));
+        }
+        bagMongo.putMany (bagArray);
 
-        BagObject result = bagDb.get (queryJson);
-        assertEquals (testBagArray.getBagObject (1), result);
+        // every object is read exactly once, whichever partition it falls in
+        assertEquals (500, bagMongo.getAll ().getCount ());
+        Set<String> ids = ConcurrentHashMap.newKeySet ();
+        assertEquals (500, bagMongo.scan (null, 4, bagObject -> assertTrue (ids.add (bagObject.getString ("id")))));
+        assertEquals (500, ids.size ());
+        assertEquals (10, bagMongo.scan ("{\"id\":{\"$in\":[\"1\",\"2\",\"3\",\"4\",\"5\",\"6\",\"7\",\"8\",\"9\",\"10\"]}}", 4, bagObject -> {}));
 
-        close (bagDb);
+        close (bagMongo);
     }
 
     @Test
-    public void testDelete () throws Exception {
-        BagDbInterface bagDb = open ().putMany (testBagArray);
-        assertEquals (testBagArray.getCount (), bagDb.getCount ());
-        assertEquals (TEST_NAME, bagDb.getName ());
+    public void testLazyDecoding () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME)
+                .put (LAZY_DECODING, true);
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertTrue (bagMongo.isLazyDecoding ());
+        bagMongo.putMany (testBagArray);
+
+        BagObject bagObject = bagMongo.get (queryJson);
+        assertTrue (bagObject instanceof LazyBagObject);
+        assertEquals ("value 2", bagObject.getString ("key"));
+        assertEquals (testBagArray.getBagObject (1).toString (MimeType.JSON), bagObject.toString (MimeType.JSON));
+        assertEquals (testBagArray.toString (MimeType.JSON), bagMongo.getAll ().toString (MimeType.JSON));
 
-        bagDb.delete (queryJson);
-        BagObject result = bagDb.get (queryJson);
-        assertEquals (null, result);
-        assertEquals (testBagArray.getCount () - 1, bagDb.getCount ());
+        close (bagMongo);
+    }
 
-        close (bagDb);
+    @Test
+    public void testLazyPassThrough () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME)
+                .put (LAZY_DECODING, true);
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        bagMongo.putMany (testBagArray);
+
+        // an object read and put back untouched is copied without decoding, and without
+        // the "_id" it was read with
+        LazyBagObject bagObject = (LazyBagObject) bagMongo.get (queryJson);
+        bagMongo.put (bagObject);
+        assertFalse (bagObject.isDecoded ());
+        assertNotNull (bagObject.getUndecoded ());
+        assertEquals (testBagArray.getCount () + 1, bagMongo.getCount ());
+        assertEquals (2, bagMongo.getMany (queryJson).getCount ());
+
+        close (bagMongo);
+    }
+
+    private static boolean isReplicaSet () {
+        MongoClient mongoClient = new MongoClient ();
+        try {
+            return mongoClient.getDatabase ("admin").runCommand (new Document ("isMaster", 1)).containsKey ("setName");
+        } finally {
+            mongoClient.close ();
+        }
     }
 
     @Test
-    public void testGetAll () throws Exception {
-        BagDbInterface bagDb = open ().putMany (testBagArray);
-        assertEquals (testBagArray.getCount (), bagDb.getCount ());
-        assertEquals (TEST_NAME, bagDb.getName ());
+    public void testWatch () throws Exception {
+        // change streams need a replica set, a plain local server can't run this
+        Assume.assumeTrue (isReplicaSet ());
+        BagMongo bagMongo = BagMongo.connectLocal (TEST_COLLECTION_NAME);
+        BlockingQueue<BagObject> changes = new LinkedBlockingQueue<> ();
+        ChangeSubscription changeSubscription = bagMongo.watch (queryManyJson, changes::add);
+
+        // only changes to matching objects come through, except for deletes
+        bagMongo.putMany (testBagArray);
+        BagObject change = changes.poll (10, TimeUnit.SECONDS);
+        assertEquals ("insert", change.getString (ChangeSubscription.OPERATION));
+        assertEquals (testBagArray.getBagObject (1), change.getBagObject (ChangeSubscription.OBJECT));
+        assertEquals (testBagArray.getBagObject (2), changes.poll (10, TimeUnit.SECONDS).getBagObject (ChangeSubscription.OBJECT));
+
+        bagMongo.update (queryJson, new BagObject ().put ("key", "changed"));
+        change = changes.poll (10, TimeUnit.SECONDS);
+        assertEquals ("update", change.getString (ChangeSubscription.OPERATION));
+        assertEquals ("changed", change.getBagObject (ChangeSubscription.UPDATED).getString ("key"));
+        assertFalse (change.getBagObject (ChangeSubscription.OBJECT).has ("_id"));
+
+        bagMongo.delete (queryJson);
+        change = changes.poll (10, TimeUnit.SECONDS);
+        assertEquals ("delete", change.getString (ChangeSubscription.OPERATION));
+        assertNotNull (change.getString (ChangeSubscription.KEY));
+        assertNull (changes.poll (100, TimeUnit.MILLISECONDS));
+
+        // a new subscription resumes after the last change the old one delivered
+        String resumeToken = changeSubscription.getResumeToken ();
+        changeSubscription.close ();
+        assertFalse (changeSubscription.isRunning ());
+        bagMongo.delete ("{\"id\": 3}");
+        try (ChangeSubscription resumed = bagMongo.watch (null, changes::add, resumeToken)) {
+            assertEquals ("delete", changes.poll (10, TimeUnit.SECONDS).getString (ChangeSubscription.OPERATION));
+        }
 
-        BagArray bagArray = bagDb.getAll ();
-        assertNotEquals (null, bagArray);
-        assertEquals (testBagArray.getCount (), bagArray.getCount ());
-        assertEquals (testBagArray, bagArray);
+        close (bagMongo);
+    }
 
-        close (bagDb);
+    @Test
+    public void testExportImport () throws Exception {
+        BagMongo bagMongo = BagMongo.connectLocal (TEST_COLLECTION_NAME);
+        bagMongo.putMany (testBagArray);
+
+        // each format goes out and comes back with the same objects
+        for (String suffix : new String[] { ".ndjson", ".bson" }) {
+            Path path = Files.createTempFile ("BagMongo_Test", suffix);
+            try {
+                assertEquals (testBagArray.getCount (), bagMongo.exportTo (path));
+                bagMongo.deleteAll ();
+                PutManyResult putManyResult = bagMongo.importFrom (path);
+                assertEquals (testBagArray.getCount (), putManyResult.getInsertedCount ());
+                assertFalse (putManyResult.hasFailures ());
+                assertEquals (testBagArray.getCount (), bagMongo.getCount ());
+                assertEquals (testBagArray.getBagObject (1), bagMongo.get (queryJson));
+            } finally {
+                Files.delete (path);
+            }
+        }
+
+        // a line that isn't JSON fails on its own
+        Path path = Files.createTempFile ("BagMongo_Test", ".ndjson");
+        try {
+            Files.write (path, Arrays.asList ("{\"id\":\"10\"}", "bongo", "{\"id\":\"11\"}"), StandardCharsets.UTF_8);
+            PutManyResult putManyResult = bagMongo.importFrom (path);
+            assertEquals (2, putManyResult.getInsertedCount ());
+            assertEquals (1, putManyResult.getFailedCount ());
+            assertEquals (1, (int) putManyResult.getErrors ().getBagObject (0).getInteger (PutManyResult.INDEX));
+        } finally {
+            Files.delete (path);
+        }
+
+        close (bagMongo);
     }
 
     @Test
-    public void testGetMany () throws Exception {
-        BagDbInterface bagDb = open ().putMany (testBagArray);
-        assertEquals (testBagArray.getCount (), bagDb.getCount ());
-        assertEquals (TEST_NAME, bagDb.getName ());
+    public void testPutManyWithResult () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME)
+                .put (WRITE_BATCH_SIZE, 3)
+                .put (ORDERED_WRITES, false)
+                .put (WRITE_CONCERN, "acknowledged");
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertEquals (3, bagMongo.getWriteBatchSize ());
+        assertFalse (bagMongo.isOrderedWrites ());
+
+        // two documents with the same "_id" means one fails, but an unordered write
+        // should insert everything else
+        BagArray bagArray = new BagArray ()
+                .add (BagObject.open ("_id", "duplicate").put ("id", 10))
+                .add (BagObject.open ("_id", "duplicate").put ("id", 11));
+        for (int i = 0; i < testBagArray.getCount (); ++i) {
+            bagArray.add (testBagArray.getBagObject (i));
+        }
+        PutManyResult putManyResult = bagMongo.putManyWithResult (bagArray);
+        assertEquals (bagArray.getCount () - 1, putManyResult.getInsertedCount ());
+        assertEquals (1, putManyResult.getFailedCount ());
+        assertEquals (1, putManyResult.getErrors ().getCount ());
+        assertEquals (1, (int) putManyResult.getErrors ().getBagObject (0).getInteger (PutManyResult.INDEX));
+        assertEquals (bagArray.getCount () - 1, bagMongo.getCount ());
+
+        close (bagMongo);
+    }
 
-        BagArray bagArray = bagDb.getMany (queryManyJson);
-        assertNotEquals (null, bagArray);
-        assertEquals (2, bagArray.getCount ());
-        assertEquals (testBagArray.getBagObject (1), bagArray.getBagObject (0));
-        assertEquals (testBagArray.getBagObject (2), bagArray.getBagObject (1));
+    @Test
+    public void testWriteBehind () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME)
+                .put (WRITE_BATCH_SIZE, 2)
+                .put (WRITE_BEHIND_QUEUE_SIZE, 10)
+                .put (WRITE_BEHIND_DELAY, 60000);
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertTrue (bagMongo.isWriteBehind ());
+
+        // a duplicate "_id" fails only its own write, and the future reports it
+        CompletableFuture<Void> first = bagMongo.putBehind (BagObject.open ("_id", "duplicate").put ("id", 10));
+        CompletableFuture<Void> second = bagMongo.putBehind (BagObject.open ("_id", "duplicate").put ("id", 11));
+        first.get ();
+        try {
+            second.get ();
+            fail ("Expected the duplicate write to fail");
+        } catch (ExecutionException exception) {
+            log.info ("Duplicate write failed: " + exception.getCause ().getMessage ());
+        }
 
-        close (bagDb);
+        // a partial batch waits for the delay, or a flush
+        bagMongo.put (testBagArray.getBagObject (0));
+        assertEquals (1, bagMongo.getCount ());
+        bagMongo.flush ();
+        assertEquals (2, bagMongo.getCount ());
+
+        // closing drains anything still queued
+        for (int i = 1; i < testBagArray.getCount (); ++i) {
+            bagMongo.put (testBagArray.getBagObject (i));
+        }
+        bagMongo.close ();
+        BagMongo reopened = BagMongo.connectLocal (TEST_COLLECTION_NAME);
+        assertEquals (testBagArray.getCount () + 1, reopened.getCount ());
+        close (reopened);
     }
 
     @Test
-    public void testDeleteMany () throws Exception {
-        BagDbInterface bagDb = open ().putMany (testBagArray);
-        assertEquals (testBagArray.getCount (), bagDb.getCount ());
-        assertEquals (TEST_NAME, bagDb.getName ());
+    public void testCountModes () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME);
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertEquals (CountMode.ESTIMATED, bagMongo.getCountMode ());
+        bagMongo.putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagMongo.getCount ());
+        close (bagMongo);
 
-        bagDb.deleteMany (queryManyJson);
-        assertEquals (2, bagDb.getCount ());
+        // the exact count asks the server to count
+        configuration.put (COUNT_MODE, "exact");
+        bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertEquals (CountMode.EXACT, bagMongo.getCountMode ());
+        bagMongo.putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagMongo.getCount ());
+        close (bagMongo);
 
-        BagArray bagArray = bagDb.getMany (queryManyJson);
-        assertNotEquals (null, bagArray);
-        assertEquals (0, bagArray.getCount ());
+        // the cached count follows the writes made here without asking the server again
+        configuration.put (COUNT_MODE, "cached").put (COUNT_REFRESH_INTERVAL, 60000);
+        bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertEquals (CountMode.CACHED, bagMongo.getCountMode ());
+        assertEquals (0, bagMongo.getCount ());
+        bagMongo.putMany (testBagArray);
+        assertEquals (testBagArray.getCount (), bagMongo.getCount ());
+        bagMongo.put (BagObject.open ("id", 10));
+        assertEquals (testBagArray.getCount () + 1, bagMongo.getCount ());
+        bagMongo.delete ("{ \"id\": 10 }");
+        bagMongo.deleteMany ("{\"key\": {\"$gt\": \"value 2\"}}");
+        assertEquals (testBagArray.getCount () - 2, bagMongo.getCount ());
+        assertEquals (testBagArray.getCount () - 2, bagMongo.getCount (null));
+        close (bagMongo);
+    }
 
-        close (bagDb);
+    @Test
+    public void testIndexesAndExplain () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME)
+                .put (EXPLAIN_SAMPLE_RATE, 1.0)
+                .put (INDEXES, BagObject.open (TEST_COLLECTION_NAME, new BagArray ()
+                        .add (BagObject.open (INDEX_KEYS, BagArray.open ("id")).put (INDEX_UNIQUE, true).put (INDEX_NAME, "id"))
+                        .add (BagObject.open (INDEX_KEYS, new BagArray ().add ("payload").add ("-key")))
+                ));
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        bagMongo.putMany (testBagArray);
+
+        // the "_id" index, plus the two declared ones
+        assertEquals (3, bagMongo.getIndexes ().getCount ());
+
+        // connecting again doesn't add anything
+        bagMongo.close ();
+        bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertEquals (3, bagMongo.getIndexes ().getCount ());
+
+        // the unique index rejects a duplicate id
+        PutManyResult putManyResult = bagMongo.putManyWithResult (BagArray.open (testBagArray.getBagObject (0)));
+        assertEquals (1, putManyResult.getFailedCount ());
+
+        // an indexed query isn't a collection scan, but an unindexed one is
+        bagMongo.get (queryJson);
+        assertEquals (1, bagMongo.getExplainCount ());
+        assertEquals (0, bagMongo.getCollectionScanCount ());
+        bagMongo.get ("{\"key\":\"value 1\"}");
+        assertEquals (2, bagMongo.getExplainCount ());
+        assertEquals (1, bagMongo.getCollectionScanCount ());
+
+        close (bagMongo);
     }
 
     @Test
-    public void testGetWithMultipleMatchFields () throws Exception {
-        BagDbInterface bagDb = open ().putMany (testBagArray);
-        assertEquals (testBagArray.getCount (), bagDb.getCount ());
-        assertEquals (TEST_NAME, bagDb.getName ());
+    public void testMetrics () throws Exception {
+        BagMongo bagMongo = BagMongo.connectLocal (TEST_COLLECTION_NAME);
+        bagMongo.putMany (testBagArray);
+        bagMongo.get (queryJson);
+        bagMongo.getMany (queryManyJson);
+        bagMongo.delete (queryJson);
+
+        BagMongoMetrics metrics = bagMongo.getMetrics ();
+        assertEquals (1, metrics.getCallCount (BagMongoMetrics.Operation.PUT_MANY));
+        assertEquals (testBagArray.getCount (), metrics.getDocumentCount (BagMongoMetrics.Operation.PUT_MANY));
+        assertTrue (metrics.getByteCount (BagMongoMetrics.Operation.PUT_MANY) > 0);
+        assertEquals (1, metrics.getDocumentCount (BagMongoMetrics.Operation.GET));
+        assertEquals (2, metrics.getDocumentCount (BagMongoMetrics.Operation.GET_MANY));
+        assertEquals (1, metrics.getDocumentCount (BagMongoMetrics.Operation.DELETE));
+        assertEquals (0, metrics.getCallCount (BagMongoMetrics.Operation.GET_ALL));
+
+        BagObject snapshot = metrics.getSnapshot ();
+        log.info (snapshot.toString (MimeType.JSON));
+        assertEquals (TEST_NAME, snapshot.getString ("name"));
+        assertEquals (1, (int) snapshot.getBagObject ("operations").getBagObject ("get").getBagObject ("latency").getInteger ("count"));
+        assertTrue (snapshot.getBagObject ("decode").getInteger ("bytes") > 0);
 
-        BagObject result = bagDb.get (new BagObject ().put ("id", 3).put ("payload", "medium").toString (MimeType.JSON));
-        assertEquals (testBagArray.getBagObject (2), result);
+        close (bagMongo);
+    }
 
-        close (bagDb);
+    @Test
+    public void testDeadlinesAndRetries () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME)
+                .put (OPERATION_TIMEOUT, 5000)
+                .put (RETRY_COUNT, 2)
+                .put (RETRY_DELAY, 10)
+                .put (CIRCUIT_BREAKER_THRESHOLD, 3)
+                .put (CIRCUIT_BREAKER_OPEN_TIME, 1000);
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertEquals (5000, bagMongo.getOperationTimeoutMillis ());
+        assertEquals (2, bagMongo.getRetryCount ());
+        assertEquals (3, bagMongo.getCircuitBreaker ().getThreshold ());
+        assertEquals (1000, bagMongo.getCircuitBreaker ().getOpenMillis ());
+
+        // a healthy server doesn't need any of it
+        bagMongo.putMany (testBagArray);
+        assertEquals (testBagArray.getBagObject (1), bagMongo.get (queryJson));
+        assertEquals (2, bagMongo.getMany (queryManyJson).getCount ());
+        assertEquals (testBagArray.getCount (), bagMongo.getCount (null));
+        BagMongoMetrics metrics = bagMongo.getMetrics ();
+        assertEquals (0, metrics.getRetryCount ());
+        assertEquals (0, metrics.getTimeoutCount ());
+        assertEquals (CircuitBreaker.State.CLOSED, metrics.getCircuitBreakerState ());
+
+        // a query that can't finish inside its time is a timeout, and isn't retried
+        configuration.put (OPERATION_TIMEOUT, 1);
+        BagMongo impatient = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        try {
+            impatient.get ("{\"$where\": \"sleep (100) || true\"}");
+            fail ("Expected the query to time out");
+        } catch (MongoExecutionTimeoutException exception) {
+            log.info ("Query timed out: " + exception.getMessage ());
+        }
+        assertEquals (1, impatient.getMetrics ().getTimeoutCount ());
+        assertEquals (0, impatient.getMetrics ().getRetryCount ());
+        impatient.close ();
+
+        close (bagMongo);
     }
 
     @Test
-    public void testGetManyWithNull () throws Exception {
-        BagDbInterface bagDb = open ().putMany (testBagArray);
-        assertEquals (testBagArray.getCount (), bagDb.getCount ());
-        assertEquals (TEST_NAME, bagDb.getName ());
+    public void testLargeValues () throws Exception {
+        BagObject configuration = BagObject
+                .open (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAME, TEST_COLLECTION_NAME)
+                .put (LARGE_VALUE_SIZE, 100);
+        BagMongo bagMongo = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertEquals (100, bagMongo.getLargeValueSize ());
+        BagMongo files = BagMongo.connectLocal (TEST_COLLECTION_NAME, TEST_COLLECTION_NAME + ".large.files").get (TEST_COLLECTION_NAME + ".large.files");
+
+        StringBuilder stringBuilder = new StringBuilder ();
+        for (int i = 0; i < 1000; ++i) {
+            stringBuilder.append ((char) ('a' + (i % 26)));
+        }
+        String large = stringBuilder.toString ();
+        BagObject bagObject = BagObject.open ("id", 1).put ("large", large).put ("nested", BagObject.open ("large", large).put ("small", "small"));
+        bagMongo.put (bagObject);
+        bagMongo.putMany (testBagArray);
+        assertEquals (2, files.getCount ());
+
+        // reads put the values back, whether the objects are decoded eagerly or lazily
+        assertEquals (bagObject, bagMongo.get ("{\"id\": 1}"));
+        assertEquals (testBagArray.getBagObject (1), bagMongo.get (queryJson));
+        configuration.put (LAZY_DECODING, true);
+        BagMongo lazy = BagMongo.connect (configuration).get (TEST_COLLECTION_NAME);
+        assertEquals (large, lazy.get ("{\"id\": 1}").getString ("nested/large"));
+        lazy.close ();
+
+        // the value can be streamed instead
+        try (InputStream inputStream = bagMongo.openLargeValue ("{\"id\": 1}", "large")) {
+            byte[] bytes = new byte[large.length () + 1];
+            int length = 0, count;
+            while ((count = inputStream.read (bytes, length, bytes.length - length)) > 0) {
+                length += count;
+            }
+            assertEquals (large, new String (bytes, 0, length, StandardCharsets.UTF_8));
+        }
+        assertEquals (null, bagMongo.openLargeValue ("{\"id\": 2}", "large"));
+
+        // aggregation results read the values back too, and are counted in the metrics
+        try (Stream<BagObject> stream = bagMongo.aggregate (BagArray.open (BagObject.open ("$match", BagObject.open ("id", 1))))) {
+            BagObject aggregated = stream.findFirst ().orElse (null);
+            assertEquals (large, aggregated.getString ("large"));
+            assertEquals (large, aggregated.getString ("nested/large"));
+            assertTrue (aggregated.has ("_id"));
+        }
+        assertEquals (1, bagMongo.getMetrics ().getCallCount (BagMongoMetrics.Operation.AGGREGATE));
+
+        // a BSON file holds the values inline, and importing it stores them again
+        Path path = Files.createTempFile ("BagMongo_Test", ".bson");
+        try {
+            bagMongo.exportTo (path);
+            assertTrue (new String (Files.readAllBytes (path), StandardCharsets.UTF_8).contains (large));
+            bagMongo.deleteAll ();
+            assertEquals (0, files.getCount ());
+            assertFalse (bagMongo.importFrom (path).hasFailures ());
+            assertEquals (2, files.getCount ());
+            assertEquals (bagObject, bagMongo.get ("{\"id\": 1}"));
+        } finally {
+            Files.delete (path);
+        }
 
-        BagArray bagArray = bagDb.getMany (null);
-        assertNotEquals (null, bagArray);
-        assertEquals (testBagArray.getCount (), bagArray.getCount ());
-        assertEquals (testBagArray, bagArray);
+        // deleting the object deletes its values
+        bagMongo.delete ("{\"id\": 1}");
+        assertEquals (0, files.getCount ());
+        assertEquals (0, bagMongo.deleteUnreferencedLargeValues ());
+
+        // long values in updates are stored too, whether they are plain fields or set
+        bagMongo.update (queryJson, BagObject.open ("large", large));
+        assertEquals (1, files.getCount ());
+        bagMongo.updateMany (queryJson, BagObject.open ("$set", BagObject.open ("other", large)).put ("$inc", BagObject.open ("id", 0)));
+        assertEquals (2, files.getCount ());
+        BagObject updated = bagMongo.get (queryJson);
+        assertEquals (large, updated.getString ("large"));
+        assertEquals (large, updated.getString ("other"));
+        bagMongo.delete (queryJson);
+        assertEquals (0, files.getCount ());
+        files.close ();
 
-        close (bagDb);
+        close (bagMongo);
+    }
+
+    @Test
+    public void testCloseReleasesClient () throws Exception {
+        // a connection string nobody else uses, so this test owns the client
+        String connectionString = "mongodb://localhost:27017/?appName=testCloseReleasesClient";
+        MongoClientURI clientUri = new MongoClientURI (connectionString, MongoClientOptions.builder ());
+        BagObject configuration = BagObject
+                .open (CONNECTION_STRING, connectionString)
+                .put (DATABASE_NAME, TEST_COLLECTION_NAME)
+                .put (COLLECTION_NAMES, new BagArray ().add ("a").add ("b"))
+                .put (MIN_POOL_SIZE, 1)
+                .put (MAX_POOL_SIZE, 10)
+                .put (MAX_IDLE_TIME, 60000)
+                .put (SOCKET_TIMEOUT, 10000);
+        Map<String, BagMongo> collections = BagMongo.connect (configuration);
+        assertNotEquals (null, collections);
+        assertTrue (BagMongo.isClientOpen (clientUri));
+
+        // the client stays open until the last collection using it is closed, and closing
+        // twice is harmless
+        BagMongo a = collections.get ("a");
+        a.close ();
+        a.close ();
+        assertTrue (BagMongo.isClientOpen (clientUri));
+        BagMongo b = collections.get ("b");
+        b.put (BagObject.open ("xxx", "yyy"));
+        assertEquals (1, b.getCount ());
+        b.drop ();
+        assertFalse (BagMongo.isClientOpen (clientUri));
     }
 
     @Test
@@ -0,0 +1,96 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import com.brettonw.bag.formats.MimeType;
+import org.junit.Test;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CachingBagDb_Test {
+    private static final String TEST_COLLECTION_NAME = "CachingTest";
+
+    private BagArray testBagArray;
+    private String queryJson;
+
+    public CachingBagDb_Test () {
+        testBagArray = new BagArray ()
+                .add (new BagObject ().put ("id", 1).put ("key", "value 1"))
+                .add (new BagObject ().put ("id", 2).put ("key", "value 2"))
+                .add (new BagObject ().put ("id", 3).put ("key", "value 3"));
+        queryJson = new BagObject ().put ("id", 2).toString (MimeType.JSON);
+    }
+
+    private CachingBagDb open (int maximumSize, long timeToLive, TimeUnit timeUnit) {
+        BagMongo bagMongo = BagMongo.connectLocal (TEST_COLLECTION_NAME);
+        assertNotEquals (null, bagMongo);
+        bagMongo.deleteAll ();
+        return new CachingBagDb (bagMongo, maximumSize, timeToLive, timeUnit);
+    }
+
+    @Test
+    public void testGetIsCached () throws Exception {
+        CachingBagDb cachingBagDb = open (10, 1, TimeUnit.MINUTES);
+        cachingBagDb.putMany (testBagArray);
+
+        BagObject first = cachingBagDb.get (queryJson);
+        assertEquals (testBagArray.getBagObject (1), first);
+        assertSame (first, cachingBagDb.get (queryJson));
+        assertEquals (1, cachingBagDb.getHitCount ());
+        assertEquals (1, cachingBagDb.getMissCount ());
+
+        // misses are cached too
+        assertNull (cachingBagDb.get ("{\"id\":\"99\"}"));
+        assertNull (cachingBagDb.get ("{\"id\":\"99\"}"));
+        assertEquals (2, cachingBagDb.getHitCount ());
+
+        cachingBagDb.drop ();
+    }
+
+    @Test
+    public void testWritesInvalidate () throws Exception {
+        CachingBagDb cachingBagDb = open (10, 1, TimeUnit.MINUTES);
+        cachingBagDb.putMany (testBagArray);
+
+        assertEquals (3, cachingBagDb.getAll ().getCount ());
+        cachingBagDb.delete (queryJson);
+        assertEquals (0, cachingBagDb.getSize ());
+        assertNull (cachingBagDb.get (queryJson));
+        assertEquals (2, cachingBagDb.getAll ().getCount ());
+
+        cachingBagDb.put (testBagArray.getBagObject (1));
+        assertEquals (testBagArray.getBagObject (1), cachingBagDb.get (queryJson));
+        assertEquals (0, cachingBagDb.getHitCount ());
+
+        cachingBagDb.drop ();
+    }
+
+    @Test
+    public void testEviction () throws Exception {
+        CachingBagDb cachingBagDb = open (2, 1, TimeUnit.MINUTES);
+        cachingBagDb.putMany (testBagArray);
+
+        for (int i = 1; i <= 3; ++i) {
+            cachingBagDb.get (new BagObject ().put ("id", i).toString (MimeType.JSON));
+        }
+        assertEquals (2, cachingBagDb.getSize ());
+        assertEquals (1, cachingBagDb.getEvictionCount ());
+
+        cachingBagDb.drop ();
+    }
+
+    @Test
+    public void testExpiry () throws Exception {
+        CachingBagDb cachingBagDb = open (10, 0, TimeUnit.MILLISECONDS);
+        cachingBagDb.putMany (testBagArray);
+
+        cachingBagDb.get (queryJson);
+        cachingBagDb.get (queryJson);
+        assertEquals (0, cachingBagDb.getHitCount ());
+        assertEquals (1, cachingBagDb.getEvictionCount ());
+
+        cachingBagDb.drop ();
+    }
+}
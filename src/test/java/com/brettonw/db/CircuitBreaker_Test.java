@@ -0,0 +1,60 @@
+package com.brettonw.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CircuitBreaker_Test {
+    @Test
+    public void testTripAndRecover () throws Exception {
+        BagMongoMetrics metrics = new BagMongoMetrics ("Test.Test");
+        CircuitBreaker circuitBreaker = new CircuitBreaker ("Test.Test", 3, 50, metrics);
+
+        // a success in between starts the run of failures over
+        circuitBreaker.recordFailure ();
+        circuitBreaker.recordFailure ();
+        circuitBreaker.recordSuccess ();
+        circuitBreaker.recordFailure ();
+        circuitBreaker.recordFailure ();
+        assertEquals (CircuitBreaker.State.CLOSED, circuitBreaker.getState ());
+        assertTrue (circuitBreaker.allow ());
+
+        circuitBreaker.recordFailure ();
+        assertEquals (CircuitBreaker.State.OPEN, circuitBreaker.getState ());
+        assertEquals (CircuitBreaker.State.OPEN, metrics.getCircuitBreakerState ());
+        assertEquals (1, metrics.getCircuitBreakerOpenCount ());
+        assertFalse (circuitBreaker.allow ());
+
+        // after the open time only one trial goes through. a trial that tells us nothing
+        // about the server passes the trial on, and a failure opens it again
+        Thread.sleep (60);
+        assertTrue (circuitBreaker.allow ());
+        circuitBreaker.recordInconclusive ();
+        assertEquals (1, metrics.getCircuitBreakerOpenCount ());
+        assertTrue (circuitBreaker.allow ());
+        assertEquals (CircuitBreaker.State.HALF_OPEN, circuitBreaker.getState ());
+        assertFalse (circuitBreaker.allow ());
+        circuitBreaker.recordFailure ();
+        assertEquals (CircuitBreaker.State.OPEN, circuitBreaker.getState ());
+        assertEquals (2, metrics.getCircuitBreakerOpenCount ());
+        assertFalse (circuitBreaker.allow ());
+
+        // and a trial the server answers closes it
+        Thread.sleep (60);
+        assertTrue (circuitBreaker.allow ());
+        circuitBreaker.recordSuccess ();
+        assertEquals (CircuitBreaker.State.CLOSED, circuitBreaker.getState ());
+        assertEquals ("closed", metrics.getSnapshot ().getBagObject ("circuit-breaker").getString ("state"));
+        assertTrue (circuitBreaker.allow ());
+    }
+
+    @Test
+    public void testDisabled () {
+        CircuitBreaker circuitBreaker = new CircuitBreaker ("Test.Test", 0, 50, new BagMongoMetrics ("Test.Test"));
+        for (int i = 0; i < 100; ++i) {
+            circuitBreaker.recordFailure ();
+        }
+        assertEquals (CircuitBreaker.State.CLOSED, circuitBreaker.getState ());
+        assertTrue (circuitBreaker.allow ());
+    }
+}
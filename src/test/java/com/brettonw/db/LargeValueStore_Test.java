@@ -0,0 +1,34 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagObject;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.types.ObjectId;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LargeValueStore_Test {
+    @Test
+    public void testIsReference () {
+        String id = new ObjectId ().toHexString ();
+        assertTrue (LargeValueStore.isReference (BagObject.open (LargeValueStore.REFERENCE, id).put (LargeValueStore.LENGTH, "1000")));
+
+        // user objects that only look a bit like a reference are left alone
+        assertFalse (LargeValueStore.isReference (BagObject.open (LargeValueStore.REFERENCE, id)));
+        assertFalse (LargeValueStore.isReference (BagObject.open (LargeValueStore.REFERENCE, "bongo").put (LargeValueStore.LENGTH, "1000")));
+        assertFalse (LargeValueStore.isReference (BagObject.open (LargeValueStore.REFERENCE, id).put (LargeValueStore.LENGTH, "-1")));
+        assertFalse (LargeValueStore.isReference (BagObject.open (LargeValueStore.REFERENCE, id).put ("other", "1000")));
+        assertFalse (LargeValueStore.isReference (BagObject.open (LargeValueStore.REFERENCE, id).put (LargeValueStore.LENGTH, "1000").put ("other", "x")));
+    }
+
+    @Test
+    public void testGetReference () {
+        ObjectId id = new ObjectId ();
+        BsonDocument reference = new BsonDocument (LargeValueStore.REFERENCE, new BsonString (id.toHexString ()))
+                .append (LargeValueStore.LENGTH, new BsonString ("1000"));
+        assertEquals (id, LargeValueStore.getReference (reference));
+        assertEquals (1, LargeValueStore.getReferences (new BsonDocument ("a", new BsonDocument ("b", reference))).size ());
+        assertNull (LargeValueStore.getReference (BsonDocument.parse ("{\"" + LargeValueStore.REFERENCE + "\": \"" + id.toHexString () + "\"}")));
+    }
+}
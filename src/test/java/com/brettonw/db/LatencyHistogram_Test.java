@@ -0,0 +1,40 @@
+package com.brettonw.db;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogram_Test {
+    @Test
+    public void testBuckets () {
+        // every value falls between the bounds of its bucket
+        long[] values = { 0, 1, 7, 8, 9, 15, 16, 17, 1000, 123456789, Long.MAX_VALUE };
+        for (long value : values) {
+            int bucket = LatencyHistogram.getBucket (value);
+            assertTrue (LatencyHistogram.getBucketLowerBound (bucket) <= value);
+            assertTrue (LatencyHistogram.getBucketUpperBound (bucket) >= value);
+        }
+
+        // and the buckets are contiguous
+        for (int bucket = 1; bucket < LatencyHistogram.getBucket (Long.MAX_VALUE); ++bucket) {
+            assertEquals (LatencyHistogram.getBucketUpperBound (bucket - 1) + 1, LatencyHistogram.getBucketLowerBound (bucket));
+        }
+    }
+
+    @Test
+    public void testPercentiles () {
+        LatencyHistogram latencyHistogram = new LatencyHistogram ();
+        assertEquals (0, latencyHistogram.getPercentile (0.5));
+        for (long i = 1; i <= 1000; ++i) {
+            latencyHistogram.record (i * 1000);
+        }
+        assertEquals (1000, latencyHistogram.getCount ());
+
+        // percentiles are reported as the top of their bucket, which is within 12.5%
+        long p50 = latencyHistogram.getPercentile (0.5);
+        assertTrue ((p50 >= 500_000) && (p50 <= 500_000 * 1.125));
+        long p99 = latencyHistogram.getPercentile (0.99);
+        assertTrue ((p99 >= 990_000) && (p99 <= 1_000_000));
+        assertEquals (1_000_000, latencyHistogram.getPercentile (1.0));
+    }
+}
@@ -0,0 +1,104 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentWriter;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.*;
+
+public class LazyBagObject_Test {
+    private static final String TEST_JSON = "{\"_id\": \"abc\", \"id\": 2, \"key\": \"value 2\", \"nested\": {\"a\": [1, 2, 3]}}";
+
+    private static LazyBagObject open (String json) {
+        return new LazyBagObject (new RawBsonDocument (BsonDocument.parse (json), new BsonDocumentCodec ()));
+    }
+
+    @Test
+    public void testDecodeOnAccess () {
+        // fields are decoded one at a time, and "_id" is masked
+        LazyBagObject bagObject = open (TEST_JSON);
+        assertEquals ("value 2", bagObject.getString ("key"));
+        assertEquals (2, (int) bagObject.getInteger ("id"));
+        assertNull (bagObject.getObject ("_id"));
+        assertFalse (bagObject.has ("missing"));
+        assertEquals (new BagArray ().add (1).add (2).add (3), bagObject.getBagObject ("nested").getBagArray ("a"));
+        assertFalse (bagObject.isDecoded ());
+
+        // asking for the keys decodes the rest
+        assertEquals (3, bagObject.keys ().length);
+        assertTrue (bagObject.isDecoded ());
+        assertEquals (new BagObject ().put ("id", 2).put ("key", "value 2").put ("nested", BagObject.open ("a", new BagArray ().add (1).add (2).add (3))), bagObject);
+    }
+
+    @Test
+    public void testSharedReads () throws Exception {
+        // threads reading different fields of one object all see their values
+        StringBuilder json = new StringBuilder ("{");
+        for (int i = 0; i < 100; ++i) {
+            json.append ((i > 0) ? ", " : "").append ("\"f").append (i).append ("\": ").append (i);
+        }
+        json.append ("}");
+        for (int attempt = 0; attempt < 20; ++attempt) {
+            LazyBagObject bagObject = open (json.toString ());
+            List<CompletableFuture<Boolean>> readers = new ArrayList<> ();
+            for (int thread = 0; thread < 4; ++thread) {
+                final int offset = thread;
+                readers.add (CompletableFuture.supplyAsync (() -> {
+                    boolean matched = true;
+                    for (int i = 0; i < 100; ++i) {
+                        int field = (i + (offset * 25)) % 100;
+                        matched = matched && (bagObject.getInteger ("f" + field) == field);
+                    }
+                    return matched && (bagObject.getCount () == 100);
+                }));
+            }
+            for (CompletableFuture<Boolean> reader : readers) {
+                assertTrue (reader.get ());
+            }
+        }
+    }
+
+    @Test
+    public void testChangesAreKept () {
+        LazyBagObject bagObject = open (TEST_JSON);
+        bagObject.getBagObject ("nested").put ("b", "changed");
+        bagObject.put ("key", "value 3");
+        assertEquals ("changed", bagObject.getBagObject ("nested").getString ("b"));
+        assertEquals ("value 3", bagObject.getString ("key"));
+        assertEquals (3, bagObject.getCount ());
+    }
+
+    @Test
+    public void testPassThrough () {
+        // an object that was never decoded is written as it was read
+        LazyBagObject bagObject = open ("{\"id\": 2, \"count\": 5}");
+        BsonDocumentWriter writer = new BsonDocumentWriter (new BsonDocument ());
+        BagObjectCodec.writeBagObject (writer, bagObject);
+        assertEquals (BsonDocument.parse ("{\"id\": 2, \"count\": 5}"), writer.getDocument ());
+        assertFalse (bagObject.isDecoded ());
+
+        // "_id" is left out without decoding the other fields, wherever it is
+        for (String json : new String[] { "{\"_id\": \"abc\", \"id\": 2, \"count\": 5}", "{\"id\": 2, \"_id\": {\"a\": 1}, \"count\": 5}", "{\"id\": 2, \"count\": 5, \"_id\": 7}" }) {
+            LazyBagObject withId = open (json);
+            writer = new BsonDocumentWriter (new BsonDocument ());
+            BagObjectCodec.writeBagObject (writer, withId);
+            assertEquals (BsonDocument.parse ("{\"id\": 2, \"count\": 5}"), writer.getDocument ());
+            assertFalse (withId.isDecoded ());
+            assertNotNull (withId.getUndecoded ());
+        }
+
+        // once a field is decoded, it is written the way bags store it
+        bagObject.getString ("id");
+        writer = new BsonDocumentWriter (new BsonDocument ());
+        BagObjectCodec.writeBagObject (writer, bagObject);
+        assertEquals (BsonDocument.parse ("{\"count\": \"5\", \"id\": \"2\"}"), writer.getDocument ());
+    }
+}
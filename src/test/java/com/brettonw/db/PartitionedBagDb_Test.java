@@ -0,0 +1,95 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import static com.brettonw.db.BagMongo.*;
+import static org.junit.Assert.*;
+
+public class PartitionedBagDb_Test {
+    private static final String TEST_DATABASE_NAME = "Test";
+    private static final String[] TEST_PARTITION_NAMES = { "Partition0", "Partition1", "Partition2" };
+
+    private BagArray testBagArray;
+
+    public PartitionedBagDb_Test () {
+        testBagArray = new BagArray ();
+        for (int i = 0; i < 30; ++i) {
+            testBagArray.add (new BagObject ().put ("id", i).put ("group", i % 3));
+        }
+    }
+
+    private PartitionedBagDb open () {
+        Map<String, BagMongo> collections = BagMongo.connectLocal (TEST_DATABASE_NAME, TEST_PARTITION_NAMES);
+        List<BagMongo> partitions = new ArrayList<> ();
+        for (String partitionName : TEST_PARTITION_NAMES) {
+            partitions.add (collections.get (partitionName));
+        }
+        return new PartitionedBagDb ("id", partitions);
+    }
+
+    @Test
+    public void testPartitioning () throws Exception {
+        PartitionedBagDb bagDb = open ();
+        bagDb.putMany (testBagArray);
+        assertEquals (3, bagDb.getPartitionCount ());
+        assertEquals (30, bagDb.getCount ());
+
+        // routed reads find the object, and fanned out reads merge every partition
+        assertEquals (testBagArray.getBagObject (7), bagDb.get ("{\"id\":7}"));
+        assertEquals (10, bagDb.getMany ("{\"group\":1}").getCount ());
+        assertEquals (30, bagDb.getAll ().getCount ());
+        BagArray bagArray = bagDb.getByKeys ("id", new BagArray ().add (5).add (50).add (9));
+        assertEquals (testBagArray.getBagObject (5), bagArray.getBagObject (0));
+        assertEquals (new BagObject (), bagArray.getBagObject (1));
+        assertEquals (testBagArray.getBagObject (9), bagArray.getBagObject (2));
+
+        // paging goes through every partition
+        int pagedCount = 0;
+        Page page = null;
+        do {
+            page = bagDb.getPage (null, "id", 7, (page != null) ? page.getResumeToken () : null);
+            pagedCount += page.getResults ().getCount ();
+        } while (page.hasMore ());
+        assertEquals (30, pagedCount);
+
+        // pages that divide the objects evenly end without an empty page
+        int pageCount = 0;
+        page = null;
+        do {
+            page = bagDb.getPage (null, "id", 10, (page != null) ? page.getResumeToken () : null);
+            assertEquals (10, page.getResults ().getCount ());
+            ++pageCount;
+        } while (page.hasMore ());
+        assertEquals (3, pageCount);
+
+        // deletes by key and by query
+        bagDb.delete ("{\"id\":7}");
+        assertNull (bagDb.get ("{\"id\":7}"));
+        bagDb.deleteMany ("{\"group\":2}");
+        assertEquals (19, bagDb.getCount ());
+
+        bagDb.deleteAll ();
+        assertEquals (0, bagDb.getCount ());
+        bagDb.drop ();
+    }
+
+    @Test
+    public void testConnect () throws Exception {
+        BagArray partitions = new BagArray ();
+        for (String partitionName : TEST_PARTITION_NAMES) {
+            partitions.add (BagObject.open (DATABASE_NAME, TEST_DATABASE_NAME).put (COLLECTION_NAME, partitionName));
+        }
+        PartitionedBagDb bagDb = PartitionedBagDb.connect (BagObject.open (PartitionedBagDb.KEY_FIELD, "id").put (PartitionedBagDb.PARTITIONS, partitions));
+        assertNotNull (bagDb);
+        assertEquals ("Test.Partition0,Test.Partition1,Test.Partition2", bagDb.getName ());
+        bagDb.close ();
+
+        assertNull (PartitionedBagDb.connect (BagObject.open (PartitionedBagDb.KEY_FIELD, "id")));
+    }
+}
@@ -0,0 +1,71 @@
+package com.brettonw.db;
+
+import com.brettonw.bag.BagArray;
+import com.brettonw.bag.BagObject;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.junit.Test;
+
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class Pipeline_Test {
+    @Test
+    public void testCompile () {
+        BagArray pipeline = new BagArray ()
+                .add (BagObject.open ("$match", BagObject.open ("payload", "medium").put ("id", BagObject.open ("$gt", "1"))))
+                .add (BagObject.open ("$group", BagObject.open ("_id", "$payload").put ("count", BagObject.open ("$sum", "1"))))
+                .add (BagObject.open ("$sort", BagObject.open ("count", "-1")))
+                .add (BagObject.open ("$limit", "10"));
+        List<BsonDocument> stages = Pipeline.compile (pipeline);
+        assertEquals (4, stages.size ());
+        assertEquals (BsonDocument.parse ("{\"$match\": {\"id\": {\"$gt\": \"1\"}, \"payload\": \"medium\"}}"), stages.get (0));
+        assertEquals (BsonDocument.parse ("{\"$group\": {\"_id\": \"$payload\", \"count\": {\"$sum\": 1}}}"), stages.get (1));
+        assertEquals (BsonDocument.parse ("{\"$sort\": {\"count\": -1}}"), stages.get (2));
+        assertEquals (BsonDocument.parse ("{\"$limit\": 10}"), stages.get (3));
+    }
+
+    @Test
+    public void testMatchBagStoredValues () {
+        // bags store "id" as a string, so the match has to compare against strings
+        BsonDocument stored = BsonDocument.parse ("{\"id\": \"2\", \"payload\": \"medium\", \"count\": \"5\"}");
+        BagArray pipeline = BagArray.open (BagObject.open ("$match", BagObject.open ("payload", "medium").put ("id", BagObject.open ("$gt", "1"))));
+        assertTrue (QueryMatcher.matches (stored, Pipeline.compile (pipeline).get (0).getDocument ("$match")));
+        pipeline = BagArray.open (BagObject.open ("$match", BagObject.open ("count", "5")));
+        assertTrue (QueryMatcher.matches (stored, Pipeline.compile (pipeline).get (0).getDocument ("$match")));
+        pipeline = BagArray.open (BagObject.open ("$match", BagObject.open ("id", BagObject.open ("$lt", "2"))));
+        assertFalse (QueryMatcher.matches (stored, Pipeline.compile (pipeline).get (0).getDocument ("$match")));
+    }
+
+    @Test
+    public void testMatchOperatorArguments () {
+        // operators that aren't comparisons keep their typed arguments
+        BsonDocument stored = BsonDocument.parse ("{\"id\": \"2\", \"tags\": [\"a\", \"b\"]}");
+        BagArray pipeline = BagArray.open (BagObject.open ("$match", BagObject.open ("x", BagObject.open ("$exists", "false"))));
+        BsonDocument match = Pipeline.compile (pipeline).get (0).getDocument ("$match");
+        assertEquals (BsonDocument.parse ("{\"x\": {\"$exists\": false}}"), match);
+        assertTrue (QueryMatcher.matches (stored, match));
+
+        pipeline = BagArray.open (BagObject.open ("$match", BagObject.open ("tags", BagObject.open ("$size", "2")).put ("id", BagObject.open ("$in", new BagArray ().add ("2").add ("3")))));
+        match = Pipeline.compile (pipeline).get (0).getDocument ("$match");
+        assertEquals (BsonDocument.parse ("{\"id\": {\"$in\": [\"2\", \"3\"]}, \"tags\": {\"$size\": 2}}"), match);
+        assertTrue (QueryMatcher.matches (stored, match));
+
+        pipeline = BagArray.open (BagObject.open ("$match", BagObject.open ("$or", new BagArray ().add (BagObject.open ("tags", BagObject.open ("$size", "3"))).add (BagObject.open ("id", BagObject.open ("$not", BagObject.open ("$gt", "5")))))));
+        match = Pipeline.compile (pipeline).get (0).getDocument ("$match");
+        assertEquals (BsonDocument.parse ("{\"$or\": [{\"tags\": {\"$size\": 3}}, {\"id\": {\"$not\": {\"$gt\": \"5\"}}}]}"), match);
+        assertTrue (QueryMatcher.matches (stored, match));
+    }
+
+    @Test
+    public void testToScalar () {
+        assertTrue (Pipeline.toScalar ("12").isInt32 ());
+        assertTrue (Pipeline.toScalar ("12345678901").isInt64 ());
+        assertTrue (Pipeline.toScalar ("1.5").isDouble ());
+        assertTrue (Pipeline.toScalar ("true").isBoolean ());
+        assertEquals (new BsonString ("007"), Pipeline.toScalar ("007"));
+        assertEquals (new BsonString ("1e3"), Pipeline.toScalar ("1e3"));
+        assertEquals (new BsonString ("value"), Pipeline.toScalar ("value"));
+    }
+}
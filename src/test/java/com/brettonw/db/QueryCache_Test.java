@@ -0,0 +1,64 @@
+package com.brettonw.db;
+
+import org.bson.BsonDocument;
+import org.bson.conversions.Bson;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryCache_Test {
+    @Test
+    public void testNormalize () {
+        assertEquals ("{\"a b\":\"c d\",\"e\":1}", QueryCache.normalize (" { \"a b\" : \"c d\",\n\t\"e\": 1 } "));
+        assertEquals ("{\"a\":\"\\\" x\"}", QueryCache.normalize ("{ \"a\": \"\\\" x\" }"));
+        assertEquals ("{'a b':'c \" d'}", QueryCache.normalize ("{ 'a b' : 'c \" d' }"));
+    }
+
+    @Test
+    public void testCompileKeepsTypes () {
+        BsonDocument compiled = (BsonDocument) QueryCache.compile ("{\"id\": 2, \"key\": \"value\"}");
+        assertEquals (BsonDocument.parse ("{\"id\": {\"$in\": [2, \"2\"]}, \"key\": \"value\"}"), compiled);
+
+        compiled = (BsonDocument) QueryCache.compile ("{\"id\": {\"$in\": [1, \"x\"]}, \"a.b\": {\"$gt\": \"3\", \"$exists\": true}}");
+        assertEquals (BsonDocument.parse ("{\"id\": {\"$in\": [1, \"1\", \"x\"]}, \"a.b\": {\"$gt\": \"3\", \"$exists\": true}}"), compiled);
+
+        compiled = (BsonDocument) QueryCache.compile ("{\"$or\": [{\"id\": {\"$ne\": 1}}, {\"flag\": true}]}");
+        assertEquals (BsonDocument.parse ("{\"$or\": [{\"id\": {\"$nin\": [1, \"1\"]}}, {\"flag\": {\"$in\": [true, \"true\"]}}]}"), compiled);
+    }
+
+    @Test
+    public void testCompileRejectsTypedRange () {
+        for (String queryJson : new String[] { "{\"n\": {\"$gt\": 1}}", "{\"n\": {\"$not\": {\"$lte\": 1.5}}}", "{\"$or\": [{\"n\": {\"$lt\": true}}]}" }) {
+            try {
+                QueryCache.compile (queryJson);
+                fail ("Expected a range with a typed bound to fail (" + queryJson + ")");
+            } catch (IllegalArgumentException exception) {
+                assertTrue (exception.getMessage ().contains ("$"));
+            }
+        }
+    }
+
+    @Test
+    public void testCompileBadQuery () {
+        assertEquals (new BsonDocument (), QueryCache.compile ("{bongo"));
+    }
+
+    @Test
+    public void testHitRate () {
+        QueryCache queryCache = new QueryCache (2);
+        Bson first = queryCache.get ("{\"id\": 1}");
+        assertSame (first, queryCache.get ("{ \"id\" : 1 }"));
+        assertEquals (0.5, queryCache.getHitRate (), 1e-9);
+
+        // whitespace inside single quotes is part of the value
+        assertEquals (BsonDocument.parse ("{\"name\": \"a b\"}"), new QueryCache (2).get ("{'name': 'a b'}"));
+
+        // the least recently used entry is evicted
+        queryCache.get ("{\"id\": 2}");
+        queryCache.get ("{\"id\": 3}");
+        assertEquals (2, queryCache.getSize ());
+        assertNotSame (first, queryCache.get ("{\"id\": 1}"));
+        assertEquals (1, queryCache.getHitCount ());
+        assertEquals (4, queryCache.getMissCount ());
+    }
+}
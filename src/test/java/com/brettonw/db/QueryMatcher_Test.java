@@ -0,0 +1,64 @@
+package com.brettonw.db;
+
+import org.bson.BsonDocument;
+import org.bson.BsonInt32;
+import org.bson.BsonInt64;
+import org.bson.BsonString;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class QueryMatcher_Test {
+    private static final BsonDocument DOCUMENT = BsonDocument.parse ("{\"id\": \"2\", \"count\": 5, \"name\": \"Bongo\", \"tags\": [\"a\", \"b\"], \"nested\": {\"x\": \"1\", \"list\": [{\"y\": \"p\"}, {\"y\": \"q\"}]}}");
+
+    private static boolean matches (String queryJson) {
+        return QueryMatcher.matches (DOCUMENT, (BsonDocument) QueryCache.compile (queryJson));
+    }
+
+    @Test
+    public void testEquality () {
+        // bare numbers match the string form, like they do on the server
+        assertTrue (matches ("{\"id\": 2}"));
+        assertTrue (matches ("{\"id\": \"2\", \"name\": \"Bongo\"}"));
+        assertFalse (matches ("{\"id\": 3}"));
+        assertTrue (matches ("{\"count\": 5.0}"));
+        assertTrue (matches ("{\"missing\": null}"));
+        assertFalse (matches ("{\"id\": null}"));
+    }
+
+    @Test
+    public void testPathsAndArrays () {
+        assertTrue (matches ("{\"tags\": \"b\"}"));
+        assertTrue (matches ("{\"tags.1\": \"b\"}"));
+        assertTrue (matches ("{\"nested.x\": 1}"));
+        assertTrue (matches ("{\"nested.list.y\": \"q\"}"));
+        assertTrue (matches ("{\"tags\": {\"$size\": 2, \"$all\": [\"a\", \"b\"]}}"));
+        assertTrue (matches ("{\"nested.list\": {\"$elemMatch\": {\"y\": \"p\"}}}"));
+        assertFalse (matches ("{\"nested.list\": {\"$elemMatch\": {\"y\": \"z\"}}}"));
+    }
+
+    @Test
+    public void testOperators () {
+        // comparisons only match values of the same type, and ranges need string bounds
+        assertTrue (matches ("{\"id\": {\"$gt\": \"1\", \"$lte\": \"2\"}}"));
+        assertFalse (matches ("{\"count\": {\"$gt\": \"4\"}}"));
+        assertTrue (matches ("{\"name\": {\"$regex\": \"^bon\", \"$options\": \"i\"}}"));
+        assertTrue (matches ("{\"id\": {\"$nin\": [1, 3]}, \"missing\": {\"$exists\": false}}"));
+        assertTrue (matches ("{\"$or\": [{\"id\": 9}, {\"tags\": {\"$in\": [\"z\", \"a\"]}}]}"));
+        assertFalse (matches ("{\"$nor\": [{\"id\": 2}]}"));
+        assertTrue (matches ("{\"id\": {\"$not\": {\"$gt\": \"5\"}}}"));
+        try {
+            matches ("{\"id\": {\"$bongo\": 1}}");
+            fail ("Expected an unsupported operator to fail");
+        } catch (IllegalArgumentException exception) {
+            assertTrue (exception.getMessage ().contains ("$bongo"));
+        }
+    }
+
+    @Test
+    public void testCompare () {
+        assertEquals (0, QueryMatcher.compare (new BsonInt32 (3), new BsonInt64 (3)));
+        assertTrue (QueryMatcher.compare (new BsonInt64 (100), new BsonString ("1")) < 0);
+        assertTrue (QueryMatcher.compare (new BsonString ("a"), new BsonString ("b")) < 0);
+    }
+}